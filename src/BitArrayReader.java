@@ -0,0 +1,131 @@
+/**
+ * Reads bits-at-a-time from a region of a byte array, most significant bit
+ * first like <code>BitInputStream</code>. Up to 57 bits are kept in a 64-bit
+ * buffer so that table decoders can peek at the next code without a call per
+ * bit. Reading past the end of the region yields zero bits;
+ * {@link #overrun()} tells whether that happened.
+ */
+public final class BitArrayReader {
+
+	private byte[] data;
+	private int pos;
+	private int end;
+	// buffered bits, left aligned
+	private long buffer;
+	private int bits;
+	private long consumed;
+	private long available;
+
+	/**
+	 * Create a reader over a region of an array.
+	 *
+	 * @param data
+	 *            holds the bits
+	 * @param offset
+	 *            is the first byte of the region
+	 * @param length
+	 *            is the number of bytes in the region
+	 */
+	public BitArrayReader(byte[] data, int offset, int length) {
+		reset(data, offset, length);
+	}
+
+	/**
+	 * Start reading a new region.
+	 *
+	 * @param data
+	 *            holds the bits
+	 * @param offset
+	 *            is the first byte of the region
+	 * @param length
+	 *            is the number of bytes in the region
+	 */
+	public void reset(byte[] data, int offset, int length) {
+		this.data = data;
+		pos = offset;
+		end = offset + length;
+		buffer = 0;
+		bits = 0;
+		consumed = 0;
+		available = (long) length * 8;
+	}
+
+	/**
+	 * Return the next bits without consuming them.
+	 *
+	 * @param howManyBits
+	 *            is the number of bits to return (1-57)
+	 * @return the bits, right aligned
+	 */
+	public int peek(int howManyBits) {
+		if (bits < howManyBits)
+			refill();
+		return (int) (buffer >>> (64 - howManyBits));
+	}
+
+	/**
+	 * Consume bits previously returned by {@link #peek(int)}.
+	 *
+	 * @param howManyBits
+	 *            is the number of bits to consume
+	 */
+	public void skip(int howManyBits) {
+		buffer <<= howManyBits;
+		bits -= howManyBits;
+		consumed += howManyBits;
+	}
+
+	/**
+	 * Read bits.
+	 *
+	 * @param howManyBits
+	 *            is the number of bits to read (0-32)
+	 * @return the bits, right aligned
+	 */
+	public int read(int howManyBits) {
+		if (howManyBits == 0)
+			return 0;
+		int value = peek(howManyBits);
+		skip(howManyBits);
+		return value;
+	}
+
+	/**
+	 * @return the next bit
+	 */
+	public int readBit() {
+		return read(1);
+	}
+
+	/**
+	 * Discard the bits left in the current byte.
+	 */
+	public void align() {
+		int extra = (int) (consumed & 7);
+		if (extra != 0)
+			read(8 - extra);
+	}
+
+	/**
+	 * @return the number of bits consumed so far
+	 */
+	public long position() {
+		return consumed;
+	}
+
+	/**
+	 * @return true if more bits were consumed than the region holds
+	 */
+	public boolean overrun() {
+		return consumed > available;
+	}
+
+	private void refill() {
+		while (bits <= 56) {
+			// past the end the buffer is padded with zero bits
+			if (pos < end)
+				buffer |= (long) (data[pos++] & 0xff) << (56 - bits);
+			bits += 8;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+import java.util.Arrays;
+
+/**
+ * Writes bits-at-a-time into a growable in-memory byte array, most
+ * significant bit first like <code>BitOutputStream</code>, but without a
+ * call into an <code>OutputStream</code> per byte. Used for the per-stream and
+ * per-block buffers of the block formats, where lengths must be known before
+ * anything is written out.
+ */
+public final class BitArrayWriter {
+
+	private byte[] data;
+	private int size;
+	// pending bits, right aligned
+	private long buffer;
+	private int bits;
+
+	/**
+	 * Create a writer with room for <code>capacity</code> bytes before it
+	 * grows.
+	 *
+	 * @param capacity
+	 *            is the initial capacity in bytes
+	 */
+	public BitArrayWriter(int capacity) {
+		data = new byte[Math.max(capacity, 16)];
+	}
+
+	/**
+	 * Write the rightmost bits of a value.
+	 *
+	 * @param howManyBits
+	 *            is the number of bits to write (0-64)
+	 * @param value
+	 *            is the source of bits, rightmost bits are written
+	 */
+	public void write(int howManyBits, long value) {
+		if (howManyBits > 32) {
+			write(howManyBits - 32, value >>> 32);
+			howManyBits = 32;
+		}
+		if (howManyBits == 0)
+			return;
+		buffer = buffer << howManyBits | (value & (-1L >>> (64 - howManyBits)));
+		bits += howManyBits;
+		if (bits >= 32) {
+			// up to 63 bits pending, so up to 7 bytes
+			ensure(bits >>> 3);
+			while (bits >= 8) {
+				bits -= 8;
+				data[size++] = (byte) (buffer >>> bits);
+			}
+		}
+	}
+
+	/**
+	 * Pad the last byte with zero bits.
+	 */
+	public void align() {
+		if (bits > 0) {
+			ensure(1 + bits / 8);
+			while (bits >= 8) {
+				bits -= 8;
+				data[size++] = (byte) (buffer >>> bits);
+			}
+			if (bits > 0) {
+				data[size++] = (byte) (buffer << (8 - bits));
+				bits = 0;
+			}
+		}
+		buffer = 0;
+	}
+
+	/**
+	 * @return the number of bits written so far
+	 */
+	public long bitLength() {
+		return (long) size * 8 + bits;
+	}
+
+	/**
+	 * @return the number of whole bytes written; call align first to include
+	 *         a partial last byte
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the backing array, valid up to <code>size()</code>
+	 */
+	public byte[] data() {
+		return data;
+	}
+
+	/**
+	 * @return a copy of the bytes written, after padding the last byte
+	 */
+	public byte[] toByteArray() {
+		align();
+		return Arrays.copyOf(data, size);
+	}
+
+	/**
+	 * Forget everything written, keeping the allocated capacity.
+	 */
+	public void reset() {
+		size = 0;
+		bits = 0;
+		buffer = 0;
+	}
+
+	private void ensure(int n) {
+		if (size + n > data.length)
+			data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+	}
+}
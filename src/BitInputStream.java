@@ -157,6 +157,30 @@ public class BitInputStream extends InputStream
         return retval;
     }
 
+    /**
+     * Discard the bits left in the current byte so the next read starts
+     * on a byte boundary of the underlying stream.
+     */
+    public void align()
+    {
+        myBuffer = myBitCount = 0;
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes. When the stream is on a byte
+     * boundary the bytes are read from the underlying stream in bulk.
+     * @param b is the buffer the bytes are read into
+     * @param off is the first position of b written
+     * @param len is the most bytes read
+     * @return the number of bytes read, -1 at the end of the stream
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (myBitCount != 0 || myInput == null || len == 0) {
+            return super.read(b, off, len);
+        }
+        return myInput.read(b, off, len);
+    }
+
     /**
      * Required by classes extending InputStream, returns
      * the next byte from this stream as an int value.
@@ -44,6 +44,21 @@ public class BitOutputStream extends OutputStream
         myOutput.write(b);
     }
     
+    /**
+     * Writes <code>len</code> bytes. When the stream is on a byte boundary
+     * the bytes go to the underlying stream in bulk.
+     * @param b holds the bytes
+     * @param off is the first position of b written
+     * @param len is the number of bytes written
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (myBitsToGo != BITS_PER_BYTE) {
+            super.write(b, off, len);
+            return;
+        }
+        myOutput.write(b, off, len);
+    }
+
     /**
      * Create a stream that writes-through to the <code>OutputStream</code> object
      * passed as a parameter.
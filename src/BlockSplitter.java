@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Finds where the statistics of a file shift enough that coding the parts
+ * with tables of their own, each paying for its own header, is smaller than
+ * coding the whole with one table. Files made of different kinds of data,
+ * like bundles of text and binary files, split; uniform files do not.
+ * <P>
+ * The file is counted in units of at least UNIT_SIZE chunks. Starting with a
+ * segment per unit, the two neighbouring segments whose merge saves the most
+ * bits are merged until no merge saves any. The size of a segment is its
+ * header plus its codes, as <code>Huff.compressSize</code> computes it, so a
+ * boundary stays only where it saves more than a header costs. Each step
+ * only looks at one or two merged histograms, never at the data again.
+ */
+public final class BlockSplitter implements IHuffConstants {
+
+	/** Smallest number of chunks counted as one unit. */
+	public static final int UNIT_SIZE = 1 << 16;
+
+	/** Most units a file is counted in; larger files get larger units. */
+	static final int MAX_UNITS = 1024;
+
+	// start of each segment, then the file length
+	private final long[] bounds;
+	private final int[][] counts;
+
+	private BlockSplitter(long[] bounds, int[][] counts) {
+		this.bounds = bounds;
+		this.counts = counts;
+	}
+
+	/**
+	 * Split a file, counting units of large files on the common fork/join
+	 * pool.
+	 *
+	 * @param inFile
+	 *            is the file to split
+	 * @return the segments
+	 * @throws IOException
+	 *             if reading fails
+	 */
+	public static BlockSplitter split(String inFile) throws IOException {
+		return split(inFile, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Split a file, counting units of files of at least
+	 * CharCounter.PARALLEL_THRESHOLD chunks on the given pool.
+	 *
+	 * @param inFile
+	 *            is the file to split
+	 * @param pool
+	 *            runs the unit counts
+	 * @return the segments
+	 * @throws IOException
+	 *             if reading fails
+	 */
+	public static BlockSplitter split(String inFile, ForkJoinPool pool) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(inFile), StandardOpenOption.READ);
+		int[][] units;
+		long size;
+		long unit;
+		try {
+			size = channel.size();
+			unit = Math.max(UNIT_SIZE, (size + MAX_UNITS - 1) / MAX_UNITS);
+			int n = (int) ((size + unit - 1) / unit);
+			units = new int[n][];
+			List<ForkJoinTask<int[]>> tasks = new ArrayList<ForkJoinTask<int[]>>();
+			for (int i = 0; i < n; i++) {
+				CharCounter.CountTask task = new CharCounter.CountTask(channel, i * unit,
+						Math.min(size, (i + 1) * unit), CharCounter.DEFAULT_LANES);
+				if (size < CharCounter.PARALLEL_THRESHOLD)
+					units[i] = task.compute();
+				else
+					tasks.add(pool.submit(task));
+			}
+			for (int i = 0; i < tasks.size(); i++)
+				units[i] = tasks.get(i).get();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof UncheckedIOException)
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while counting");
+		} finally {
+			channel.close();
+		}
+		if (units.length == 0)
+			return new BlockSplitter(new long[] { 0, 0 }, new int[][] { new int[ALPH_SIZE] });
+		int[] starts = merge(units);
+		long[] bounds = new long[starts.length + 1];
+		int[][] counts = new int[starts.length][];
+		for (int s = 0; s < starts.length; s++) {
+			int end = s + 1 < starts.length ? starts[s + 1] : units.length;
+			bounds[s] = starts[s] * unit;
+			counts[s] = new int[ALPH_SIZE];
+			for (int u = starts[s]; u < end; u++)
+				add(counts[s], units[u]);
+		}
+		bounds[starts.length] = size;
+		return new BlockSplitter(bounds, counts);
+	}
+
+	/**
+	 * Merge neighbouring units while a merge makes the result smaller.
+	 *
+	 * @param units
+	 *            holds the chunk counts of each unit, at least one
+	 * @return the first unit of each segment
+	 */
+	static int[] merge(int[][] units) {
+		int n = units.length;
+		int[][] counts = new int[n][];
+		long[] cost = new long[n];
+		int[] next = new int[n];
+		int[] prev = new int[n];
+		// bits saved by merging segment i with the one after it
+		long[] gain = new long[n];
+		for (int i = 0; i < n; i++) {
+			counts[i] = units[i].clone();
+			cost[i] = cost(counts[i]);
+			next[i] = i + 1 < n ? i + 1 : -1;
+			prev[i] = i - 1;
+		}
+		for (int i = 0; i + 1 < n; i++)
+			gain[i] = gain(counts, cost, i, i + 1);
+		int segments = n;
+		while (segments > 1) {
+			int best = -1;
+			for (int i = 0; i >= 0; i = next[i]) {
+				if (next[i] >= 0 && gain[i] > 0 && (best < 0 || gain[i] > gain[best]))
+					best = i;
+			}
+			if (best < 0)
+				break;
+			int j = next[best];
+			add(counts[best], counts[j]);
+			cost[best] += cost[j] - gain[best];
+			next[best] = next[j];
+			if (next[j] >= 0)
+				prev[next[j]] = best;
+			segments--;
+			if (next[best] >= 0)
+				gain[best] = gain(counts, cost, best, next[best]);
+			if (prev[best] >= 0)
+				gain[prev[best]] = gain(counts, cost, prev[best], best);
+		}
+		int[] starts = new int[segments];
+		for (int i = 0, s = 0; i >= 0; i = next[i])
+			starts[s++] = i;
+		return starts;
+	}
+
+	private static long gain(int[][] counts, long[] cost, int a, int b) {
+		int[] merged = counts[a].clone();
+		add(merged, counts[b]);
+		return cost[a] + cost[b] - cost(merged);
+	}
+
+	/**
+	 * The size of a segment coding the counts with a table of its own: the
+	 * same number <code>HuffCodec.headerSize</code> and
+	 * <code>compressedSize</code> give, found without building the tree. A
+	 * tree of n leaves takes 11n - 1 bits, and the code bits of all chunks add
+	 * up to the sum of the weights of the internal nodes, which is the same
+	 * for every Huffman tree of the counts.
+	 *
+	 * @param counts
+	 *            holds the count of each chunk
+	 * @return the bits of the segment, padded to a byte boundary
+	 */
+	static long cost(int[] counts) {
+		long[] weights = new long[ALPH_SIZE + 1];
+		int n = 0;
+		for (int ch = 0; ch < ALPH_SIZE; ch++) {
+			if (counts[ch] != 0)
+				weights[n++] = counts[ch];
+		}
+		// PSEUDO_EOF
+		weights[n++] = 1;
+		Arrays.sort(weights, 0, n);
+		long bits = BITS_PER_INT + 11L * n - 1;
+		// merge the two lightest, taking them from the sorted leaves or from
+		// the internal nodes, which are made in increasing order
+		long[] merged = new long[n];
+		int leaf = 0, head = 0, tail = 0;
+		for (int i = 1; i < n; i++) {
+			long a = leaf < n && (head == tail || weights[leaf] <= merged[head]) ? weights[leaf++] : merged[head++];
+			long b = leaf < n && (head == tail || weights[leaf] <= merged[head]) ? weights[leaf++] : merged[head++];
+			merged[tail++] = a + b;
+			bits += a + b;
+		}
+		return (bits + 7) / 8 * 8;
+	}
+
+	private static void add(int[] counts, int[] more) {
+		for (int ch = 0; ch < ALPH_SIZE; ch++)
+			counts[ch] += more[ch];
+	}
+
+	/**
+	 * @return the number of segments, at least 1
+	 */
+	public int segments() {
+		return counts.length;
+	}
+
+	/**
+	 * @param i
+	 *            is the segment
+	 * @return the offset of the first chunk of the segment
+	 */
+	public long start(int i) {
+		return bounds[i];
+	}
+
+	/**
+	 * @param i
+	 *            is the segment
+	 * @return the offset after the last chunk of the segment
+	 */
+	public long end(int i) {
+		return bounds[i + 1];
+	}
+
+	/**
+	 * @return the length of the file
+	 */
+	public long length() {
+		return bounds[bounds.length - 1];
+	}
+
+	/**
+	 * @param i
+	 *            is the segment
+	 * @return the count of each chunk in the segment
+	 */
+	public int[] counts(int i) {
+		return counts[i].clone();
+	}
+}
@@ -0,0 +1,407 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Huffman model that transforms each block the way bzip2 does before coding
+ * it:
+ * <ol>
+ * <li>Burrows-Wheeler transform: the last column of the sorted rotations of
+ * the block, which groups chunks by the context that follows them. The
+ * suffixes are sorted by SA-IS, in time and memory linear in the block
+ * size.</li>
+ * <li>move-to-front: each chunk becomes its position in a list of recently
+ * seen chunks, so the grouped chunks become mostly small numbers and
+ * zeros.</li>
+ * <li>zero-run coding: a run of zeros is written as its length in bijective
+ * base 2 with the digits RUN_A (1) and RUN_B (2).</li>
+ * </ol>
+ * The symbols left are RUN_A, RUN_B, and each non-zero move-to-front value v
+ * as v + 1, the last of which is PSEUDO_EOF. A block has its own tree, or
+ * uses the tree of the block before it when that codes it smaller than a new
+ * tree and its codes.
+ * A block whose chunks code smaller as they are, as with data that has no
+ * context to exploit, is written untransformed.
+ * <P>
+ * File layout:
+ *
+ * <pre>
+ * int BWT_MAGIC
+ * for every block:
+ *     int length        chunks in the block
+ *     int primary       row of the sorted rotations holding the original
+ *                       block, 0 if the block is not transformed
+ *     1 bit             1 to use the tree of the previous block
+ *     tree              only if the bit is 0
+ *     pad to a byte boundary
+ *     int payloadBytes
+ *     symbols, padded to a byte boundary
+ * int 0
+ * </pre>
+ */
+public class BwtHuff implements IHuffModel {
+
+	/** Block size used by the default constructor. */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+	/** Largest block size. */
+	public static final int MAX_BLOCK_SIZE = 1 << 24;
+
+	/** Zero-run digit 1. */
+	static final int RUN_A = 0;
+
+	/** Zero-run digit 2. */
+	static final int RUN_B = 1;
+
+	private final int blockSize;
+
+	public BwtHuff() {
+		this(DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param blockSize
+	 *            is the number of chunks transformed together, 1 to
+	 *            MAX_BLOCK_SIZE; larger blocks compress better and need about
+	 *            20 bytes of memory per chunk
+	 */
+	public BwtHuff(int blockSize) {
+		if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE)
+			throw new IllegalArgumentException("blockSize must be 1 to " + MAX_BLOCK_SIZE);
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Write a compressed version of a file. If force is false and the result
+	 * is not smaller than the input, the output is removed.
+	 *
+	 * @param inFile
+	 *            is the file to be compressed
+	 * @param outFile
+	 *            is the file to be written with compressed data
+	 * @param force
+	 *            indicates if compression forced
+	 * @return the size of the compressed file in bits, 0 if not written
+	 */
+	public int write(String inFile, String outFile, boolean force) {
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(inFile));
+			BitOutputStream out = new BitOutputStream(outFile);
+			long size;
+			try {
+				size = encode(in, out);
+			} finally {
+				in.close();
+				out.close();
+			}
+			if (!force && size >= new File(inFile).length() * 8) {
+				new File(outFile).delete();
+				return 0;
+			}
+			return (int) size;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	/**
+	 * Compress a stream.
+	 *
+	 * @param in
+	 *            is the data to compress
+	 * @param out
+	 *            receives the compressed data
+	 * @return the number of bits written
+	 * @throws IOException
+	 *             if reading or writing fails
+	 */
+	public long encode(InputStream in, BitOutputStream out) throws IOException {
+		out.write(BITS_PER_INT, BWT_MAGIC);
+		long size = BITS_PER_INT;
+		byte[] block = new byte[blockSize];
+		byte[] last = new byte[blockSize];
+		int[] symbols = new int[blockSize];
+		BitArrayWriter payload = new BitArrayWriter(blockSize / 2);
+		HuffCodec previous = null;
+		int n;
+		while ((n = readFully(in, block, blockSize)) > 0) {
+			int primary = transform(block, n, last);
+			int count = moveToFront(last, n, symbols);
+			int[] counts = new int[ALPH_SIZE + 1];
+			for (int i = 0; i < count; i++)
+				counts[symbols[i]]++;
+			HuffCodec codec = HuffCodec.fromCounts(counts);
+			CharCounter cc = new CharCounter();
+			cc.addAll(block, 0, n);
+			int[] chunks = cc.toArray();
+			HuffCodec plain = HuffCodec.fromCounts(chunks);
+			if (plain.headerSize() + plain.compressedSize(chunks) < codec.headerSize() + codec.compressedSize(counts)
+					+ (long) counts[PSEUDO_EOF] * codec.codeLength(PSEUDO_EOF)) {
+				// without context, e.g. random data, the transform only hurts
+				primary = 0;
+				codec = plain;
+				counts = chunks;
+				count = n;
+				for (int i = 0; i < n; i++)
+					symbols[i] = block[i] & 0xff;
+			}
+			boolean reuse = HuffCodec.reusable(previous, codec, counts);
+			if (reuse)
+				codec = previous;
+			previous = codec;
+			payload.reset();
+			for (int i = 0; i < count; i++)
+				payload.write(codec.codeLength(symbols[i]), codec.code(symbols[i]));
+			payload.align();
+			out.write(BITS_PER_INT, n);
+			out.write(BITS_PER_INT, primary);
+			out.write(1, reuse ? 1 : 0);
+			int header = 2 * BITS_PER_INT + 1 + (reuse ? 0 : codec.tree().write(out));
+			out.flush();
+			out.write(BITS_PER_INT, payload.size());
+			out.write(payload.data(), 0, payload.size());
+			size += (header + 7) / 8 * 8 + BITS_PER_INT + payload.size() * 8L;
+		}
+		out.write(BITS_PER_INT, 0);
+		return size + BITS_PER_INT;
+	}
+
+	/**
+	 * Uncompress a file written by {@link #write(String, String, boolean)}.
+	 *
+	 * @param inFile
+	 *            is the compressed file to be uncompressed
+	 * @param outFile
+	 *            is where the uncompressed bits will be written
+	 * @return the size of the uncompressed file in bits
+	 */
+	public int uncompress(String inFile, String outFile) {
+		BitInputStream in = new BitInputStream(inFile);
+		BitOutputStream out = new BitOutputStream(outFile);
+		try {
+			return (int) decode(in, out) * 8;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Uncompress a stream.
+	 *
+	 * @param in
+	 *            is positioned at the magic number
+	 * @param out
+	 *            receives the uncompressed data
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if the input is not in this format or is damaged
+	 */
+	public static long decode(BitInputStream in, OutputStream out) throws IOException {
+		if (in.read(BITS_PER_INT) != BWT_MAGIC)
+			throw new IOException("magic number not right");
+		byte[] last = new byte[0];
+		byte[] block = new byte[0];
+		byte[] payload = new byte[0];
+		int[] next = new int[0];
+		BitArrayReader bits = new BitArrayReader(payload, 0, 0);
+		// kept for blocks that use them again
+		HuffArrayTree tree = null;
+		HuffDecodeTable table = null;
+		long size = 0;
+		int n;
+		while ((n = in.read(BITS_PER_INT)) != 0) {
+			int primary = in.read(BITS_PER_INT);
+			if (n < 0 || n > MAX_BLOCK_SIZE || primary < 0 || primary > n)
+				throw new IOException("bad block header");
+			int reuse = in.read(1);
+			if (reuse == -1)
+				throw new IOException("unexpected end of input file");
+			if (reuse == 0) {
+				tree = HuffArrayTree.read(in);
+				// a block of one repeated symbol has a one-leaf tree
+				table = tree.root() < 0 ? null : new HuffDecodeTable(tree);
+			} else if (tree == null) {
+				throw new IOException("no table to reuse");
+			}
+			in.align();
+			int payloadBytes = in.read(BITS_PER_INT);
+			if (payloadBytes < 0)
+				throw new IOException("unexpected end of input file");
+			if (last.length < n) {
+				last = new byte[n];
+				block = new byte[n];
+				next = new int[n + 1];
+			}
+			if (payload.length < payloadBytes)
+				payload = new byte[payloadBytes];
+			if (readFully(in, payload, payloadBytes) < payloadBytes)
+				throw new IOException("unexpected end of input file");
+			bits.reset(payload, 0, payloadBytes);
+			if (primary == 0) {
+				for (int i = 0; i < n; i++) {
+					int sym = table == null ? ~tree.root() : table.next(bits);
+					if (sym >= ALPH_SIZE)
+						throw new IOException("bad chunk");
+					block[i] = (byte) sym;
+				}
+				if (bits.overrun())
+					throw new IOException("unexpected end of input file");
+				out.write(block, 0, n);
+				size += n;
+				continue;
+			}
+			byte[] mtf = new byte[ALPH_SIZE];
+			for (int i = 0; i < ALPH_SIZE; i++)
+				mtf[i] = (byte) i;
+			int pos = 0;
+			int weight = 1;
+			while (pos < n) {
+				int sym = table == null ? ~tree.root() : table.next(bits);
+				if (sym == RUN_A || sym == RUN_B) {
+					int run = sym == RUN_A ? weight : 2 * weight;
+					if (run > n - pos)
+						throw new IOException("run past end of block");
+					for (byte b = mtf[0]; run > 0; run--)
+						last[pos++] = b;
+					weight <<= 1;
+					continue;
+				}
+				weight = 1;
+				int v = sym - 1;
+				byte b = mtf[v];
+				System.arraycopy(mtf, 0, mtf, 1, v);
+				mtf[0] = b;
+				last[pos++] = b;
+			}
+			if (bits.overrun())
+				throw new IOException("unexpected end of input file");
+			inverse(last, n, primary, block, next);
+			out.write(block, 0, n);
+			size += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Burrows-Wheeler transform of a block, with an implicit end marker that
+	 * sorts before every chunk. Of the n + 1 sorted rotations, the row that
+	 * ends with the marker is left out of the output and its index returned.
+	 *
+	 * @param block
+	 *            holds the chunks to transform
+	 * @param n
+	 *            is the number of chunks, at least 1
+	 * @param last
+	 *            receives the last column, without the marker
+	 * @return the index of the row left out, 1 to n
+	 */
+	static int transform(byte[] block, int n, byte[] last) {
+		int[] sa = SuffixArray.build(block, n);
+		// row 0 is the empty suffix, preceded by the whole block
+		last[0] = block[n - 1];
+		int primary = 0;
+		for (int i = 0, k = 1; i < n; i++) {
+			if (sa[i] == 0)
+				primary = i + 1;
+			else
+				last[k++] = block[sa[i] - 1];
+		}
+		return primary;
+	}
+
+	/**
+	 * Undo {@link #transform(byte[], int, byte[])}.
+	 *
+	 * @param last
+	 *            holds the last column, without the marker
+	 * @param n
+	 *            is the number of chunks
+	 * @param primary
+	 *            is the index of the row left out
+	 * @param block
+	 *            receives the original chunks
+	 * @param next
+	 *            is scratch space for n + 1 ints
+	 */
+	static void inverse(byte[] last, int n, int primary, byte[] block, int[] next) {
+		// first[c] is the first row starting with c; row 0 starts with the marker
+		int[] first = new int[ALPH_SIZE];
+		for (int i = 0; i < n; i++)
+			first[last[i] & 0xff]++;
+		for (int c = 0, sum = 1; c < ALPH_SIZE; c++) {
+			int count = first[c];
+			first[c] = sum;
+			sum += count;
+		}
+		// next[row] is the row of the rotation one chunk to the left
+		for (int row = 0; row <= n; row++) {
+			if (row != primary)
+				next[row] = first[last[row < primary ? row : row - 1] & 0xff]++;
+		}
+		for (int row = 0, i = n - 1; i >= 0; i--) {
+			block[i] = last[row < primary ? row : row - 1];
+			row = next[row];
+		}
+	}
+
+	/**
+	 * Move-to-front and zero-run coding of a block.
+	 *
+	 * @param last
+	 *            holds the chunks
+	 * @param n
+	 *            is the number of chunks
+	 * @param symbols
+	 *            receives the symbols, at most n of them
+	 * @return the number of symbols
+	 */
+	static int moveToFront(byte[] last, int n, int[] symbols) {
+		byte[] mtf = new byte[ALPH_SIZE];
+		for (int i = 0; i < ALPH_SIZE; i++)
+			mtf[i] = (byte) i;
+		int count = 0;
+		int run = 0;
+		for (int i = 0; i < n; i++) {
+			byte b = last[i];
+			if (mtf[0] == b) {
+				run++;
+				continue;
+			}
+			count = writeRun(run, symbols, count);
+			run = 0;
+			int v = 1;
+			while (mtf[v] != b)
+				v++;
+			System.arraycopy(mtf, 0, mtf, 1, v);
+			mtf[0] = b;
+			symbols[count++] = v + 1;
+		}
+		return writeRun(run, symbols, count);
+	}
+
+	// a run of r zeros in bijective base 2, least significant digit first
+	private static int writeRun(int run, int[] symbols, int count) {
+		while (run > 0) {
+			run--;
+			symbols[count++] = (run & 1) == 0 ? RUN_A : RUN_B;
+			run >>>= 1;
+		}
+		return count;
+	}
+
+	private static int readFully(InputStream in, byte[] buf, int len) throws IOException {
+		int n = 0;
+		int r;
+		while (n < len && (r = in.read(buf, n, len - n)) != -1)
+			n += r;
+		return n;
+	}
+}
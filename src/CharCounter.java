@@ -1,14 +1,53 @@
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32C;
 
 public class CharCounter implements ICharCounter, IHuffConstants {
 
-	private Map<Integer, Integer> count;
-	
+	/** Number of histograms bulk counting spreads over by default. */
+	public static final int DEFAULT_LANES = 8;
+
+	/** Files at least this long are split into ranges counted in parallel. */
+	public static final long PARALLEL_THRESHOLD = 1 << 23;
+
+	/** Largest range of a file counted by one task. */
+	static final long RANGE_SIZE = 1 << 22;
+
+	// lanes histograms of ALPH_SIZE counts each; outside of addAll every
+	// count is in the first one
+	private int[] count;
+	private int lanes;
+	// content checksum of the last file counted by countFile
+	private int checksum;
+
 	public CharCounter() {
-		count = new HashMap<Integer, Integer>();
+		this(DEFAULT_LANES);
+	}
+
+	/**
+	 * Create a counter that spreads bulk counting over several histograms, so
+	 * that runs of one chunk update different memory locations instead of
+	 * waiting on the previous store to the same count. One lane counts chunk
+	 * by chunk; every lane count gives exactly the same counts.
+	 *
+	 * @param lanes
+	 *            is 1, 4 or 8
+	 */
+	public CharCounter(int lanes) {
+		if (lanes != 1 && lanes != 4 && lanes != 8)
+			throw new IllegalArgumentException("lanes must be 1, 4 or 8");
+		this.lanes = lanes;
+		count = new int[lanes * ALPH_SIZE];
 	}
 
 	 /**
@@ -18,10 +57,8 @@ public class CharCounter implements ICharCounter, IHuffConstants {
      * @throws the appropriate exception if ch isn't a valid chunk/character
      */
 	public int getCount(int ch) {
-		if (ch > 255) throw new IllegalArgumentException("illegal argument (> 255)");
-		if (ch < 0) throw new IllegalArgumentException("illegal argument (< 0)");
-		if (count.get(ch) == null) return 0;
-		return count.get(ch);
+		check(ch);
+		return count[ch];
 	}
 
 	/**
@@ -34,37 +71,220 @@ public class CharCounter implements ICharCounter, IHuffConstants {
 		clear();
 		// all chunks read
 		int chunk = 0;
-		// every chunk read
-		int inbits;
-		BitInputStream bits = new BitInputStream(stream);
-		while ((inbits = bits.read(BITS_PER_WORD)) != -1) {
-			// add this chunk to map
-			add(inbits);
-			chunk++;
+		byte[] buf = HuffContext.get().in;
+		int n;
+		while ((n = stream.read(buf, 0, buf.length)) != -1) {
+			addAll(buf, 0, n);
+			chunk += n;
 		}
-		// close bits
-		bits.close();
+		// close stream
+		stream.close();
 		return chunk;
 	}
 
+	/**
+	 * Initialize state by counting the chunks of a file. Files of at least
+	 * PARALLEL_THRESHOLD bytes are split into ranges that are counted on the
+	 * common fork/join pool with positional reads and merged.
+	 *
+	 * @param inFile
+	 *            is the file to count
+	 * @return count of all chunks read
+	 * @throws IOException
+	 *             if reading fails
+	 */
+	public long countFile(String inFile) throws IOException {
+		return countFile(inFile, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Initialize state by counting the chunks of a file, counting ranges of
+	 * large files on the given pool.
+	 *
+	 * @param inFile
+	 *            is the file to count
+	 * @param pool
+	 *            runs the range counts
+	 * @return count of all chunks read
+	 * @throws IOException
+	 *             if reading fails
+	 */
+	public long countFile(String inFile, ForkJoinPool pool) throws IOException {
+		clear();
+		FileChannel channel = FileChannel.open(Paths.get(inFile), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			CountTask task = new CountTask(channel, 0, size, lanes);
+			int[] counts;
+			try {
+				counts = size < PARALLEL_THRESHOLD ? task.compute() : pool.invoke(task);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			System.arraycopy(counts, 0, count, 0, ALPH_SIZE);
+			checksum = task.checksum;
+			return size;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * A CRC-32C fingerprint of the content of the last file counted by
+	 * {@link #countFile(String)}, computed in the same pass as the counts.
+	 * Ranges counted by different tasks are checksummed apart and their
+	 * checksums combined, so the value is that of the file for files up to
+	 * RANGE_SIZE bytes and otherwise depends only on the content too.
+	 *
+	 * @return the checksum
+	 */
+	public int checksum() {
+		return checksum;
+	}
+
+	/**
+	 * Counts one range of a file, splitting it in halves until ranges are
+	 * at most RANGE_SIZE bytes. The range's checksum is left in checksum.
+	 */
+	static class CountTask extends RecursiveTask<int[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final int lanes;
+		int checksum;
+
+		CountTask(FileChannel channel, long start, long end, int lanes) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.lanes = lanes;
+		}
+
+		@Override
+		protected int[] compute() {
+			if (end - start > RANGE_SIZE) {
+				long mid = start + (end - start) / 2;
+				CountTask right = new CountTask(channel, mid, end, lanes);
+				right.fork();
+				CountTask left = new CountTask(channel, start, mid, lanes);
+				int[] counts = left.compute();
+				int[] other = right.join();
+				for (int ch = 0; ch < ALPH_SIZE; ch++)
+					counts[ch] += other[ch];
+				CRC32C crc = new CRC32C();
+				crc.update(ByteBuffer.allocate(8).putInt(left.checksum).putInt(right.checksum).array());
+				checksum = (int) crc.getValue();
+				return counts;
+			}
+			CharCounter cc = new CharCounter(lanes);
+			CRC32C crc = new CRC32C();
+			ByteBuffer buf = ByteBuffer.wrap(HuffContext.get().in);
+			try {
+				for (long pos = start; pos < end;) {
+					buf.clear();
+					buf.limit((int) Math.min(buf.capacity(), end - pos));
+					int n = channel.read(buf, pos);
+					if (n == -1)
+						break;
+					cc.addAll(buf.array(), 0, n);
+					crc.update(buf.array(), 0, n);
+					pos += n;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			checksum = (int) crc.getValue();
+			return cc.count;
+		}
+	}
+
+	/**
+	 * Record one occurrence of every chunk in a region of an array.
+	 *
+	 * @param data
+	 *            holds the chunks
+	 * @param off
+	 *            is the first chunk counted
+	 * @param len
+	 *            is the number of chunks counted
+	 */
+	public void addAll(byte[] data, int off, int len) {
+		int[] c = count;
+		int end = off + len;
+		int i = off;
+		if (lanes == 8) {
+			for (int stop = off + (len & ~7); i < stop; i += 8) {
+				c[data[i] & 0xff]++;
+				c[ALPH_SIZE + (data[i + 1] & 0xff)]++;
+				c[2 * ALPH_SIZE + (data[i + 2] & 0xff)]++;
+				c[3 * ALPH_SIZE + (data[i + 3] & 0xff)]++;
+				c[4 * ALPH_SIZE + (data[i + 4] & 0xff)]++;
+				c[5 * ALPH_SIZE + (data[i + 5] & 0xff)]++;
+				c[6 * ALPH_SIZE + (data[i + 6] & 0xff)]++;
+				c[7 * ALPH_SIZE + (data[i + 7] & 0xff)]++;
+			}
+		} else if (lanes == 4) {
+			for (int stop = off + (len & ~3); i < stop; i += 4) {
+				c[data[i] & 0xff]++;
+				c[ALPH_SIZE + (data[i + 1] & 0xff)]++;
+				c[2 * ALPH_SIZE + (data[i + 2] & 0xff)]++;
+				c[3 * ALPH_SIZE + (data[i + 3] & 0xff)]++;
+			}
+		}
+		for (; i < end; i++)
+			c[data[i] & 0xff]++;
+		// fold the other lanes into the first
+		for (int lane = 1; lane < lanes; lane++) {
+			int base = lane * ALPH_SIZE;
+			for (int ch = 0; ch < ALPH_SIZE; ch++) {
+				c[ch] += c[base + ch];
+				c[base + ch] = 0;
+			}
+		}
+	}
+
 	public void add(int i) {
-		if (count.get(i) == null)
-			set(i, 1);
-		else
-			set(i, count.get(i) + 1);
+		check(i);
+		count[i]++;
 	}
 
 	public void set(int i, int value) {
-		count.put(i, value);
+		check(i);
+		count[i] = value;
+	}
+
+	// past 255 are the other lanes, which hold no counts of their own
+	private static void check(int ch) {
+		if (ch > 255) throw new IllegalArgumentException("illegal argument (> 255)");
+		if (ch < 0) throw new IllegalArgumentException("illegal argument (< 0)");
 	}
 
 	public void clear() {
 		// All counts cleared to zero
-		count.clear();
+		Arrays.fill(count, 0);
+		checksum = 0;
 	}
 
+	/**
+	 * @return a map of every chunk with a non-zero count to its count
+	 */
 	public Map<Integer, Integer> getTable() {
-		return count;
+		Map<Integer, Integer> table = new HashMap<Integer, Integer>();
+		for (int ch = 0; ch < ALPH_SIZE; ch++) {
+			if (count[ch] != 0)
+				table.put(ch, count[ch]);
+		}
+		return table;
+	}
+
+	/**
+	 * @return a copy of the counts, indexed by chunk
+	 */
+	public int[] toArray() {
+		return Arrays.copyOf(count, ALPH_SIZE);
 	}
 
 }
@@ -112,4 +112,130 @@ public class CharCounterTest {
 		assertEquals(map.get((int) 'a'), new Integer(100));
 	}
 
+	@Test
+	public void testLanesGiveSameCounts() throws IOException {
+		java.util.Random random = new java.util.Random(7);
+		byte[] skewed = new byte[100003];
+		byte[] uniform = new byte[100003];
+		for (int i = 0; i < skewed.length; i++)
+			skewed[i] = (byte) Math.min(255, (int) (-Math.log(random.nextDouble()) * 2));
+		random.nextBytes(uniform);
+		for (byte[] data : new byte[][] { skewed, uniform }) {
+			CharCounter one = new CharCounter(1);
+			assertEquals(one.countAll(new ByteArrayInputStream(data)), data.length);
+			for (int lanes : new int[] { 4, 8 }) {
+				CharCounter cc = new CharCounter(lanes);
+				cc.countAll(new ByteArrayInputStream(data));
+				assertArrayEquals(one.toArray(), cc.toArray());
+			}
+		}
+	}
+
+	@Test
+	public void testAddAll() {
+		CharCounter cc = new CharCounter(8);
+		cc.add('t');
+		cc.addAll("xxteststrxx".getBytes(), 2, 7);
+		assertEquals(cc.getCount('t'), 4);
+		assertEquals(cc.getCount('x'), 0);
+		assertEquals(cc.getTable().size(), 4);
+	}
+
+	@Test (expected = IllegalArgumentException.class)
+	public void testLanesWhenNotValid() {
+		new CharCounter(3);
+	}
+
+	@Test
+	public void testAddWhenNotValid() {
+		// with lanes, 256 would land on chunk 0 of the second lane
+		CharCounter cc = new CharCounter(4);
+		for (int ch : new int[] { 256, -1, 4 * 256 }) {
+			try {
+				cc.add(ch);
+				fail("added " + ch);
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				cc.set(ch, 5);
+				fail("set " + ch);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		cc.addAll(new byte[] { 0 }, 0, 1);
+		assertEquals(cc.getCount(0), 1);
+	}
+
+	@Test
+	public void testCountFileInParallel() throws IOException {
+		byte[] data = new byte[(int) CharCounter.PARALLEL_THRESHOLD * 2 + 12345];
+		java.util.Random random = new java.util.Random(3);
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) Math.min(255, (int) (-Math.log(random.nextDouble()) * 20));
+		java.io.File file = java.io.File.createTempFile("count", ".bin");
+		file.deleteOnExit();
+		java.nio.file.Files.write(file.toPath(), data);
+		CharCounter serial = new CharCounter();
+		serial.countAll(new ByteArrayInputStream(data));
+		CharCounter parallel = new CharCounter();
+		assertEquals(parallel.countFile(file.getPath()), data.length);
+		assertArrayEquals(serial.toArray(), parallel.toArray());
+		file.delete();
+	}
+
+	@Test
+	public void testConcurrentCounter() throws Exception {
+		final ConcurrentCharCounter cc = new ConcurrentCharCounter();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 100000; i++)
+					cc.add((id + i) % 3 == 0 ? 'a' : 'b');
+			});
+			threads[t].start();
+		}
+		for (int i = 0; i < 100; i++) {
+			long[] snapshot = cc.snapshot();
+			assertTrue(snapshot['a'] + snapshot['b'] <= 800000);
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(cc.getCount('a') + cc.getCount('b'), 800000);
+		Map<Integer, Integer> map = cc.getTable();
+		assertEquals(map.size(), 2);
+		cc.set('a', 5);
+		assertEquals(cc.getCount('a'), 5);
+		assertEquals(cc.getTable().get((int) 'b').intValue(), cc.getCount('b'));
+		cc.clear();
+		assertEquals(cc.getCount('b'), 0);
+	}
+
+	@Test
+	public void testConcurrentCounterCountAll() throws IOException {
+		ICharCounter cc = new ConcurrentCharCounter();
+		cc.add('z');
+		cc.countAll(new ByteArrayInputStream("teststr".getBytes("UTF-8")));
+		assertEquals(cc.getCount('t'), 3);
+		assertEquals(cc.getCount('z'), 0);
+	}
+
+	@Test
+	public void testConcurrentCounterAddWhenNotValid() {
+		ICharCounter cc = new ConcurrentCharCounter();
+		for (int ch : new int[] { 256, -1 }) {
+			try {
+				cc.add(ch);
+				fail("added " + ch);
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				cc.set(ch, 5);
+				fail("set " + ch);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		assertEquals(cc.getTable().size(), 0);
+	}
+
 }
@@ -0,0 +1,348 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Huffman model for CSV files and other delimited records, whose columns
+ * each have statistics of their own: timestamps, a few repeated names, free
+ * text. The chunks of every column go to a stream of their own and each
+ * stream is coded with its own table in the layout of <code>SizedHuff</code>.
+ * <P>
+ * A chunk belongs to the column it is read in, the delimiter and newline
+ * ending a field included. Reading starts in column 0, moves to the next
+ * column after a delimiter and back to 0 after a newline; chunks past
+ * <code>MAX_COLUMNS - 1</code> delimiters stay in the last column. The
+ * decoder walks the columns the same way, taking each chunk from the stream
+ * of the column it is in, so any input, quoted fields and ragged rows
+ * included, comes back exactly. The column carries over from one block to
+ * the next, so a stream holds whole fields across blocks and one column can
+ * be decoded without the others with {@link #decodeColumn}.
+ * <P>
+ * File layout:
+ *
+ * <pre>
+ * int COLUMN_MAGIC
+ * int delimiter
+ * for every block:
+ *     int length            chunks in the block, at most BLOCK_SIZE
+ *     int columns           streams in the block
+ *     int bytes             size of each stream, one per column
+ *     streams               in the SizedHuff layout, one per column
+ * int 0
+ * </pre>
+ */
+public class ColumnHuff implements IHuffModel {
+
+	/** Largest number of chunks in a block. */
+	public static final int BLOCK_SIZE = 1 << 20;
+
+	/** Most columns a record is split into. */
+	public static final int MAX_COLUMNS = 64;
+
+	/** Delimiter used by the default constructor. */
+	public static final int DEFAULT_DELIMITER = ',';
+
+	private final int delimiter;
+
+	public ColumnHuff() {
+		this(DEFAULT_DELIMITER);
+	}
+
+	/**
+	 * @param delimiter
+	 *            is the chunk between fields, e.g., ',', '|' or '\t'
+	 */
+	public ColumnHuff(int delimiter) {
+		if (delimiter < 0 || delimiter >= ALPH_SIZE || delimiter == '\n')
+			throw new IllegalArgumentException("bad delimiter " + delimiter);
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * Write a compressed version of a file. If force is false and the result
+	 * is not smaller than the input, the output is removed.
+	 *
+	 * @param inFile
+	 *            is the file to be compressed
+	 * @param outFile
+	 *            is the file to be written with compressed data
+	 * @param force
+	 *            indicates if compression forced
+	 * @return the size of the compressed file in bits, 0 if not written
+	 */
+	public int write(String inFile, String outFile, boolean force) {
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(inFile));
+			BitOutputStream out = new BitOutputStream(outFile);
+			long size;
+			try {
+				size = encode(in, out);
+			} finally {
+				in.close();
+				out.close();
+			}
+			if (!force && size >= new File(inFile).length() * 8) {
+				new File(outFile).delete();
+				return 0;
+			}
+			return (int) size;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	/**
+	 * Compress a stream.
+	 *
+	 * @param in
+	 *            is the data to compress
+	 * @param out
+	 *            receives the compressed data
+	 * @return the number of bits written
+	 * @throws IOException
+	 *             if reading or writing fails
+	 */
+	public long encode(InputStream in, BitOutputStream out) throws IOException {
+		out.write(BITS_PER_INT, COLUMN_MAGIC);
+		out.write(BITS_PER_INT, delimiter);
+		long size = 2 * BITS_PER_INT;
+		byte[] block = new byte[BLOCK_SIZE];
+		byte[][] fields = new byte[MAX_COLUMNS][];
+		int[] lengths = new int[MAX_COLUMNS];
+		int column = 0;
+		int n;
+		while ((n = readFully(in, block, BLOCK_SIZE)) > 0) {
+			Arrays.fill(lengths, 0);
+			int columns = 0;
+			for (int i = 0; i < n; i++) {
+				byte b = block[i];
+				if (fields[column] == null)
+					fields[column] = new byte[HuffContext.BUFFER_SIZE];
+				else if (lengths[column] == fields[column].length)
+					fields[column] = Arrays.copyOf(fields[column], Math.min(BLOCK_SIZE, lengths[column] * 2));
+				fields[column][lengths[column]++] = b;
+				columns = Math.max(columns, column + 1);
+				column = next(column, b & 0xff, delimiter);
+			}
+			byte[][] streams = new byte[columns][];
+			for (int c = 0; c < columns; c++)
+				streams[c] = encodeColumn(fields[c], lengths[c]);
+			out.write(BITS_PER_INT, n);
+			out.write(BITS_PER_INT, columns);
+			for (int c = 0; c < columns; c++)
+				out.write(BITS_PER_INT, streams[c].length);
+			size += (2 + columns) * BITS_PER_INT;
+			for (int c = 0; c < columns; c++) {
+				out.write(streams[c], 0, streams[c].length);
+				size += streams[c].length * 8L;
+			}
+		}
+		out.write(BITS_PER_INT, 0);
+		return size + BITS_PER_INT;
+	}
+
+	/**
+	 * @return the column the chunk after ch is read in
+	 */
+	private static int next(int column, int ch, int delimiter) {
+		if (ch == '\n')
+			return 0;
+		if (ch == delimiter && column < MAX_COLUMNS - 1)
+			return column + 1;
+		return column;
+	}
+
+	/**
+	 * Code the chunks of one column of a block with a table of their own.
+	 */
+	private static byte[] encodeColumn(byte[] data, int length) throws IOException {
+		CharCounter cc = new CharCounter();
+		cc.addAll(data, 0, length);
+		HuffCodec codec = length == 0 ? null : HuffCodec.fromChunkCounts(cc.toArray());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BitOutputStream bits = new BitOutputStream(bytes);
+		SizedHuff.encode(codec, length, new ByteArrayInputStream(data, 0, length), bits);
+		bits.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Uncompress a file written by {@link #write(String, String, boolean)}.
+	 *
+	 * @param inFile
+	 *            is the compressed file to be uncompressed
+	 * @param outFile
+	 *            is where the uncompressed bits will be written
+	 * @return the size of the uncompressed file in bits
+	 */
+	public int uncompress(String inFile, String outFile) {
+		BitInputStream in = new BitInputStream(inFile);
+		BitOutputStream out = new BitOutputStream(outFile);
+		try {
+			return (int) decode(in, out) * 8;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Uncompress a stream; the delimiter is read from the stream.
+	 *
+	 * @param in
+	 *            is positioned at the magic number
+	 * @param out
+	 *            receives the uncompressed data
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if the input is not in this format or is damaged
+	 */
+	public static long decode(BitInputStream in, OutputStream out) throws IOException {
+		int delimiter = readHeader(in);
+		byte[] block = new byte[BLOCK_SIZE];
+		int[] used = new int[MAX_COLUMNS];
+		int column = 0;
+		long size = 0;
+		int n;
+		while ((n = readLength(in)) > 0) {
+			int[] sizes = readSizes(in);
+			byte[][] fields = new byte[sizes.length][];
+			for (int c = 0; c < sizes.length; c++)
+				fields[c] = decodeColumn(in, sizes[c]);
+			Arrays.fill(used, 0);
+			for (int i = 0; i < n; i++) {
+				if (column >= fields.length || used[column] == fields[column].length)
+					throw new IOException("column " + column + " too short");
+				byte b = fields[column][used[column]++];
+				block[i] = b;
+				column = next(column, b & 0xff, delimiter);
+			}
+			out.write(block, 0, n);
+			size += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Decode the fields of one column only, skipping the streams of the
+	 * others. Each field is written followed by a newline; fields of the last
+	 * column keep the delimiters of the fields merged into it.
+	 *
+	 * @param in
+	 *            is positioned at the magic number
+	 * @param column
+	 *            is the column to decode, from 0
+	 * @param out
+	 *            receives the fields
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if the input is not in this format or is damaged
+	 */
+	public static long decodeColumn(BitInputStream in, int column, OutputStream out) throws IOException {
+		if (column < 0 || column >= MAX_COLUMNS)
+			throw new IllegalArgumentException("bad column " + column);
+		int delimiter = readHeader(in);
+		long size = 0;
+		boolean open = false;
+		while (readLength(in) > 0) {
+			int[] sizes = readSizes(in);
+			for (int c = 0; c < sizes.length; c++) {
+				if (c != column) {
+					skip(in, sizes[c]);
+					continue;
+				}
+				byte[] fields = decodeColumn(in, sizes[c]);
+				if (column < MAX_COLUMNS - 1) {
+					for (int i = 0; i < fields.length; i++) {
+						if ((fields[i] & 0xff) == delimiter)
+							fields[i] = '\n';
+					}
+				}
+				out.write(fields);
+				size += fields.length;
+				if (fields.length > 0)
+					open = fields[fields.length - 1] != '\n';
+			}
+		}
+		// the last field of the data may have no end of its own
+		if (open) {
+			out.write('\n');
+			size++;
+		}
+		return size;
+	}
+
+	private static int readHeader(BitInputStream in) throws IOException {
+		if (in.read(BITS_PER_INT) != COLUMN_MAGIC)
+			throw new IOException("magic number not right");
+		int delimiter = in.read(BITS_PER_INT);
+		if (delimiter < 0 || delimiter >= ALPH_SIZE || delimiter == '\n')
+			throw new IOException("bad delimiter");
+		return delimiter;
+	}
+
+	private static int readLength(BitInputStream in) throws IOException {
+		int n = in.read(BITS_PER_INT);
+		if (n == -1)
+			throw new IOException("unexpected end of input file");
+		if (n < 0 || n > BLOCK_SIZE)
+			throw new IOException("bad block length");
+		return n;
+	}
+
+	private static int[] readSizes(BitInputStream in) throws IOException {
+		int columns = in.read(BITS_PER_INT);
+		if (columns < 1 || columns > MAX_COLUMNS)
+			throw new IOException("bad number of columns");
+		int[] sizes = new int[columns];
+		for (int c = 0; c < columns; c++) {
+			sizes[c] = in.read(BITS_PER_INT);
+			if (sizes[c] < 0)
+				throw new IOException("bad stream size");
+		}
+		return sizes;
+	}
+
+	/**
+	 * Decode the stream of one column of a block.
+	 */
+	private static byte[] decodeColumn(BitInputStream in, int bytes) throws IOException {
+		byte[] stream = new byte[bytes];
+		if (readFully(in, stream, bytes) < bytes)
+			throw new IOException("unexpected end of input file");
+		BitInputStream bits = new BitInputStream(new ByteArrayInputStream(stream));
+		long length = SizedHuff.readLength(bits);
+		if (length > BLOCK_SIZE)
+			throw new IOException("bad column length");
+		ByteArrayOutputStream fields = new ByteArrayOutputStream((int) length);
+		SizedHuff.decode(bits, length, fields);
+		return fields.toByteArray();
+	}
+
+	private static void skip(InputStream in, long bytes) throws IOException {
+		while (bytes > 0) {
+			long n = in.skip(bytes);
+			if (n <= 0)
+				throw new IOException("unexpected end of input file");
+			bytes -= n;
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] buf, int len) throws IOException {
+		int n = 0;
+		int r;
+		while (n < len && (r = in.read(buf, n, len - n)) != -1)
+			n += r;
+		return n;
+	}
+}
@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A chunk counter that many threads may update at once, e.g., request threads
+ * feeding live traffic into a model that a background thread rebuilds from
+ * time to time.
+ * <P>
+ * Every thread counts into its own histogram, so <code>add</code> never
+ * contends with another thread and needs no atomic read-modify-write: the
+ * owning thread is the only writer and publishes each count with an ordered
+ * store. Readers sum the histograms of all threads that have counted. Every
+ * add touches a single count, so a snapshot always equals the result of some
+ * set of completed adds, and adds finished before the snapshot started are
+ * always in it.
+ * <P>
+ * <code>clear</code> and <code>set</code> start a new generation of
+ * histograms; adds running at the same moment may land in the old one and be
+ * lost.
+ */
+public class ConcurrentCharCounter implements ICharCounter, IHuffConstants {
+
+	/** The histograms of one generation, one per counting thread. */
+	private static final class Generation {
+		final ConcurrentLinkedQueue<Cell> cells = new ConcurrentLinkedQueue<Cell>();
+	}
+
+	/** One thread's histogram. */
+	private static final class Cell {
+		final Generation generation;
+		final AtomicLongArray counts = new AtomicLongArray(ALPH_SIZE);
+
+		Cell(Generation generation) {
+			this.generation = generation;
+		}
+	}
+
+	private volatile Generation generation = new Generation();
+	private final ThreadLocal<Cell> local = new ThreadLocal<Cell>();
+
+	/**
+	 * Returns the count associated with specified character.
+	 * @param ch is the chunk/character for which count is requested
+	 * @return count of specified chunk, at most Integer.MAX_VALUE
+	 * @throws IllegalArgumentException if ch isn't a valid chunk/character
+	 */
+	public int getCount(int ch) {
+		check(ch);
+		long sum = 0;
+		for (Cell cell : generation.cells)
+			sum += cell.counts.get(ch);
+		return (int) Math.min(sum, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Initialize state by counting bits/chunks in a stream. Counts of other
+	 * threads are cleared too.
+	 * @param stream is source of data
+	 * @return count of all chunks/read
+	 * @throws IOException if reading fails
+	 */
+	public int countAll(InputStream stream) throws IOException {
+		clear();
+		CharCounter cc = new CharCounter();
+		int chunk = cc.countAll(stream);
+		AtomicLongArray counts = cell().counts;
+		for (int ch = 0; ch < ALPH_SIZE; ch++) {
+			int n = cc.getCount(ch);
+			if (n != 0)
+				counts.lazySet(ch, counts.get(ch) + n);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Update state to record one occurrence of specified chunk/character.
+	 * Never blocks or contends with other threads.
+	 * @param i is the chunk being recorded
+	 */
+	public void add(int i) {
+		check(i);
+		AtomicLongArray counts = cell().counts;
+		// this thread is the only writer of its cell
+		counts.lazySet(i, counts.get(i) + 1);
+	}
+
+	/**
+	 * Set the value/count associated with a specific character/chunk. Other
+	 * counts are kept.
+	 * @param i is the chunk/character whose count is specified
+	 * @param value is # occurrences of specified chunk
+	 */
+	public synchronized void set(int i, int value) {
+		check(i);
+		long[] counts = snapshot();
+		counts[i] = value;
+		Generation next = new Generation();
+		Cell cell = new Cell(next);
+		for (int ch = 0; ch < ALPH_SIZE; ch++)
+			cell.counts.set(ch, counts[ch]);
+		next.cells.add(cell);
+		generation = next;
+	}
+
+	private static void check(int ch) {
+		if (ch > 255) throw new IllegalArgumentException("illegal argument (> 255)");
+		if (ch < 0) throw new IllegalArgumentException("illegal argument (< 0)");
+	}
+
+	/**
+	 * All counts cleared to zero.
+	 */
+	public synchronized void clear() {
+		generation = new Generation();
+	}
+
+	/**
+	 * @return a map of every chunk with a non-zero count to its count
+	 */
+	public Map<Integer, Integer> getTable() {
+		long[] counts = snapshot();
+		Map<Integer, Integer> table = new HashMap<Integer, Integer>();
+		for (int ch = 0; ch < ALPH_SIZE; ch++) {
+			if (counts[ch] != 0)
+				table.put(ch, (int) Math.min(counts[ch], Integer.MAX_VALUE));
+		}
+		return table;
+	}
+
+	/**
+	 * Sum the histograms of every thread.
+	 *
+	 * @return the count of each chunk, indexed by chunk
+	 */
+	public long[] snapshot() {
+		long[] counts = new long[ALPH_SIZE];
+		for (Cell cell : generation.cells) {
+			for (int ch = 0; ch < ALPH_SIZE; ch++)
+				counts[ch] += cell.counts.get(ch);
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the calling thread's histogram in the current generation
+	 */
+	private Cell cell() {
+		Generation current = generation;
+		Cell cell = local.get();
+		if (cell == null || cell.generation != current) {
+			cell = new Cell(current);
+			current.cells.add(cell);
+			local.set(cell);
+		}
+		return cell;
+	}
+}
@@ -0,0 +1,235 @@
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Order-1 Huffman model: each chunk is coded with the table of the cluster
+ * its previous chunk belongs to, see {@link ContextModel}. The chunk before
+ * the first one is taken to be 0.
+ * <P>
+ * File layout:
+ *
+ * <pre>
+ * int CONTEXT_MAGIC
+ * ContextModel header
+ * pad to a byte boundary
+ * for every block:
+ *     int count             chunks in the block, at most BLOCK_SIZE
+ *     int payloadBytes
+ *     codes, padded to a byte boundary
+ * int 0
+ * </pre>
+ */
+public class ContextHuff implements IHuffModel {
+
+	/** Largest number of chunks in a block. */
+	public static final int BLOCK_SIZE = HuffContext.BUFFER_SIZE;
+
+	private final int maxClusters;
+
+	public ContextHuff() {
+		this(ContextModel.MAX_CLUSTERS);
+	}
+
+	/**
+	 * @param maxClusters
+	 *            is the most code tables to use, 1 to
+	 *            ContextModel.MAX_CLUSTERS
+	 */
+	public ContextHuff(int maxClusters) {
+		if (maxClusters < 1 || maxClusters > ContextModel.MAX_CLUSTERS)
+			throw new IllegalArgumentException("maxClusters must be 1 to " + ContextModel.MAX_CLUSTERS);
+		this.maxClusters = maxClusters;
+	}
+
+	/**
+	 * Write a compressed version of a file. If force is false, compression
+	 * only occurs if it saves space.
+	 *
+	 * @param inFile
+	 *            is the file to be compressed
+	 * @param outFile
+	 *            is the file to be written with compressed data
+	 * @param force
+	 *            indicates if compression forced
+	 * @return the size of the compressed file in bits, 0 if not written
+	 */
+	public int write(String inFile, String outFile, boolean force) {
+		try {
+			int[] pairs = new int[ALPH_SIZE * ALPH_SIZE];
+			long originalSize = countPairs(inFile, pairs) * 8;
+			ContextModel model = ContextModel.fromCounts(pairs, maxClusters);
+			long blocks = (originalSize / 8 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			long estimate = BITS_PER_INT + model.headerSize() + 8 + model.compressedSize(pairs)
+					+ blocks * (2 * BITS_PER_INT + 8) + BITS_PER_INT;
+			if (!force && estimate >= originalSize)
+				return 0;
+			InputStream in = new BufferedInputStream(new FileInputStream(inFile));
+			BitOutputStream out = new BitOutputStream(outFile);
+			try {
+				return (int) encode(model, in, out);
+			} finally {
+				in.close();
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	private static long countPairs(String inFile, int[] pairs) throws IOException {
+		InputStream in = new FileInputStream(inFile);
+		try {
+			byte[] buf = HuffContext.get().in;
+			long size = 0;
+			int prev = 0;
+			int n;
+			while ((n = in.read(buf, 0, buf.length)) != -1) {
+				prev = ContextModel.countPairs(pairs, prev, buf, 0, n);
+				size += n;
+			}
+			return size;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Code a stream with an order-1 model.
+	 *
+	 * @param model
+	 *            holds the code tables; every pair in the stream must have a
+	 *            code
+	 * @param in
+	 *            is the data to compress
+	 * @param out
+	 *            receives the header and blocks
+	 * @return the number of bits written
+	 * @throws IOException
+	 *             if reading or writing fails
+	 */
+	public static long encode(ContextModel model, InputStream in, BitOutputStream out) throws IOException {
+		out.write(BITS_PER_INT, CONTEXT_MAGIC);
+		int header = BITS_PER_INT + model.write(out);
+		out.flush();
+		long size = (header + 7) / 8 * 8;
+		HuffCodec[] byContext = new HuffCodec[ALPH_SIZE];
+		for (int ctx = 0; ctx < ALPH_SIZE; ctx++)
+			byContext[ctx] = model.codec(ctx);
+		byte[] block = HuffContext.get().in;
+		BitArrayWriter payload = new BitArrayWriter(BLOCK_SIZE);
+		int prev = 0;
+		int n;
+		while ((n = readFully(in, block, BLOCK_SIZE)) > 0) {
+			payload.reset();
+			for (int i = 0; i < n; i++) {
+				int ch = block[i] & 0xff;
+				HuffCodec codec = byContext[prev];
+				int len = codec.codeLength(ch);
+				if (len < 0)
+					throw new IllegalArgumentException("no code for chunk " + ch + " after " + prev);
+				payload.write(len, codec.code(ch));
+				prev = ch;
+			}
+			payload.align();
+			out.write(BITS_PER_INT, n);
+			out.write(BITS_PER_INT, payload.size());
+			out.write(payload.data(), 0, payload.size());
+			size += 2 * BITS_PER_INT + payload.size() * 8L;
+		}
+		out.write(BITS_PER_INT, 0);
+		return size + BITS_PER_INT;
+	}
+
+	/**
+	 * Uncompress a file written by {@link #write(String, String, boolean)}.
+	 *
+	 * @param inFile
+	 *            is the compressed file to be uncompressed
+	 * @param outFile
+	 *            is where the uncompressed bits will be written
+	 * @return the size of the uncompressed file in bits
+	 */
+	public int uncompress(String inFile, String outFile) {
+		BitInputStream in = new BitInputStream(inFile);
+		BitOutputStream out = new BitOutputStream(outFile);
+		try {
+			return (int) decode(in, out) * 8;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Decode an order-1 file.
+	 *
+	 * @param in
+	 *            is positioned at the magic number
+	 * @param out
+	 *            receives the decoded chunks
+	 * @return the number of chunks written
+	 * @throws IOException
+	 *             if the input is not in this format or is damaged
+	 */
+	public static long decode(BitInputStream in, OutputStream out) throws IOException {
+		if (in.read(BITS_PER_INT) != CONTEXT_MAGIC)
+			throw new IOException("magic number not right");
+		ContextModel model = ContextModel.read(in);
+		in.align();
+		// a cluster used for a single chunk has a one-leaf tree and no table
+		HuffDecodeTable[] byContext = new HuffDecodeTable[ALPH_SIZE];
+		int[] only = new int[ALPH_SIZE];
+		for (int ctx = 0; ctx < ALPH_SIZE; ctx++) {
+			HuffCodec codec = model.codec(ctx);
+			int root = codec.tree().root();
+			if (root < 0)
+				only[ctx] = ~root;
+			else
+				byContext[ctx] = codec.decodeTable();
+		}
+		byte[] block = HuffContext.get().out;
+		byte[] payload = new byte[BLOCK_SIZE];
+		BitArrayReader bits = new BitArrayReader(payload, 0, 0);
+		int prev = 0;
+		long size = 0;
+		int n;
+		while ((n = in.read(BITS_PER_INT)) != 0) {
+			int payloadBytes = in.read(BITS_PER_INT);
+			if (n < 0 || n > BLOCK_SIZE || payloadBytes < 0)
+				throw new IOException("bad block header");
+			if (payload.length < payloadBytes)
+				payload = new byte[payloadBytes];
+			if (readFully(in, payload, payloadBytes) < payloadBytes)
+				throw new IOException("unexpected end of input file");
+			bits.reset(payload, 0, payloadBytes);
+			for (int i = 0; i < n; i++) {
+				HuffDecodeTable table = byContext[prev];
+				int ch = table == null ? only[prev] : table.next(bits);
+				if (ch >= ALPH_SIZE)
+					throw new IOException("unexpected PSEUDO_EOF");
+				block[i] = (byte) ch;
+				prev = ch;
+			}
+			if (bits.overrun())
+				throw new IOException("unexpected end of input file");
+			out.write(block, 0, n);
+			size += n;
+		}
+		return size;
+	}
+
+	private static int readFully(InputStream in, byte[] buf, int len) throws IOException {
+		int n = 0;
+		int r;
+		while (n < len && (r = in.read(buf, n, len - n)) != -1)
+			n += r;
+		return n;
+	}
+}
@@ -0,0 +1,315 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Order-1 code tables: the code for a chunk depends on the chunk before it.
+ * The 256 previous-chunk contexts are grouped into at most MAX_CLUSTERS
+ * clusters of contexts with similar statistics, and every cluster has its
+ * own Huffman tree, so the header stays small while most of the gain of
+ * per-context tables is kept. The model is immutable and may be shared
+ * between threads.
+ * <P>
+ * Header layout:
+ *
+ * <pre>
+ * int clusters                 1 to MAX_CLUSTERS
+ * 256 cluster numbers          CLUSTER_BITS each, only if clusters > 1
+ * one tree per cluster
+ * </pre>
+ */
+public final class ContextModel implements IHuffConstants {
+
+	/** Largest number of code tables. */
+	public static final int MAX_CLUSTERS = 32;
+
+	/** Bits in a cluster number of the header. */
+	static final int CLUSTER_BITS = 5;
+
+	// cluster of each context
+	private final int[] clusterOf;
+	private final HuffCodec[] codecs;
+
+	private ContextModel(int[] clusterOf, HuffCodec[] codecs) {
+		this.clusterOf = clusterOf;
+		this.codecs = codecs;
+	}
+
+	/**
+	 * Count the chunk pairs of a region of an array.
+	 *
+	 * @param pairs
+	 *            holds ALPH_SIZE * ALPH_SIZE counts, indexed by previous chunk
+	 *            * ALPH_SIZE + chunk; updated
+	 * @param prev
+	 *            is the chunk before the region
+	 * @param data
+	 *            holds the chunks
+	 * @param off
+	 *            is the first chunk counted
+	 * @param len
+	 *            is the number of chunks counted
+	 * @return the last chunk of the region, or prev if it is empty
+	 */
+	public static int countPairs(int[] pairs, int prev, byte[] data, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			int ch = data[i] & 0xff;
+			pairs[prev << 8 | ch]++;
+			prev = ch;
+		}
+		return prev;
+	}
+
+	/**
+	 * Build the model that codes the counted pairs smallest, trying 1, 2, 4
+	 * and up to <code>maxClusters</code> clusters.
+	 *
+	 * @param pairs
+	 *            holds the pair counts, as filled by countPairs
+	 * @param maxClusters
+	 *            is the most code tables to use, 1 to MAX_CLUSTERS
+	 * @return the model
+	 */
+	public static ContextModel fromCounts(int[] pairs, int maxClusters) {
+		if (maxClusters < 1 || maxClusters > MAX_CLUSTERS)
+			throw new IllegalArgumentException("maxClusters must be 1 to " + MAX_CLUSTERS);
+		int[][] hist = new int[ALPH_SIZE][ALPH_SIZE];
+		for (int ctx = 0; ctx < ALPH_SIZE; ctx++)
+			System.arraycopy(pairs, ctx * ALPH_SIZE, hist[ctx], 0, ALPH_SIZE);
+		ContextModel best = null;
+		long bestSize = Long.MAX_VALUE;
+		for (int[] clusterOf : cluster(hist, maxClusters)) {
+			ContextModel model = build(hist, clusterOf);
+			long size = model.headerSize() + model.compressedSize(pairs);
+			if (size < bestSize) {
+				best = model;
+				bestSize = size;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Group the contexts bottom up: start with a cluster per context seen and
+	 * keep merging the two clusters whose merge adds the fewest bits to the
+	 * ideal coded size, like the histogram clustering of brotli.
+	 *
+	 * @return the cluster of every context for 1, 2, 4 and up to maxClusters
+	 *         clusters, or fewer if fewer contexts were seen
+	 */
+	private static List<int[]> cluster(int[][] hist, int maxClusters) {
+		int[] clusterOf = new int[ALPH_SIZE];
+		// merged counts and ideal size of each cluster, null once merged away
+		long[][] counts = new long[ALPH_SIZE][];
+		double[] bits = new double[ALPH_SIZE];
+		int clusters = 0;
+		for (int ctx = 0; ctx < ALPH_SIZE; ctx++) {
+			long total = 0;
+			long[] c = new long[ALPH_SIZE];
+			for (int ch = 0; ch < ALPH_SIZE; ch++)
+				total += c[ch] = hist[ctx][ch];
+			if (total == 0) {
+				clusterOf[ctx] = -1;
+				continue;
+			}
+			counts[ctx] = c;
+			bits[ctx] = idealBits(c);
+			clusterOf[ctx] = ctx;
+			clusters++;
+		}
+		// contexts not seen share the first cluster
+		int first = 0;
+		while (first < ALPH_SIZE - 1 && counts[first] == null)
+			first++;
+		for (int ctx = 0; ctx < ALPH_SIZE; ctx++) {
+			if (clusterOf[ctx] < 0)
+				clusterOf[ctx] = first;
+		}
+		// cost[a][b], a < b, is the bits added by merging clusters a and b
+		double[][] cost = new double[ALPH_SIZE][ALPH_SIZE];
+		for (int a = 0; a < ALPH_SIZE; a++) {
+			for (int b = a + 1; b < ALPH_SIZE && counts[a] != null; b++) {
+				if (counts[b] != null)
+					cost[a][b] = mergeCost(counts, bits, a, b);
+			}
+		}
+		List<int[]> result = new ArrayList<int[]>();
+		for (int k = maxClusters; clusters > 0; clusters--) {
+			if (clusters <= k) {
+				result.add(renumber(clusterOf.clone()));
+				k = Math.min(k, clusters) / 2;
+				if (k == 0)
+					break;
+			}
+			int bestA = -1, bestB = -1;
+			double least = Double.MAX_VALUE;
+			for (int a = 0; a < ALPH_SIZE; a++) {
+				for (int b = a + 1; b < ALPH_SIZE && counts[a] != null; b++) {
+					if (counts[b] != null && cost[a][b] < least) {
+						least = cost[a][b];
+						bestA = a;
+						bestB = b;
+					}
+				}
+			}
+			// merge b into a
+			for (int ch = 0; ch < ALPH_SIZE; ch++)
+				counts[bestA][ch] += counts[bestB][ch];
+			counts[bestB] = null;
+			bits[bestA] += bits[bestB] + least;
+			for (int ctx = 0; ctx < ALPH_SIZE; ctx++) {
+				if (clusterOf[ctx] == bestB)
+					clusterOf[ctx] = bestA;
+			}
+			for (int c = 0; c < ALPH_SIZE; c++) {
+				if (c != bestA && counts[c] != null) {
+					double merged = mergeCost(counts, bits, Math.min(c, bestA), Math.max(c, bestA));
+					cost[Math.min(c, bestA)][Math.max(c, bestA)] = merged;
+				}
+			}
+		}
+		if (result.isEmpty())
+			result.add(new int[ALPH_SIZE]);
+		return result;
+	}
+
+	private static double mergeCost(long[][] counts, double[] bits, int a, int b) {
+		long[] merged = new long[ALPH_SIZE];
+		for (int ch = 0; ch < ALPH_SIZE; ch++)
+			merged[ch] = counts[a][ch] + counts[b][ch];
+		return idealBits(merged) - bits[a] - bits[b];
+	}
+
+	// bits needed to code counts with ideal code lengths
+	private static double idealBits(long[] counts) {
+		long total = 0;
+		for (long n : counts)
+			total += n;
+		double bits = 0;
+		for (long n : counts) {
+			if (n != 0)
+				bits += n * Math.log((double) total / n);
+		}
+		return bits / Math.log(2);
+	}
+
+	// number clusters in order of first use
+	private static int[] renumber(int[] clusterOf) {
+		int[] number = new int[ALPH_SIZE];
+		Arrays.fill(number, -1);
+		int next = 0;
+		for (int ctx = 0; ctx < ALPH_SIZE; ctx++) {
+			if (number[clusterOf[ctx]] < 0)
+				number[clusterOf[ctx]] = next++;
+			clusterOf[ctx] = number[clusterOf[ctx]];
+		}
+		return clusterOf;
+	}
+
+	private static ContextModel build(int[][] hist, int[] clusterOf) {
+		int clusters = 0;
+		for (int c : clusterOf)
+			clusters = Math.max(clusters, c + 1);
+		int[][] merged = new int[clusters][ALPH_SIZE];
+		for (int ctx = 0; ctx < ALPH_SIZE; ctx++) {
+			for (int ch = 0; ch < ALPH_SIZE; ch++)
+				merged[clusterOf[ctx]][ch] += hist[ctx][ch];
+		}
+		HuffCodec[] codecs = new HuffCodec[clusters];
+		for (int c = 0; c < clusters; c++)
+			codecs[c] = HuffCodec.fromCounts(merged[c]);
+		return new ContextModel(clusterOf, codecs);
+	}
+
+	/**
+	 * Read a header written by {@link #write(BitOutputStream)}.
+	 *
+	 * @param in
+	 *            is positioned at the header
+	 * @return the model
+	 * @throws IOException
+	 *             if the header is damaged or reading fails
+	 */
+	public static ContextModel read(BitInputStream in) throws IOException {
+		int clusters = in.read(BITS_PER_INT);
+		if (clusters < 1 || clusters > MAX_CLUSTERS)
+			throw new IOException("bad number of clusters");
+		int[] clusterOf = new int[ALPH_SIZE];
+		if (clusters > 1) {
+			for (int ctx = 0; ctx < ALPH_SIZE; ctx++) {
+				clusterOf[ctx] = in.read(CLUSTER_BITS);
+				if (clusterOf[ctx] < 0)
+					throw new IOException("unexpected end of input file");
+				if (clusterOf[ctx] >= clusters)
+					throw new IOException("cluster out of range");
+			}
+		}
+		HuffCodec[] codecs = new HuffCodec[clusters];
+		for (int c = 0; c < clusters; c++)
+			codecs[c] = new HuffCodec(HuffArrayTree.read(in));
+		return new ContextModel(clusterOf, codecs);
+	}
+
+	/**
+	 * Write the header.
+	 *
+	 * @param out
+	 *            receives the header
+	 * @return the number of bits written
+	 */
+	public int write(BitOutputStream out) {
+		out.write(BITS_PER_INT, codecs.length);
+		if (codecs.length > 1) {
+			for (int ctx = 0; ctx < ALPH_SIZE; ctx++)
+				out.write(CLUSTER_BITS, clusterOf[ctx]);
+		}
+		for (HuffCodec codec : codecs)
+			codec.tree().write(out);
+		return headerSize();
+	}
+
+	/**
+	 * @return the number of bits in the header
+	 */
+	public int headerSize() {
+		int size = BITS_PER_INT + (codecs.length > 1 ? ALPH_SIZE * CLUSTER_BITS : 0);
+		for (HuffCodec codec : codecs)
+			size += codec.tree().size();
+		return size;
+	}
+
+	/**
+	 * @param pairs
+	 *            holds the pair counts, as filled by countPairs
+	 * @return the number of bits needed to code the pairs
+	 */
+	public long compressedSize(int[] pairs) {
+		long size = 0;
+		for (int ctx = 0; ctx < ALPH_SIZE; ctx++) {
+			HuffCodec codec = codecs[clusterOf[ctx]];
+			for (int ch = 0; ch < ALPH_SIZE; ch++) {
+				int n = pairs[ctx << 8 | ch];
+				if (n != 0)
+					size += (long) n * codec.codeLength(ch);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of code tables
+	 */
+	public int clusters() {
+		return codecs.length;
+	}
+
+	/**
+	 * @param prev
+	 *            is the previous chunk
+	 * @return the codec for the chunk after prev
+	 */
+	public HuffCodec codec(int prev) {
+		return codecs[clusterOf[prev]];
+	}
+}
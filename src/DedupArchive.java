@@ -0,0 +1,407 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Batch archive of many files that stores each distinct piece of content
+ * once. Files are cut into content-defined pieces with a Gear rolling hash,
+ * so an insertion or deletion only changes the pieces around it and
+ * near-duplicate files share most of their pieces. (Deduplication tools call
+ * these pieces chunks; here a chunk is a byte.) Each piece is identified by
+ * its SHA-256 digest; only the first copy is Huffman coded and stored, as a
+ * segment of its own, so coding time and archive size follow the amount of
+ * distinct data rather than the total. Each file is recorded as its list of
+ * pieces.
+ * <P>
+ * File layout:
+ *
+ * <pre>
+ * int DEDUP_MAGIC
+ * pieces, back to back: a segment as HuffBuffers writes it, or the raw bytes
+ *     if coding does not make the piece smaller
+ * int pieces
+ * for every piece:
+ *     long offset, int length, int storedLength, byte raw, 32 bytes SHA-256
+ * int files
+ * for every file:
+ *     UTF name, long length, int pieces, the index of each piece
+ * long offset of the piece table
+ * </pre>
+ */
+public final class DedupArchive implements IHuffConstants {
+
+	/** Fewest bytes in a piece, except the last piece of a file. */
+	public static final int MIN_PIECE = 1 << 12;
+
+	/** Most bytes in a piece. */
+	public static final int MAX_PIECE = 1 << 16;
+
+	// a boundary where the top bits of the hash are zero, about every 16 KiB
+	// after MIN_PIECE
+	private static final long BOUNDARY_MASK = -1L << (64 - 14);
+
+	private static final int DIGEST_BYTES = 32;
+
+	private static final long[] GEAR = new long[ALPH_SIZE];
+
+	static {
+		// fixed seed: boundaries must not change between runs
+		Random random = new Random(0x5eed);
+		for (int i = 0; i < ALPH_SIZE; i++)
+			GEAR[i] = random.nextLong();
+	}
+
+	private final String archiveFile;
+	private final long[] offsets;
+	private final int[] lengths;
+	private final int[] storedLengths;
+	private final boolean[] raw;
+	private final byte[][] digests;
+	// file name to its length and pieces, in the order written
+	private final Map<String, long[]> fileLengths;
+	private final Map<String, int[]> filePieces;
+
+	private DedupArchive(String archiveFile, long[] offsets, int[] lengths, int[] storedLengths, boolean[] raw,
+			byte[][] digests, Map<String, long[]> fileLengths, Map<String, int[]> filePieces) {
+		this.archiveFile = archiveFile;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.storedLengths = storedLengths;
+		this.raw = raw;
+		this.digests = digests;
+		this.fileLengths = fileLengths;
+		this.filePieces = filePieces;
+	}
+
+	/**
+	 * Find the end of the piece that starts at <code>off</code>: the first
+	 * position after MIN_PIECE bytes where the Gear hash of the bytes before
+	 * it, about the last 64, has its top bits clear, or MAX_PIECE bytes.
+	 *
+	 * @param data
+	 *            holds the bytes
+	 * @param off
+	 *            is the start of the piece
+	 * @param len
+	 *            is the number of bytes available; unless they end the file,
+	 *            at least MAX_PIECE
+	 * @return the length of the piece
+	 */
+	static int cut(byte[] data, int off, int len) {
+		if (len <= MIN_PIECE)
+			return len;
+		int end = Math.min(len, MAX_PIECE);
+		long hash = 0;
+		for (int i = MIN_PIECE; i < end; i++) {
+			hash = (hash << 1) + GEAR[data[off + i] & 0xff];
+			if ((hash & BOUNDARY_MASK) == 0)
+				return i + 1;
+		}
+		return end;
+	}
+
+	/**
+	 * Write an archive of files. A file named twice is stored once.
+	 *
+	 * @param inFiles
+	 *            are the files to archive, by the names they are stored under
+	 * @param archiveFile
+	 *            is the archive to write
+	 * @return the size of the archive in bytes
+	 * @throws IOException
+	 *             if reading or writing fails
+	 */
+	public static long write(List<String> inFiles, String archiveFile) throws IOException {
+		MessageDigest sha = sha256();
+		Map<ByteBuffer, Integer> known = new HashMap<ByteBuffer, Integer>();
+		List<long[]> pieces = new ArrayList<long[]>();
+		List<byte[]> digests = new ArrayList<byte[]>();
+		Map<String, long[]> fileLengths = new LinkedHashMap<String, long[]>();
+		Map<String, int[]> filePieces = new LinkedHashMap<String, int[]>();
+		CountingOutputStream counted = new CountingOutputStream(
+				new BufferedOutputStream(new FileOutputStream(archiveFile)));
+		DataOutputStream out = new DataOutputStream(counted);
+		try {
+			out.writeInt(DEDUP_MAGIC);
+			byte[] buf = new byte[4 * MAX_PIECE];
+			for (String name : inFiles) {
+				if (fileLengths.containsKey(name))
+					continue;
+				List<Integer> list = new ArrayList<Integer>();
+				long length = 0;
+				InputStream in = new FileInputStream(name);
+				try {
+					int start = 0, end = 0;
+					boolean eof = false;
+					while (true) {
+						if (!eof && end - start < MAX_PIECE) {
+							System.arraycopy(buf, start, buf, 0, end - start);
+							end -= start;
+							start = 0;
+							int r;
+							while (end < buf.length && (r = in.read(buf, end, buf.length - end)) != -1)
+								end += r;
+							eof = end < buf.length;
+						}
+						if (start == end)
+							break;
+						int n = cut(buf, start, end - start);
+						sha.update(buf, start, n);
+						ByteBuffer digest = ByteBuffer.wrap(sha.digest());
+						Integer id = known.get(digest);
+						if (id == null) {
+							id = pieces.size();
+							known.put(digest, id);
+							digests.add(digest.array());
+							pieces.add(storePiece(buf, start, n, counted.count, out));
+						}
+						list.add(id);
+						length += n;
+						start += n;
+					}
+				} finally {
+					in.close();
+				}
+				int[] ids = new int[list.size()];
+				for (int i = 0; i < ids.length; i++)
+					ids[i] = list.get(i);
+				fileLengths.put(name, new long[] { length });
+				filePieces.put(name, ids);
+			}
+			long tableOffset = counted.count;
+			out.writeInt(pieces.size());
+			for (int i = 0; i < pieces.size(); i++) {
+				long[] p = pieces.get(i);
+				out.writeLong(p[0]);
+				out.writeInt((int) p[1]);
+				out.writeInt((int) p[2]);
+				out.writeByte((int) p[3]);
+				out.write(digests.get(i));
+			}
+			out.writeInt(filePieces.size());
+			for (Map.Entry<String, int[]> e : filePieces.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeLong(fileLengths.get(e.getKey())[0]);
+				out.writeInt(e.getValue().length);
+				for (int id : e.getValue())
+					out.writeInt(id);
+			}
+			out.writeLong(tableOffset);
+		} finally {
+			out.close();
+		}
+		return counted.count;
+	}
+
+	/**
+	 * Code a piece, or keep it raw if coding does not make it smaller.
+	 *
+	 * @return the offset, length, stored length and 1 if raw
+	 */
+	private static long[] storePiece(byte[] buf, int off, int len, long offset, OutputStream out)
+			throws IOException {
+		byte[] packed = HuffBuffers.compress(buf, off, len);
+		if (packed.length < len) {
+			out.write(packed);
+			return new long[] { offset, len, packed.length, 0 };
+		}
+		out.write(buf, off, len);
+		return new long[] { offset, len, len, 1 };
+	}
+
+	/**
+	 * Read the tables of an archive written by {@link #write(List, String)}.
+	 *
+	 * @param archiveFile
+	 *            is the archive
+	 * @return the archive, ready to extract files from
+	 * @throws IOException
+	 *             if the file is not an archive or reading fails
+	 */
+	public static DedupArchive open(String archiveFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(archiveFile, "r");
+		try {
+			if (file.length() < BITS_PER_INT / 8 + 8 || file.readInt() != DEDUP_MAGIC)
+				throw new IOException("magic number not right");
+			file.seek(file.length() - 8);
+			long tableOffset = file.readLong();
+			if (tableOffset < BITS_PER_INT / 8 || tableOffset > file.length() - 8)
+				throw new IOException("bad table offset");
+			file.seek(tableOffset);
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file.getFD())));
+			int n = in.readInt();
+			if (n < 0)
+				throw new IOException("bad piece count");
+			long[] offsets = new long[n];
+			int[] lengths = new int[n];
+			int[] storedLengths = new int[n];
+			boolean[] raw = new boolean[n];
+			byte[][] digests = new byte[n][DIGEST_BYTES];
+			for (int i = 0; i < n; i++) {
+				offsets[i] = in.readLong();
+				lengths[i] = in.readInt();
+				storedLengths[i] = in.readInt();
+				raw[i] = in.readByte() != 0;
+				in.readFully(digests[i]);
+				if (offsets[i] < 0 || storedLengths[i] < 0 || offsets[i] + storedLengths[i] > tableOffset
+						|| lengths[i] < 0 || lengths[i] > MAX_PIECE)
+					throw new IOException("bad piece " + i);
+			}
+			int files = in.readInt();
+			if (files < 0)
+				throw new IOException("bad file count");
+			Map<String, long[]> fileLengths = new LinkedHashMap<String, long[]>();
+			Map<String, int[]> filePieces = new LinkedHashMap<String, int[]>();
+			for (int f = 0; f < files; f++) {
+				String name = in.readUTF();
+				long length = in.readLong();
+				int count = in.readInt();
+				if (count < 0)
+					throw new IOException("bad piece list of " + name);
+				int[] ids = new int[count];
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					ids[i] = in.readInt();
+					if (ids[i] < 0 || ids[i] >= n)
+						throw new IOException("bad piece list of " + name);
+					sum += lengths[ids[i]];
+				}
+				if (sum != length)
+					throw new IOException("bad length of " + name);
+				fileLengths.put(name, new long[] { length });
+				filePieces.put(name, ids);
+			}
+			return new DedupArchive(archiveFile, offsets, lengths, storedLengths, raw, digests, fileLengths,
+					filePieces);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @return the names of the archived files, in the order they were written
+	 */
+	public List<String> files() {
+		return Collections.unmodifiableList(new ArrayList<String>(filePieces.keySet()));
+	}
+
+	/**
+	 * @param name
+	 *            is an archived file
+	 * @return its length in bytes, -1 if it is not in the archive
+	 */
+	public long length(String name) {
+		long[] length = fileLengths.get(name);
+		return length == null ? -1 : length[0];
+	}
+
+	/**
+	 * @return the number of distinct pieces stored
+	 */
+	public int pieces() {
+		return offsets.length;
+	}
+
+	/**
+	 * Write an archived file out, decoding each piece it is made of.
+	 *
+	 * @param name
+	 *            is the archived file
+	 * @param out
+	 *            receives its bytes
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if the file is not in the archive, the archive is damaged
+	 *             or reading fails
+	 */
+	public long extract(String name, OutputStream out) throws IOException {
+		int[] ids = filePieces.get(name);
+		if (ids == null)
+			throw new IOException(name + " is not in the archive");
+		MessageDigest sha = sha256();
+		RandomAccessFile file = new RandomAccessFile(archiveFile, "r");
+		try {
+			long size = 0;
+			byte[] stored = new byte[0];
+			for (int id : ids) {
+				if (stored.length < storedLengths[id])
+					stored = new byte[storedLengths[id]];
+				file.seek(offsets[id]);
+				file.readFully(stored, 0, storedLengths[id]);
+				byte[] piece;
+				int n = lengths[id];
+				if (raw[id]) {
+					piece = stored;
+				} else {
+					ByteBuffer unpacked = ByteBuffer.allocate(n);
+					try {
+						if (HuffBuffers.decompress(ByteBuffer.wrap(stored, 0, storedLengths[id]), unpacked) != n)
+							throw new IOException("bad piece " + id);
+					} catch (BufferOverflowException e) {
+						throw new IOException("bad piece " + id);
+					}
+					piece = unpacked.array();
+				}
+				sha.update(piece, 0, n);
+				if (!MessageDigest.isEqual(sha.digest(), digests[id]))
+					throw new IOException("piece " + id + " does not match its digest");
+				out.write(piece, 0, n);
+				size += n;
+			}
+			return size;
+		} finally {
+			file.close();
+		}
+	}
+
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to have SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Counts the bytes written through it.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
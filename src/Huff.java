@@ -1,21 +1,33 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Huff implements ITreeMaker, IHuffConstants, IHuffEncoder, 
 IHuffHeader, IHuffModel{
 	// IHuffModel, //IHuffHeader {
 
+	// state of the ITreeMaker/IHuffEncoder/IHuffHeader methods; write and
+	// uncompress never touch it, so they are safe to call from many threads
 	private Map<Integer, Integer> count;
 	private Map<Integer, String> encoding;
 	private HuffTree tree;
+	private HuffCodec codec;
 
 	public Huff() {
 		count = new HashMap<Integer, Integer>();
 		encoding = new HashMap<Integer, String>();
 		tree = null;
+		codec = null;
 	}
 
 	/**
@@ -28,23 +40,10 @@ IHuffHeader, IHuffModel{
 		ICharCounter cc = new CharCounter();
 		cc.countAll(stream);
 		count = cc.getTable();
-		MinHeap Hheap = buildHeap();
-		// build heap from map
 		// build tree from heap
-		if (Hheap.heapsize() > 1) {
-			HuffTree tmp1, tmp2, tmp3 = null;
-			while (Hheap.heapsize() > 1) { // While two items left
-				tmp1 = (HuffTree) Hheap.removemin();
-				tmp2 = (HuffTree) Hheap.removemin();
-				tmp3 = new HuffTree(tmp1.root(), tmp2.root(), tmp1.weight() + tmp2.weight());
-				Hheap.insert(tmp3); // Return new tree to heap
-			}
-			tree = tmp3;
-			return tree; // Return the tree
-		} else {
-			tree = (HuffTree) Hheap.removemin();
-			return tree;
-		}
+		tree = HuffCodec.buildTree(count);
+		codec = new HuffCodec(tree);
+		return tree;
 	}
 
 	/**
@@ -53,19 +52,7 @@ IHuffHeader, IHuffModel{
 	 * @return
 	 */
 	public MinHeap buildHeap() {
-		// create a new array;
-		HuffTree[] h = new HuffTree[ALPH_SIZE + 1];
-		// create a new heap
-		MinHeap Hheap = new MinHeap(h, 0, ALPH_SIZE + 1);
-		// create new node, put it in heap
-		for (int key : count.keySet()) {
-			HuffTree newNode = new HuffTree(key, count.get(key));
-			Hheap.insert(newNode);
-		}
-		// insert PSEUDO_EOF
-		HuffTree newNode = new HuffTree(PSEUDO_EOF, 1);
-		Hheap.insert(newNode);
-		return Hheap;
+		return HuffCodec.buildHeap(count);
 	}
 
 	/**
@@ -74,28 +61,12 @@ IHuffHeader, IHuffModel{
 	 * @return the map of chars/encoding
 	 */
 	public Map<Integer, String> makeTable() {
-		makeTable(tree.root(), "");
-		return encoding;
-	}
-
-	/**
-	 * helper method to build table recursively
-	 * 
-	 * @param node
-	 * @param path
-	 */
-	private void makeTable(IHuffBaseNode node, String path) {
-		if (node.isLeaf()) {
-			encoding.put(((HuffLeafNode) node).element(), path);
-			// System.out.println(path);
-			return;
-		} else {
-			IHuffBaseNode left = ((HuffInternalNode) node).left();
-			IHuffBaseNode right = ((HuffInternalNode) node).right();
-			makeTable(left, path + "0");
-			makeTable(right, path + "1");
-			return;
+		encoding.clear();
+		for (int ch = 0; ch <= PSEUDO_EOF; ch++) {
+			if (codec.hasCode(ch))
+				encoding.put(ch, codec.codeString(ch));
 		}
+		return encoding;
 	}
 
 	/**
@@ -134,28 +105,42 @@ IHuffHeader, IHuffModel{
 	 * @throws FileNotFoundException
 	 */
 	public int write(String inFile, String outFile, boolean force) {
-		// create new stream for count original size
-		BitInputStream bitin1 = new BitInputStream(inFile);
-		// create new stream for making huff tree
-		BitInputStream bitin2 = new BitInputStream(inFile);
-		// count size of original file
-		CharCounter cc = new CharCounter();
-		int originalSize = 0;
+		return write(inFile, outFile, force, 0);
+	}
+
+	/**
+	 * Write a compressed version of a file followed by an index of sync points,
+	 * one every <code>syncInterval</code> chunks, so that byte ranges can later
+	 * be read with <code>uncompress(inFile, offset, length)</code> without
+	 * decoding from the start. Decoders that do not know the index ignore it.
+	 * 
+	 * @param inFile
+	 *            is the file to be compressed
+	 * @param outFile
+	 *            is the file to be written with compressed data
+	 * @param force
+	 *            indicates if compression forced
+	 * @param syncInterval
+	 *            is the number of chunks between sync points, 0 for no index
+	 * @return the size of the compressed file, not counting the index
+	 */
+	public int write(String inFile, String outFile, boolean force, int syncInterval) {
+		long originalSize = 0;
 		int compress = 0;
 		try {
-			originalSize = cc.countAll(bitin1) * 8;
-			// make tree
-			makeHuffTree(bitin2);
-			// make encoding table
-			makeTable();
-			// close stream
-			bitin1.close();
-			bitin2.close();
-			// count size of compress file
-			compress = compressSize(inFile);
+			// count original file once, the codecs are built from the same counts
+			BlockSplitter split = BlockSplitter.split(inFile);
+			originalSize = split.length() * 8;
+			if (split.segments() > 1)
+				return writeSegments(split, inFile, outFile, force, syncInterval);
+			int[] counts = split.counts(0);
+			HuffCodec codec = HuffCodec.fromCounts(counts);
+			// count size of compress file, PSEUDO_EOF counted as a full chunk
+			compress = codec.headerSize() + (int) (codec.compressedSize(counts)
+					- codec.codeLength(PSEUDO_EOF)) + BITS_PER_WORD + 1;
 			// if force or indeed compressed
 			if (force || originalSize > compress) {
-				writeToFile(inFile, outFile);
+				writeToFile(codec, inFile, outFile, syncInterval);
 			}
 			else compress = 0;
 		} catch (IOException e) {
@@ -166,6 +151,86 @@ IHuffHeader, IHuffModel{
 		return compress;
 	}
 
+	/**
+	 * helper method to write a file whose statistics shift as one segment per
+	 * part, each with its own table
+	 * 
+	 * @param split
+	 *            holds the parts and their counts
+	 * @param inFile
+	 * @param outFile
+	 * @param force
+	 * @param syncInterval
+	 * @return the size of the compressed file, not counting the indexes
+	 * @throws IOException
+	 */
+	private static int writeSegments(BlockSplitter split, String inFile, String outFile, boolean force,
+			int syncInterval) throws IOException {
+		HuffCodec[] codecs = new HuffCodec[split.segments()];
+		long compress = 0;
+		for (int i = 0; i < codecs.length; i++) {
+			int[] counts = split.counts(i);
+			codecs[i] = HuffCodec.fromCounts(counts);
+			compress += (codecs[i].headerSize() + codecs[i].compressedSize(counts) + 7) / 8 * 8;
+		}
+		if (!force && compress >= split.length() * 8)
+			return 0;
+		InputStream in = new BufferedInputStream(new FileInputStream(inFile));
+		BitOutputStream bitout = new BitOutputStream(outFile);
+		try {
+			for (int i = 0; i < codecs.length; i++) {
+				writeSegment(codecs[i], new RangeInputStream(in, split.end(i) - split.start(i)), bitout,
+						syncInterval);
+				// every segment starts on a byte boundary
+				bitout.flush();
+			}
+		} finally {
+			in.close();
+			bitout.close();
+		}
+		return (int) compress;
+	}
+
+	/**
+	 * An input stream that ends after a given number of bytes of another one,
+	 * leaving the rest of it unread.
+	 */
+	private static class RangeInputStream extends InputStream {
+
+		private final InputStream in;
+		private long remaining;
+
+		RangeInputStream(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining == 0)
+				return -1;
+			int b = in.read();
+			if (b != -1)
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0)
+				return -1;
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0)
+				remaining -= n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			// the underlying stream holds the following ranges
+		}
+	}
+
 	/**
 	 * helper method to write to file
 	 * 
@@ -175,36 +240,80 @@ IHuffHeader, IHuffModel{
 	 * @return the size of the compressed file
 	 */
 	public int writeToFile(String inFile, String outFile) throws IOException {
-		int size = 0;
-		// write header and record size
-		BitInputStream bitin = new BitInputStream(inFile);
+		return writeToFile(codec, inFile, outFile, 0);
+	}
+
+	static int writeToFile(HuffCodec codec, String inFile, String outFile, int syncInterval)
+			throws IOException {
 		BitOutputStream bitout = new BitOutputStream(outFile);
-		writeHeader(bitout);
-		size += headerSize();
-		int inbits;
-		while ((inbits = bitin.read(BITS_PER_WORD)) != -1) {
-			String code = encoding.get(inbits);
-			for (int i = 0; i < code.length(); i++) {
-				// increment size
-				size++;
-				if (code.charAt(i) == '1')
-					bitout.write(1, 1);
-				else
-					bitout.write(1, 0);
-			}
+		try {
+			return writeSegment(codec, inFile, bitout, syncInterval);
+		} finally {
+			bitout.close();
 		}
-		// write EOF and update size
-		String code = encoding.get(PSEUDO_EOF);
-		for (int i = 0; i < code.length(); i++) {
-			// increment size
-			size++;
-			if (code.charAt(i) == '1')
-				bitout.write(1, 1);
-			else
-				bitout.write(1, 0);
+	}
+
+	/**
+	 * Compress a file and add it as a new segment at the end of an existing
+	 * compressed file. The segment has its own header and table, so only the
+	 * new data is read and coded; <code>uncompress</code> decodes all segments
+	 * in order. If outFile does not exist it is created.
+	 * 
+	 * @param inFile
+	 *            is the file to be compressed
+	 * @param outFile
+	 *            is the compressed file to append to
+	 * @param syncInterval
+	 *            is the number of chunks between sync points, 0 for no index
+	 * @return the size of the new segment, not counting the index
+	 * @throws IOException
+	 *             if reading or writing fails
+	 */
+	public int append(String inFile, String outFile, int syncInterval) throws IOException {
+		CharCounter cc = new CharCounter();
+		cc.countFile(inFile);
+		HuffCodec codec = HuffCodec.fromCounts(cc.getTable());
+		// segments always end on a byte boundary, so the new one starts on one
+		BitOutputStream bitout = new BitOutputStream(
+				new BufferedOutputStream(new FileOutputStream(outFile, true)));
+		try {
+			return writeSegment(codec, inFile, bitout, syncInterval);
+		} finally {
+			bitout.close();
+		}
+	}
+
+	/**
+	 * helper method to write header, codes and optional index of one segment
+	 * 
+	 * @param codec
+	 * @param inFile
+	 * @param bitout
+	 * @param syncInterval
+	 * @return the size of the segment, not counting the index
+	 * @throws IOException
+	 */
+	private static int writeSegment(HuffCodec codec, String inFile, BitOutputStream bitout, int syncInterval)
+			throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(inFile));
+		try {
+			return writeSegment(codec, in, bitout, syncInterval);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int writeSegment(HuffCodec codec, InputStream in, BitOutputStream bitout, int syncInterval)
+			throws IOException {
+		// write header and record size
+		int size = codec.writeHeader(bitout);
+		SyncIndex index = syncInterval > 0 ? new SyncIndex(syncInterval) : null;
+		size += (int) codec.encode(in, bitout, index);
+		if (index != null) {
+			// the index starts on a byte boundary
+			bitout.flush();
+			index.write(bitout);
 		}
-		bitin.close();
-		bitout.close();
 		return size;
 	}
 
@@ -216,20 +325,29 @@ IHuffHeader, IHuffModel{
 	 * @throws IOException
 	 */
 	public int compressSize(String inFile) throws IOException {
-		int size = 0;
-		// add header size
-		size += headerSize();
-		// add code size
-		BitInputStream bitin = new BitInputStream(inFile);
-		int inbits;
-		while ((inbits = bitin.read(BITS_PER_WORD)) != -1) {
-			// put writes one character
-			size += encoding.get(inbits).length();
+		ICharCounter cc = new CharCounter();
+		InputStream in = new BufferedInputStream(new FileInputStream(inFile));
+		try {
+			cc.countAll(in);
+		} finally {
+			in.close();
 		}
-		// add EOF
-		size += (BITS_PER_WORD + 1);
-		bitin.close();
-		return size;
+		// add header and code size, EOF counted as a full chunk
+		return codec.headerSize() + (int) (codec.compressedSize(counts(cc))
+				- codec.codeLength(PSEUDO_EOF)) + BITS_PER_WORD + 1;
+	}
+
+	/**
+	 * helper method to turn counter into an array indexed by chunk
+	 * 
+	 * @param cc
+	 * @return the count of every chunk
+	 */
+	static int[] counts(ICharCounter cc) {
+		int[] counts = new int[ALPH_SIZE];
+		for (int i = 0; i < ALPH_SIZE; i++)
+			counts[i] = cc.getCount(i);
+		return counts;
 	}
 
 	/**
@@ -245,13 +363,10 @@ IHuffHeader, IHuffModel{
 	public int uncompress(String inFile, String outFile) {
 		BitInputStream bitin = new BitInputStream(inFile);
 		BitOutputStream bitout = new BitOutputStream(outFile);
-		// read tree
-		HuffTree tree;
 		// read code
 		int size = 0;
 		try {
-			tree = readHeader(bitin);
-			size = readEncoding(tree, bitin, bitout);
+			size = (int) decodeSegments(bitin, bitout, 0, Long.MAX_VALUE) * 8;
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -262,116 +377,164 @@ IHuffHeader, IHuffModel{
 	}
 
 	/**
+	 * helper method to decode segments one after another until the input ends
+	 * or enough chunks were written
 	 * 
-	 * @param tree
 	 * @param bitin
-	 * @param bitout
-	 * @return the size of the uncompressed file
-	 * @throws IOException 
+	 *            is positioned at the magic number of a segment
+	 * @param out
+	 * @param skip
+	 *            is the number of chunks to drop before writing
+	 * @param limit
+	 *            is the most chunks to write
+	 * @return the number of chunks written
+	 * @throws IOException
 	 */
-	public int readEncoding(HuffTree tree, BitInputStream bitin, BitOutputStream bitout) 
+	static long decodeSegments(BitInputStream bitin, OutputStream out, long skip, long limit)
 			throws IOException {
-		int size = 0;
-		int bits;
-		IHuffBaseNode node = tree.root();
+		long size = 0;
+		int magic = bitin.read(BITS_PER_INT);
 		while (true) {
-			bits = bitin.read(1);
-			if (bits == -1) {
-				throw new IOException("unexpected end of input file");
+			if (magic != MAGIC_NUMBER) {
+				throw new IOException("magic number not right");
+			}
+			HuffCodec codec = new HuffCodec(HuffArrayTree.read(bitin));
+			long decoded = codec.decode(bitin, out, skip, limit - size);
+			size += Math.max(0, decoded - skip);
+			skip = Math.max(0, skip - decoded);
+			if (size == limit)
+				return size;
+			// the next segment, or index, starts on a byte boundary
+			bitin.align();
+			magic = bitin.read(BITS_PER_INT);
+			while (magic == SYNC_MAGIC) {
+				SyncIndex.skip(bitin);
+				magic = bitin.read(BITS_PER_INT);
 			}
-			else {
-				// read a 0, go left in tree
-				if ((bits & 1) == 0) node = ((HuffInternalNode)node).left();
-				// read a 1, go right in tree
-				else node = ((HuffInternalNode)node).right();
-
-				if (node.isLeaf()) {
-					if (((HuffLeafNode)node).element() == PSEUDO_EOF) 
-						break; // out of loop
-					else {
-						bitout.write(((HuffLeafNode)node).element());
-						// increment size
-						size += 8;
+			if (magic == -1)
+				return size;
+		}
+	}
+
+	/**
+	 * Uncompress part of a previously compressed file. Segments written with
+	 * sync points are entered at the last point before <code>offset</code> and
+	 * segments that end before it are not decoded at all; if any segment has
+	 * no index, decoding starts at the beginning of the file.
+	 * 
+	 * @param inFile
+	 *            is the compressed file
+	 * @param offset
+	 *            is the offset in the uncompressed data of the first byte wanted
+	 * @param length
+	 *            is the number of bytes wanted
+	 * @return the bytes, fewer than length if the data ends first
+	 * @throws IOException
+	 *             if the file is not a compressed file or reading fails
+	 */
+	public byte[] uncompress(String inFile, long offset, int length) throws IOException {
+		if (offset < 0 || length < 0)
+			throw new IllegalArgumentException("negative offset or length");
+		List<Long> starts = new ArrayList<Long>();
+		List<SyncIndex> indexes;
+		RandomAccessFile file = new RandomAccessFile(inFile, "r");
+		try {
+			indexes = SyncIndex.readAll(file, starts);
+		} finally {
+			file.close();
+		}
+		if (indexes == null) {
+			// the length of the data is not known, let the buffer grow
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(length, HuffContext.BUFFER_SIZE));
+			BitInputStream bitin = openAt(inFile, 0, 0);
+			try {
+				decodeSegments(bitin, out, offset, length);
+			} finally {
+				bitin.close();
+			}
+			return out.toByteArray();
+		}
+		long total = 0;
+		for (SyncIndex index : indexes)
+			total += index.length();
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(0, Math.min(length, total - offset)));
+		long base = 0;
+		for (int i = 0; i < indexes.size() && out.size() < length; i++) {
+			SyncIndex index = indexes.get(i);
+			if (offset < base + index.length()) {
+				long skip = Math.max(0, offset - base);
+				BitInputStream bitin = openAt(inFile, starts.get(i), 0);
+				try {
+					HuffCodec codec = HuffCodec.readHeader(bitin);
+					int point = index.find(skip);
+					if (point >= 0) {
+						bitin.close();
+						long bit = index.bit(point);
+						bitin = openAt(inFile, starts.get(i) + bit / 8, (int) (bit % 8));
+						skip -= index.offset(point);
 					}
-					// make node return to root
-					node = tree.root();
+					codec.decode(bitin, out, skip, length - out.size());
+				} finally {
+					bitin.close();
 				}
 			}
+			base += index.length();
 		}
-		return size;
+		return out.toByteArray();
 	}
 
 	/**
-	 * The number of bits in the header using the implementation, including the
-	 * magic number presumably stored.
+	 * helper method to open a file for bit reading at a given bit position
 	 * 
-	 * @return the number of bits in the header
+	 * @param inFile
+	 * @param pos
+	 *            is the byte to start at
+	 * @param bit
+	 *            is the number of bits of that byte to skip
+	 * @return the stream
+	 * @throws IOException
 	 */
-	public int headerSize() {
-		// headerSize +32 because of magic number
-		int headerSize = 0;
-		headerSize += BITS_PER_INT;
-		headerSize += treeSize(tree.root());
-		return headerSize;
+	private static BitInputStream openAt(String inFile, long pos, int bit) throws IOException {
+		FileInputStream in = new FileInputStream(inFile);
+		in.getChannel().position(pos);
+		BitInputStream bitin = new BitInputStream(new BufferedInputStream(in));
+		bitin.read(bit);
+		return bitin;
 	}
 
 	/**
-	 * helper function to calculate size
 	 * 
-	 * @param node
-	 * @return return huff tree size
+	 * @param tree
+	 * @param bitin
+	 * @param bitout
+	 * @return the size of the uncompressed file
+	 * @throws IOException 
 	 */
-	private int treeSize(IHuffBaseNode node) {
-		if (node.isLeaf()) {
-			// write 1 and write 9 bit to file
-			return 1 + (BITS_PER_WORD + 1);
-		} else {
-			IHuffBaseNode left = ((HuffInternalNode) node).left();
-			IHuffBaseNode right = ((HuffInternalNode) node).right();
-			// write 0 indicating internal node
-			// write left and right
-			return treeSize(left) + treeSize(right) + 1;
-		}
+	public int readEncoding(HuffTree tree, BitInputStream bitin, BitOutputStream bitout) 
+			throws IOException {
+		return (int) new HuffCodec(tree).decode(bitin, bitout) * 8;
 	}
 
 	/**
-	 * Write the header, including magic number and all bits needed to reconstruct a
-	 * tree, e.g., using <code>readHeader</code>.
+	 * The number of bits in the header using the implementation, including the
+	 * magic number presumably stored.
 	 * 
-	 * @param out
-	 *            is where the header is written
-	 * @return the size of the header
+	 * @return the number of bits in the header
 	 */
-	public int writeHeader(BitOutputStream out) {
-		out.write(BITS_PER_INT, MAGIC_NUMBER);
-		// call function recursively to write header
-		writeTree(tree.root(), out);
-		return headerSize();
+	public int headerSize() {
+		return codec.headerSize();
 	}
 
 	/**
-	 * helper method to write tree to the header recursively
+	 * Write the header, including magic number and all bits needed to reconstruct a
+	 * tree, e.g., using <code>readHeader</code>.
 	 * 
-	 * @param node
 	 * @param out
+	 *            is where the header is written
+	 * @return the size of the header
 	 */
-	private void writeTree(IHuffBaseNode node, BitOutputStream out) {
-		if (node.isLeaf()) {
-			out.write(1, 1);
-			// write 9 bit to file
-			out.write(BITS_PER_WORD + 1, ((HuffLeafNode) node).element());
-			// System.out.println(path);
-			return;
-		} else {
-			IHuffBaseNode left = ((HuffInternalNode) node).left();
-			IHuffBaseNode right = ((HuffInternalNode) node).right();
-			// write 0 indicating internal node
-			out.write(1, 0);
-			// write left and right
-			writeTree(left, out);
-			writeTree(right, out);
-			return;
-		}
+	public int writeHeader(BitOutputStream out) {
+		return codec.writeHeader(out);
 	}
 
 	/**
@@ -406,17 +569,7 @@ IHuffHeader, IHuffModel{
 	 * @throws IOException
 	 */
 	public IHuffBaseNode readHeaderHelper(BitInputStream in) throws IOException {
-		if ((in.read(1) & 1) == 1) {
-			// construct a new leaf node, make it weight as -1
-			IHuffBaseNode newLeaf = new HuffLeafNode(in.read(9), -1);
-			return newLeaf;
-		} else {
-			// construct a new internal node, make it weight as -1
-			IHuffBaseNode newInternal = new HuffInternalNode(null, null, -1);
-			((HuffInternalNode) newInternal).setLeft(readHeaderHelper(in));
-			((HuffInternalNode) newInternal).setRight(readHeaderHelper(in));
-			return newInternal;
-		}
+		return HuffArrayTree.read(in).toTree().root();
 	}
 
 }
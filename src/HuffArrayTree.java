@@ -0,0 +1,305 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A Huffman tree flattened into two parallel child arrays. Internal nodes are
+ * numbered in preorder starting with the root at 0, so every child has a larger
+ * index than its parent. A child entry is either the index of an internal node
+ * (&gt;= 0) or a leaf stored as <code>~chunk</code> (&lt; 0). A tree that is a
+ * single leaf has no internal nodes and a negative root.
+ * <P>
+ * All traversals run over the arrays without recursion. The tree is immutable;
+ * {@link #fromTree(HuffTree)} and {@link #toTree()} adapt it to and from the
+ * node based <code>HuffTree</code>.
+ */
+public final class HuffArrayTree implements IHuffConstants {
+
+	/** Bits of a chunk in a tree that holds PSEUDO_EOF. */
+	public static final int CHUNK_BITS = BITS_PER_WORD + 1;
+
+	private final short[] left;
+	private final short[] right;
+	private final int root;
+
+	private HuffArrayTree(short[] left, short[] right, int root) {
+		this.left = left;
+		this.right = right;
+		this.root = root;
+	}
+
+	/**
+	 * Flatten a node based tree.
+	 *
+	 * @param tree
+	 *            is the tree to flatten
+	 * @return the flat tree
+	 * @throws IllegalArgumentException
+	 *             if a leaf holds something other than a chunk or PSEUDO_EOF
+	 */
+	public static HuffArrayTree fromTree(HuffTree tree) {
+		short[] left = new short[ALPH_SIZE];
+		short[] right = new short[ALPH_SIZE];
+		IHuffBaseNode[] stack = new IHuffBaseNode[ALPH_SIZE + 2];
+		// slot each stacked node goes to: parent index * 2 + side, -1 for root
+		int[] slots = new int[ALPH_SIZE + 2];
+		int sp = 0, n = 0, root = 0;
+		stack[sp] = tree.root();
+		slots[sp++] = -1;
+		while (sp > 0) {
+			IHuffBaseNode node = stack[--sp];
+			int slot = slots[sp];
+			int value;
+			if (node.isLeaf()) {
+				int element = ((HuffLeafNode) node).element();
+				if (element < 0 || element > PSEUDO_EOF)
+					throw new IllegalArgumentException("chunk out of range " + element);
+				value = ~element;
+			} else {
+				value = n++;
+				// push right first so left is numbered first
+				stack[sp] = ((HuffInternalNode) node).right();
+				slots[sp++] = value * 2 + 1;
+				stack[sp] = ((HuffInternalNode) node).left();
+				slots[sp++] = value * 2;
+			}
+			if (slot < 0)
+				root = value;
+			else if ((slot & 1) == 0)
+				left[slot >> 1] = (short) value;
+			else
+				right[slot >> 1] = (short) value;
+		}
+		return new HuffArrayTree(Arrays.copyOf(left, n), Arrays.copyOf(right, n), root);
+	}
+
+	/**
+	 * Read a tree written by {@link #write(BitOutputStream)}.
+	 *
+	 * @param in
+	 *            is the source of bits
+	 * @return the tree
+	 * @throws IOException
+	 *             if the input ends early or does not describe a valid tree
+	 */
+	public static HuffArrayTree read(BitInputStream in) throws IOException {
+		return read(in, CHUNK_BITS);
+	}
+
+	/**
+	 * Read a tree written by {@link #write(BitOutputStream, int)}.
+	 *
+	 * @param in
+	 *            is the source of bits
+	 * @param chunkBits
+	 *            is the number of bits of each leaf's chunk, CHUNK_BITS, or
+	 *            BITS_PER_WORD for trees without PSEUDO_EOF
+	 * @return the tree
+	 * @throws IOException
+	 *             if the input ends early or does not describe a valid tree
+	 */
+	public static HuffArrayTree read(BitInputStream in, int chunkBits) throws IOException {
+		short[] left = new short[ALPH_SIZE];
+		short[] right = new short[ALPH_SIZE];
+		// internal nodes whose right child is still to be read
+		int[] stack = new int[ALPH_SIZE + 1];
+		int sp = 0, n = 0;
+		int root = readNode(in, n, chunkBits);
+		if (root >= 0) {
+			n++;
+			stack[sp++] = root;
+		}
+		while (sp > 0) {
+			int parent = stack[sp - 1];
+			int value = readNode(in, n, chunkBits);
+			// index 0 is the root and never a child, so 0 means "left not read"
+			if (left[parent] == 0) {
+				left[parent] = (short) value;
+			} else {
+				right[parent] = (short) value;
+				sp--;
+			}
+			if (value >= 0) {
+				if (++n > ALPH_SIZE)
+					throw new IOException("tree has too many nodes");
+				stack[sp++] = value;
+			}
+		}
+		return new HuffArrayTree(Arrays.copyOf(left, n), Arrays.copyOf(right, n), root);
+	}
+
+	/**
+	 * Read the next node of a preorder tree.
+	 *
+	 * @return next internal index, or ~chunk for a leaf
+	 */
+	private static int readNode(BitInputStream in, int next, int chunkBits) throws IOException {
+		int bit = in.read(1);
+		if (bit == -1)
+			throw new IOException("unexpected end of input file");
+		if (bit == 0)
+			return next;
+		int element = in.read(chunkBits);
+		if (element == -1)
+			throw new IOException("unexpected end of input file");
+		if (element > PSEUDO_EOF)
+			throw new IOException("chunk out of range " + element);
+		return ~element;
+	}
+
+	/**
+	 * Write the tree in preorder, 0 for an internal node and 1 followed by a
+	 * 9-bit chunk for a leaf.
+	 *
+	 * @param out
+	 *            is where the tree is written
+	 * @return the number of bits written
+	 */
+	public int write(BitOutputStream out) {
+		return write(out, CHUNK_BITS);
+	}
+
+	/**
+	 * Write the tree in preorder, 0 for an internal node and 1 followed by
+	 * the chunk for a leaf.
+	 *
+	 * @param out
+	 *            is where the tree is written
+	 * @param chunkBits
+	 *            is the number of bits of each leaf's chunk, CHUNK_BITS, or
+	 *            BITS_PER_WORD for trees without PSEUDO_EOF
+	 * @return the number of bits written
+	 * @throws IllegalArgumentException
+	 *             if a chunk does not fit in chunkBits
+	 */
+	public int write(BitOutputStream out, int chunkBits) {
+		if (root < 0) {
+			writeLeaf(root, out, chunkBits);
+			return size(chunkBits);
+		}
+		int[] stack = new int[left.length + 1];
+		int sp = 0;
+		stack[sp++] = root;
+		while (sp > 0) {
+			int node = stack[--sp];
+			if (node < 0) {
+				writeLeaf(node, out, chunkBits);
+			} else {
+				out.write(1, 0);
+				stack[sp++] = right[node];
+				stack[sp++] = left[node];
+			}
+		}
+		return size(chunkBits);
+	}
+
+	private static void writeLeaf(int leaf, BitOutputStream out, int chunkBits) {
+		if (~leaf >= 1 << chunkBits)
+			throw new IllegalArgumentException("chunk " + ~leaf + " does not fit in " + chunkBits + " bits");
+		out.write(1, 1);
+		out.write(chunkBits, ~leaf);
+	}
+
+	/**
+	 * @return the number of bits {@link #write(BitOutputStream)} writes
+	 */
+	public int size() {
+		return size(CHUNK_BITS);
+	}
+
+	/**
+	 * @param chunkBits
+	 *            is the number of bits of each leaf's chunk
+	 * @return the number of bits {@link #write(BitOutputStream, int)} writes
+	 */
+	public int size(int chunkBits) {
+		// a full binary tree has one more leaf than internal nodes
+		return left.length + (left.length + 1) * (1 + chunkBits);
+	}
+
+	/**
+	 * Fill in the code and code length of every leaf. Chunks not in the tree
+	 * are left untouched.
+	 *
+	 * @param codes
+	 *            receives the code bits of each chunk, right aligned
+	 * @param lengths
+	 *            receives the code length of each chunk
+	 */
+	public void makeTable(long[] codes, int[] lengths) {
+		if (root < 0) {
+			codes[~root] = 0;
+			lengths[~root] = 0;
+			return;
+		}
+		int n = left.length;
+		long[] path = new long[n];
+		int[] depth = new int[n];
+		// parents are numbered before their children
+		for (int i = 0; i < n; i++) {
+			setCode(left[i], path[i] << 1, depth[i] + 1, path, depth, codes, lengths);
+			setCode(right[i], path[i] << 1 | 1, depth[i] + 1, path, depth, codes, lengths);
+		}
+	}
+
+	private static void setCode(int child, long code, int len, long[] path, int[] depth, long[] codes,
+			int[] lengths) {
+		if (child >= 0) {
+			path[child] = code;
+			depth[child] = len;
+		} else {
+			codes[~child] = code;
+			lengths[~child] = len;
+		}
+	}
+
+	/**
+	 * @return the root, an internal index or ~chunk if the tree is one leaf
+	 */
+	public int root() {
+		return root;
+	}
+
+	/**
+	 * Step from an internal node to one of its children.
+	 *
+	 * @param node
+	 *            is the index of an internal node
+	 * @param bit
+	 *            is 0 for the left child and 1 for the right child
+	 * @return the child, an internal index or ~chunk for a leaf
+	 */
+	public int child(int node, int bit) {
+		return bit == 0 ? left[node] : right[node];
+	}
+
+	/**
+	 * @return the number of internal nodes
+	 */
+	public int internalNodes() {
+		return left.length;
+	}
+
+	/**
+	 * Build the equivalent node based tree, with every weight set to -1.
+	 *
+	 * @return a new HuffTree
+	 */
+	public HuffTree toTree() {
+		HuffTree tree = new HuffTree(-1, -1);
+		if (root < 0) {
+			tree.setRoot(new HuffLeafNode(~root, -1));
+			return tree;
+		}
+		IHuffBaseNode[] nodes = new IHuffBaseNode[left.length];
+		// children have larger indices, so build from the end
+		for (int i = left.length - 1; i >= 0; i--) {
+			nodes[i] = new HuffInternalNode(node(left[i], nodes), node(right[i], nodes), -1);
+		}
+		tree.setRoot(nodes[root]);
+		return tree;
+	}
+
+	private static IHuffBaseNode node(int child, IHuffBaseNode[] nodes) {
+		return child >= 0 ? nodes[child] : new HuffLeafNode(~child, -1);
+	}
+}
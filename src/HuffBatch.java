@@ -0,0 +1,146 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compresses every file of a directory into another directory, one file with
+ * <code>SUFFIX</code> added to its name per input, readable by
+ * <code>Huff.uncompress</code>. A manifest in the output directory records the
+ * length and the <code>CharCounter</code> checksum of each input; on the next
+ * run an input whose length and checksum are unchanged keeps its compressed
+ * file. The checksum comes from the counting pass, so an unchanged file is
+ * read once and a changed one twice, as before.
+ * <P>
+ * Manifest layout:
+ *
+ * <pre>
+ * int  MANIFEST_MAGIC
+ * int  count
+ * count times: UTF name, long length, int checksum
+ * </pre>
+ *
+ * The manifest is only a cache: a missing or damaged one makes the run
+ * compress every file.
+ */
+public final class HuffBatch implements IHuffConstants {
+
+	/** Name of the manifest in the output directory. */
+	public static final String MANIFEST = ".huffmanifest";
+
+	/** Added to the name of an input to name its compressed file. */
+	public static final String SUFFIX = ".huf";
+
+	private HuffBatch() {
+	}
+
+	/**
+	 * Compress the files of a directory that changed since the last run.
+	 * Compressed files of inputs that are gone are deleted.
+	 *
+	 * @param inDir
+	 *            holds the files to compress; subdirectories are not entered
+	 * @param outDir
+	 *            receives the compressed files and the manifest, and is
+	 *            created if missing
+	 * @return the number of files compressed
+	 * @throws IOException
+	 *             if reading or writing fails
+	 */
+	public static int compress(String inDir, String outDir) throws IOException {
+		Path out = Paths.get(outDir);
+		Files.createDirectories(out);
+		Map<String, long[]> previous = readManifest(out.resolve(MANIFEST));
+		Map<String, long[]> current = new TreeMap<String, long[]>();
+		ArrayList<Path> files = new ArrayList<Path>();
+		DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get(inDir));
+		try {
+			for (Path file : dir) {
+				if (Files.isRegularFile(file))
+					files.add(file);
+			}
+		} finally {
+			dir.close();
+		}
+		Collections.sort(files);
+		CharCounter cc = new CharCounter();
+		int written = 0;
+		for (Path file : files) {
+			String name = file.getFileName().toString();
+			long length = cc.countFile(file.toString());
+			long[] entry = { length, cc.checksum() };
+			long[] old = previous.get(name);
+			Path target = out.resolve(name + SUFFIX);
+			if (old == null || old[0] != entry[0] || old[1] != entry[1] || !Files.exists(target)) {
+				// the counts of the checksum pass build the code
+				Huff.writeToFile(HuffCodec.fromCounts(cc.toArray()), file.toString(), target.toString(), 0);
+				written++;
+			}
+			current.put(name, entry);
+		}
+		for (String name : previous.keySet()) {
+			if (!current.containsKey(name))
+				Files.deleteIfExists(out.resolve(name + SUFFIX));
+		}
+		writeManifest(out.resolve(MANIFEST), current);
+		return written;
+	}
+
+	/**
+	 * @return the length and checksum of each file, empty if there is no
+	 *         usable manifest
+	 */
+	private static Map<String, long[]> readManifest(Path manifest) throws IOException {
+		Map<String, long[]> entries = new TreeMap<String, long[]>();
+		if (!Files.exists(manifest))
+			return entries;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)));
+		try {
+			if (in.readInt() != MANIFEST_MAGIC)
+				return new TreeMap<String, long[]>();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				long length = in.readLong();
+				entries.put(name, new long[] { length, in.readInt() });
+			}
+		} catch (IOException e) {
+			// cut short, or a damaged name
+			return new TreeMap<String, long[]>();
+		} finally {
+			in.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * Write the manifest next to its final name and move it there, so a run
+	 * that stops part way leaves the old one.
+	 */
+	private static void writeManifest(Path manifest, Map<String, long[]> entries) throws IOException {
+		Path temp = manifest.resolveSibling(manifest.getFileName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+		try {
+			out.writeInt(MANIFEST_MAGIC);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, long[]> e : entries.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue()[0]);
+				out.writeInt((int) e.getValue()[1]);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,503 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end throughput harness: generates reproducible corpora from fixed
+ * seeds, runs <code>Huff.write</code> and <code>uncompress</code> round trips
+ * on them and reports speed, ratio, peak RSS and GC time as JSON, one result
+ * per line. Given a baseline written by an earlier run, it exits with status
+ * 1 if any result regressed by more than the threshold.
+ * <P>
+ * Usage:
+ *
+ * <pre>
+ * java HuffBenchmark [--dir d] [--min-size n] [--max-size n] [--runs n]
+ *                    [--warmup n] [--seed n] [--out file] [--baseline file]
+ *                    [--threshold f]
+ * </pre>
+ *
+ * Sizes go from min-size to max-size, 1 KiB to 64 MiB by default, by factors
+ * of 8, and max-size itself is always run; sizes take a K, M or G suffix, so
+ * <code>--max-size 8G</code> covers the whole range. Corpora are written to
+ * dir once and reused. Each round
+ * trip is run <code>runs</code> times and the fastest kept, after
+ * <code>warmup</code> untimed rounds over small corpora of every kind so that
+ * the first sizes are not measured with cold code.
+ * <P>
+ * Peak RSS is the high-water mark of the whole process over the round trips
+ * of one corpus: the mark is reset before each corpus, so it includes the
+ * heap the JVM already holds but not the peaks of earlier corpora. Where the
+ * mark cannot be reset it is reported as -1. GC time is the collection time
+ * of those round trips.
+ */
+public final class HuffBenchmark {
+
+	/** Kinds of generated data. */
+	public enum Corpus {
+		/** Independent uniform bytes, which do not compress. */
+		UNIFORM,
+		/** Bytes whose frequencies fall off as 1 / rank, like word counts. */
+		ZIPF,
+		/** Letters from an order-1 Markov chain, like text. */
+		MARKOV,
+		/** Mostly zero bytes with a few random ones. */
+		SPARSE,
+		/** Long runs of repeated bytes. */
+		RUNS
+	}
+
+	/** Default fraction a result may get worse before it is a regression. */
+	public static final double DEFAULT_THRESHOLD = 0.10;
+
+	private static final long KIB = 1 << 10;
+	private static final long MIB = 1 << 20;
+	private static final long WARMUP_SIZE = 256 * KIB;
+	// GC time a result may add to its baseline before the threshold applies,
+	// as short runs often collect nothing at all
+	private static final long GC_SLACK_MILLIS = 20;
+
+	private HuffBenchmark() {
+	}
+
+	/**
+	 * Write a corpus. The same kind, size and seed always give the same bytes.
+	 *
+	 * @param kind
+	 *            is the kind of data
+	 * @param size
+	 *            is the number of bytes
+	 * @param seed
+	 *            seeds the generator
+	 * @param out
+	 *            receives the bytes
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	public static void generate(Corpus kind, long size, long seed, OutputStream out) throws IOException {
+		Random random = new Random(seed ^ kind.ordinal() * 0x9E3779B97F4A7C15L);
+		byte[] buf = new byte[HuffContext.BUFFER_SIZE];
+		// ZIPF: cumulative weights; MARKOV: cumulative transitions per letter
+		double[] zipf = null;
+		double[][] markov = null;
+		if (kind == Corpus.ZIPF) {
+			zipf = new double[256];
+			double sum = 0;
+			for (int k = 0; k < 256; k++)
+				zipf[k] = sum += 1.0 / (k + 1);
+			for (int k = 0; k < 256; k++)
+				zipf[k] /= sum;
+		} else if (kind == Corpus.MARKOV) {
+			markov = new double[27][27];
+			for (int a = 0; a < 27; a++) {
+				double sum = 0;
+				for (int b = 0; b < 27; b++) {
+					// a few likely successors per letter
+					double w = random.nextInt(4) == 0 ? random.nextDouble() * 20 : random.nextDouble();
+					markov[a][b] = sum += w;
+				}
+				for (int b = 0; b < 27; b++)
+					markov[a][b] /= sum;
+			}
+		}
+		int state = 0;
+		int run = 0;
+		int value = 0;
+		int column = 0;
+		for (long done = 0; done < size;) {
+			int n = (int) Math.min(buf.length, size - done);
+			for (int i = 0; i < n; i++) {
+				switch (kind) {
+				case UNIFORM:
+					buf[i] = (byte) random.nextInt(256);
+					break;
+				case ZIPF:
+					buf[i] = (byte) search(zipf, random.nextDouble());
+					break;
+				case MARKOV:
+					if (column >= 60 && state == 26) {
+						buf[i] = '\n';
+						column = 0;
+						break;
+					}
+					state = search(markov[state], random.nextDouble());
+					buf[i] = (byte) (state == 26 ? ' ' : 'a' + state);
+					column++;
+					break;
+				case SPARSE:
+					buf[i] = (byte) (random.nextInt(20) == 0 ? random.nextInt(256) : 0);
+					break;
+				case RUNS:
+					if (run == 0) {
+						run = 1 + random.nextInt(128);
+						value = random.nextInt(256);
+					}
+					buf[i] = (byte) value;
+					run--;
+					break;
+				}
+			}
+			out.write(buf, 0, n);
+			done += n;
+		}
+	}
+
+	// first index whose cumulative weight exceeds x
+	private static int search(double[] cumulative, double x) {
+		int lo = 0, hi = cumulative.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (cumulative[mid] > x)
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * The measurements of one corpus.
+	 */
+	public static final class Result {
+		final String corpus;
+		final long size;
+		final double compressMBps;
+		final double decompressMBps;
+		final double ratio;
+		final long peakRssKiB;
+		final long gcMillis;
+
+		Result(String corpus, long size, double compressMBps, double decompressMBps, double ratio, long peakRssKiB,
+				long gcMillis) {
+			this.corpus = corpus;
+			this.size = size;
+			this.compressMBps = compressMBps;
+			this.decompressMBps = decompressMBps;
+			this.ratio = ratio;
+			this.peakRssKiB = peakRssKiB;
+			this.gcMillis = gcMillis;
+		}
+
+		/**
+		 * @return the result as a one-line JSON object
+		 */
+		public String toJson() {
+			return String.format(Locale.ROOT,
+					"{\"corpus\":\"%s\",\"size\":%d,\"compressMBps\":%.2f,\"decompressMBps\":%.2f,"
+							+ "\"ratio\":%.5f,\"peakRssKiB\":%d,\"gcMillis\":%d}",
+					corpus, size, compressMBps, decompressMBps, ratio, peakRssKiB, gcMillis);
+		}
+
+		private String key() {
+			return corpus + "/" + size;
+		}
+	}
+
+	private static final Pattern FIELD = Pattern.compile("\"(\\w+)\":(\"[^\"]*\"|[-0-9.eE]+)");
+
+	/**
+	 * Parse a line written by {@link Result#toJson()}.
+	 *
+	 * @param line
+	 *            is the JSON object
+	 * @return the result, or null if the line holds none
+	 */
+	static Result parse(String line) {
+		Map<String, String> fields = new HashMap<String, String>();
+		Matcher m = FIELD.matcher(line);
+		while (m.find())
+			fields.put(m.group(1), m.group(2).replace("\"", ""));
+		if (!fields.containsKey("corpus") || !fields.containsKey("size"))
+			return null;
+		return new Result(fields.get("corpus"), Long.parseLong(fields.get("size")),
+				number(fields, "compressMBps"), number(fields, "decompressMBps"), number(fields, "ratio"),
+				(long) number(fields, "peakRssKiB"), (long) number(fields, "gcMillis"));
+	}
+
+	private static double number(Map<String, String> fields, String name) {
+		String value = fields.get(name);
+		return value == null ? 0 : Double.parseDouble(value);
+	}
+
+	/**
+	 * Compare results with a baseline. Speeds may drop and the ratio, peak
+	 * RSS and GC time may grow by at most the threshold, GC time with a few
+	 * milliseconds of slack; results with no baseline entry pass, as do peaks
+	 * that either side could not measure.
+	 *
+	 * @param results
+	 *            are the new results
+	 * @param baseline
+	 *            are the results to compare with
+	 * @param threshold
+	 *            is the fraction a value may get worse
+	 * @return a description of each regression, empty if there is none
+	 */
+	static List<String> regressions(List<Result> results, List<Result> baseline, double threshold) {
+		Map<String, Result> old = new HashMap<String, Result>();
+		for (Result r : baseline)
+			old.put(r.key(), r);
+		List<String> found = new ArrayList<String>();
+		for (Result r : results) {
+			Result b = old.get(r.key());
+			if (b == null)
+				continue;
+			if (r.compressMBps < b.compressMBps * (1 - threshold))
+				found.add(String.format(Locale.ROOT, "%s compress %.2f MB/s, baseline %.2f", r.key(), r.compressMBps,
+						b.compressMBps));
+			if (r.decompressMBps < b.decompressMBps * (1 - threshold))
+				found.add(String.format(Locale.ROOT, "%s decompress %.2f MB/s, baseline %.2f", r.key(),
+						r.decompressMBps, b.decompressMBps));
+			if (r.ratio > b.ratio * (1 + threshold))
+				found.add(String.format(Locale.ROOT, "%s ratio %.5f, baseline %.5f", r.key(), r.ratio, b.ratio));
+			if (r.peakRssKiB >= 0 && b.peakRssKiB >= 0 && r.peakRssKiB > b.peakRssKiB * (1 + threshold))
+				found.add(String.format(Locale.ROOT, "%s peak RSS %d KiB, baseline %d", r.key(), r.peakRssKiB,
+						b.peakRssKiB));
+			if (r.gcMillis > b.gcMillis * (1 + threshold) + GC_SLACK_MILLIS)
+				found.add(String.format(Locale.ROOT, "%s GC %d ms, baseline %d", r.key(), r.gcMillis, b.gcMillis));
+		}
+		return found;
+	}
+
+	/**
+	 * Run one corpus: round trips through files in dir, checking the output.
+	 */
+	static Result run(Corpus kind, long size, long seed, File dir, int runs) throws IOException {
+		String name = kind.name().toLowerCase(Locale.ROOT);
+		File corpus = new File(dir, name + "-" + size + "-" + seed + ".bin");
+		if (corpus.length() != size) {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(corpus));
+			try {
+				generate(kind, size, seed, out);
+			} finally {
+				out.close();
+			}
+		}
+		File packed = new File(dir, name + "-" + size + ".huf");
+		File unpacked = new File(dir, name + "-" + size + ".out");
+		long compressNanos = Long.MAX_VALUE;
+		long decompressNanos = Long.MAX_VALUE;
+		boolean reset = resetPeakRss();
+		long gc = gcMillis();
+		for (int i = 0; i < runs; i++) {
+			long t0 = System.nanoTime();
+			new Huff().write(corpus.getPath(), packed.getPath(), true);
+			long t1 = System.nanoTime();
+			new Huff().uncompress(packed.getPath(), unpacked.getPath());
+			long t2 = System.nanoTime();
+			compressNanos = Math.min(compressNanos, t1 - t0);
+			decompressNanos = Math.min(decompressNanos, t2 - t1);
+		}
+		gc = gcMillis() - gc;
+		if (!sameContents(corpus, unpacked))
+			throw new IOException("round trip of " + corpus + " does not match");
+		double ratio = size == 0 ? 1 : (double) packed.length() / size;
+		Result result = new Result(name, size, mbps(size, compressNanos), mbps(size, decompressNanos), ratio,
+				reset ? peakRssKiB() : -1, gc);
+		packed.delete();
+		unpacked.delete();
+		return result;
+	}
+
+	private static double mbps(long bytes, long nanos) {
+		return bytes / (double) MIB / Math.max(nanos, 1) * 1e9;
+	}
+
+	private static long gcMillis() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			total += Math.max(0, gc.getCollectionTime());
+		return total;
+	}
+
+	/**
+	 * Set the high-water mark of the process's resident set to its current
+	 * size, by writing 5 to /proc/self/clear_refs.
+	 *
+	 * @return true if the mark was reset
+	 */
+	static boolean resetPeakRss() {
+		try {
+			OutputStream out = new FileOutputStream("/proc/self/clear_refs");
+			try {
+				out.write('5');
+			} finally {
+				out.close();
+			}
+			return true;
+		} catch (IOException e) {
+			// not Linux, or a kernel before 4.0
+			return false;
+		}
+	}
+
+	/**
+	 * @return the high-water mark of the process's resident set in KiB, -1
+	 *         where /proc/self/status is not available
+	 */
+	static long peakRssKiB() {
+		try {
+			BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("VmHWM:"))
+						return Long.parseLong(line.replaceAll("[^0-9]", ""));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// not Linux
+		}
+		return -1;
+	}
+
+	private static boolean sameContents(File a, File b) throws IOException {
+		if (a.length() != b.length())
+			return false;
+		InputStream x = new BufferedInputStream(new FileInputStream(a));
+		InputStream y = new BufferedInputStream(new FileInputStream(b));
+		try {
+			byte[] bx = new byte[HuffContext.BUFFER_SIZE];
+			byte[] by = new byte[HuffContext.BUFFER_SIZE];
+			int n;
+			while ((n = x.readNBytes(bx, 0, bx.length)) > 0) {
+				if (y.readNBytes(by, 0, n) != n || !java.util.Arrays.equals(bx, 0, n, by, 0, n))
+					return false;
+			}
+			return true;
+		} finally {
+			x.close();
+			y.close();
+		}
+	}
+
+	/**
+	 * @return the sizes from min to max by factors of 8, ending with max
+	 */
+	static List<Long> sizes(long min, long max) {
+		List<Long> sizes = new ArrayList<Long>();
+		for (long size = min; size <= max; size = size > 0 && size < max / 8 ? size * 8 : Math.max(size + 1, max)) {
+			sizes.add(size);
+			if (size == max)
+				break;
+		}
+		return sizes;
+	}
+
+	static long parseSize(String s) {
+		char unit = Character.toUpperCase(s.charAt(s.length() - 1));
+		long scale = unit == 'K' ? KIB : unit == 'M' ? MIB : unit == 'G' ? MIB * KIB : 1;
+		return Long.parseLong(scale == 1 ? s : s.substring(0, s.length() - 1)) * scale;
+	}
+
+	public static void main(String[] args) throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "huff-bench");
+		long minSize = KIB;
+		long maxSize = 64 * MIB;
+		int runs = 3;
+		int warmup = 5;
+		long seed = 42;
+		String outFile = null;
+		String baselineFile = null;
+		double threshold = DEFAULT_THRESHOLD;
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length)
+				usage("missing value for " + args[i]);
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "--dir":
+				dir = new File(value);
+				break;
+			case "--min-size":
+				minSize = parseSize(value);
+				break;
+			case "--max-size":
+				maxSize = parseSize(value);
+				break;
+			case "--runs":
+				runs = Integer.parseInt(value);
+				break;
+			case "--warmup":
+				warmup = Integer.parseInt(value);
+				break;
+			case "--seed":
+				seed = Long.parseLong(value);
+				break;
+			case "--out":
+				outFile = value;
+				break;
+			case "--baseline":
+				baselineFile = value;
+				break;
+			case "--threshold":
+				threshold = Double.parseDouble(value);
+				break;
+			default:
+				usage("unknown option " + args[i]);
+			}
+		}
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create " + dir);
+		PrintStream out = outFile == null ? System.out : new PrintStream(new FileOutputStream(outFile), true, "UTF-8");
+		for (int i = 0; i < warmup; i++) {
+			for (Corpus kind : Corpus.values())
+				run(kind, WARMUP_SIZE, seed, dir, 1);
+		}
+		List<Result> results = new ArrayList<Result>();
+		for (long size : sizes(minSize, maxSize)) {
+			for (Corpus kind : Corpus.values()) {
+				Result r = run(kind, size, seed, dir, runs);
+				results.add(r);
+				out.println(r.toJson());
+			}
+		}
+		if (out != System.out)
+			out.close();
+		if (baselineFile != null) {
+			List<Result> baseline = new ArrayList<Result>();
+			BufferedReader in = new BufferedReader(new FileReader(baselineFile));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					Result r = parse(line);
+					if (r != null)
+						baseline.add(r);
+				}
+			} finally {
+				in.close();
+			}
+			List<String> found = regressions(results, baseline, threshold);
+			for (String s : found)
+				System.err.println("regression: " + s);
+			if (!found.isEmpty())
+				System.exit(1);
+		}
+	}
+
+	private static void usage(String message) {
+		System.err.println(message);
+		System.err.println("usage: java HuffBenchmark [--dir d] [--min-size n] [--max-size n] [--runs n]"
+				+ " [--warmup n] [--seed n] [--out file] [--baseline file] [--threshold f]");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,326 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compression between buffers in memory, for callers that hold their data in
+ * byte arrays or NIO buffers and would otherwise go through temporary files.
+ * The compressed form is the file format <code>Huff</code> writes: compressing
+ * makes one segment, MAGIC_NUMBER, the tree, the codes ending with PSEUDO_EOF,
+ * padded to a byte boundary; decompressing takes any number of segments, with
+ * or without sync indexes between them, as <code>Huff.write</code> and
+ * <code>Huff.append</code> make them. So either side may be a file.
+ * <P>
+ * Heap and direct buffers both work. Chunks are counted and coded straight out
+ * of the source buffer and codes go straight into the destination; a direct
+ * source is only copied when decompressing, since the table decoder reads
+ * from an array.
+ */
+public final class HuffBuffers implements IHuffConstants {
+
+	// magic number and a tree of every chunk and PSEUDO_EOF
+	private static final long MAX_HEADER_BITS = BITS_PER_INT + 11L * (ALPH_SIZE + 1) - 1;
+
+	private HuffBuffers() {
+	}
+
+	/**
+	 * The most bytes compressing <code>n</code> chunks can take, to size a
+	 * destination buffer once. A code giving 8 bits to every chunk but the
+	 * rarest, which shares 9 bits with PSEUDO_EOF, never beats the Huffman
+	 * code, so the codes take at most 8n + n / 256 + 9 bits.
+	 *
+	 * @param n
+	 *            is the number of chunks to compress
+	 * @return the bound in bytes
+	 * @throws IllegalArgumentException
+	 *             if n is negative or the bound does not fit in an int
+	 */
+	public static int maxCompressedLength(int n) {
+		if (n < 0)
+			throw new IllegalArgumentException("negative length " + n);
+		long bits = MAX_HEADER_BITS + 8L * n + n / ALPH_SIZE + 9;
+		long bytes = (bits + 7) / 8;
+		if (bytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("length too large " + n);
+		return (int) bytes;
+	}
+
+	/**
+	 * Compress the remaining bytes of <code>src</code> into <code>dst</code>.
+	 * On return the position of src is at its limit and the position of dst
+	 * is after the compressed data.
+	 *
+	 * @param src
+	 *            holds the chunks to compress
+	 * @param dst
+	 *            receives the compressed data
+	 * @return the number of bytes written to dst
+	 * @throws BufferOverflowException
+	 *             if dst has too little room, in which case neither buffer is
+	 *             changed
+	 */
+	public static int compress(ByteBuffer src, ByteBuffer dst) {
+		int[] counts = count(src);
+		HuffCodec codec = HuffCodec.fromCounts(counts);
+		long bytes = (codec.headerSize() + codec.compressedSize(counts) + 7) / 8;
+		if (bytes > dst.remaining())
+			throw new BufferOverflowException();
+		int start = dst.position();
+		encode(codec, src, new BufferWriter(dst));
+		return dst.position() - start;
+	}
+
+	/**
+	 * Compress an array.
+	 *
+	 * @param data
+	 *            holds the chunks to compress
+	 * @return the compressed data
+	 */
+	public static byte[] compress(byte[] data) {
+		return compress(data, 0, data.length);
+	}
+
+	/**
+	 * Compress a region of an array.
+	 *
+	 * @param data
+	 *            holds the chunks to compress
+	 * @param off
+	 *            is the first chunk compressed
+	 * @param len
+	 *            is the number of chunks compressed
+	 * @return the compressed data
+	 */
+	public static byte[] compress(byte[] data, int off, int len) {
+		ByteBuffer src = ByteBuffer.wrap(data, off, len);
+		int[] counts = count(src);
+		HuffCodec codec = HuffCodec.fromCounts(counts);
+		byte[] packed = new byte[(int) ((codec.headerSize() + codec.compressedSize(counts) + 7) / 8)];
+		encode(codec, src, new BufferWriter(ByteBuffer.wrap(packed)));
+		return packed;
+	}
+
+	private static int[] count(ByteBuffer src) {
+		CharCounter cc = new CharCounter();
+		if (src.hasArray()) {
+			cc.addAll(src.array(), src.arrayOffset() + src.position(), src.remaining());
+		} else {
+			ByteBuffer view = src.duplicate();
+			byte[] buf = HuffContext.get().in;
+			while (view.hasRemaining()) {
+				int n = Math.min(buf.length, view.remaining());
+				view.get(buf, 0, n);
+				cc.addAll(buf, 0, n);
+			}
+		}
+		return cc.toArray();
+	}
+
+	private static void encode(HuffCodec codec, ByteBuffer src, BufferWriter out) {
+		// the header is a few hundred bits, staged through a stream
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		BitOutputStream bitout = new BitOutputStream(header);
+		int headerBits = codec.writeHeader(bitout);
+		bitout.flush();
+		byte[] h = header.toByteArray();
+		for (int i = 0; i < headerBits / 8; i++)
+			out.write(8, h[i]);
+		if (headerBits % 8 != 0)
+			out.write(headerBits % 8, (h[headerBits / 8] & 0xff) >>> (8 - headerBits % 8));
+		if (src.hasArray()) {
+			byte[] data = src.array();
+			int off = src.arrayOffset() + src.position();
+			for (int i = off, end = off + src.remaining(); i < end; i++)
+				out.write(codec, data[i] & 0xff);
+			src.position(src.limit());
+		} else {
+			while (src.hasRemaining())
+				out.write(codec, src.get() & 0xff);
+		}
+		out.write(codec, PSEUDO_EOF);
+		out.align();
+	}
+
+	/**
+	 * Decompress the remaining bytes of <code>src</code>, one or more
+	 * compressed segments, into <code>dst</code>. On return src has no bytes
+	 * remaining and the position of dst is after the decompressed data.
+	 *
+	 * @param src
+	 *            holds the compressed data
+	 * @param dst
+	 *            receives the chunks
+	 * @return the number of bytes written to dst
+	 * @throws IOException
+	 *             if src is not compressed data or is damaged
+	 * @throws BufferOverflowException
+	 *             if dst has too little room; dst then holds part of the
+	 *             data
+	 */
+	public static int decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+		byte[] data;
+		int off;
+		int len = src.remaining();
+		if (src.hasArray()) {
+			data = src.array();
+			off = src.arrayOffset() + src.position();
+		} else {
+			data = new byte[len];
+			off = 0;
+			src.duplicate().get(data);
+		}
+		int start = dst.position();
+		decodeSegments(data, off, len, new BufferOutput(dst));
+		src.position(src.limit());
+		return dst.position() - start;
+	}
+
+	/**
+	 * Decompress an array holding one or more compressed segments.
+	 *
+	 * @param data
+	 *            holds the compressed data
+	 * @return the chunks
+	 * @throws IOException
+	 *             if data is not compressed data or is damaged
+	 */
+	public static byte[] decompress(byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+		decodeSegments(data, 0, data.length, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode segments one after another until the data ends, skipping the
+	 * sync indexes between them, the way <code>Huff.decodeSegments</code>
+	 * reads a file.
+	 */
+	private static void decodeSegments(byte[] data, int off, int len, OutputStream out) throws IOException {
+		BitArrayReader in = new BitArrayReader(data, off, len);
+		int pos = 0;
+		do {
+			in.reset(data, off + pos, len - pos);
+			int magic = in.read(BITS_PER_INT);
+			if (pos > 0 && magic == SYNC_MAGIC) {
+				in.read(BITS_PER_INT);
+				int count = in.read(BITS_PER_INT);
+				if (in.overrun() || count < 0 || count > len / 16 || SyncIndex.byteSize(count) > len - pos)
+					throw new IOException("bad sync index");
+				pos += SyncIndex.byteSize(count);
+			} else {
+				// each segment, or index, starts on a byte boundary
+				pos += (int) ((decode(data, off + pos, len - pos, out) + 7) / 8);
+			}
+		} while (pos < len);
+	}
+
+	/**
+	 * Decode a segment with a lookup table, staging chunks in the thread's
+	 * context buffer.
+	 *
+	 * @return the number of bits read, header included
+	 */
+	private static long decode(byte[] data, int off, int len, OutputStream out) throws IOException {
+		BitInputStream bitin = new BitInputStream(new ByteArrayInputStream(data, off, len));
+		if (bitin.read(BITS_PER_INT) != MAGIC_NUMBER)
+			throw new IOException("magic number not right");
+		HuffArrayTree tree = HuffArrayTree.read(bitin);
+		BitArrayReader in = new BitArrayReader(data, off, len);
+		for (int skip = BITS_PER_INT + tree.size(); skip > 0; skip -= BITS_PER_INT)
+			in.read(Math.min(skip, BITS_PER_INT));
+		if (tree.root() < 0) {
+			// a lone PSEUDO_EOF has an empty code, nothing was coded
+			if (~tree.root() != PSEUDO_EOF)
+				throw new IOException("tree has no PSEUDO_EOF");
+			return in.position();
+		}
+		HuffDecodeTable table = new HuffDecodeTable(tree);
+		byte[] buf = HuffContext.get().out;
+		int pos = 0;
+		int n;
+		while ((n = table.next(in, buf, pos)) > 0) {
+			if (in.overrun())
+				throw new IOException("unexpected end of input file");
+			pos += n;
+			if (pos + HuffDecodeTable.MAX_CHUNKS > buf.length) {
+				out.write(buf, 0, pos);
+				pos = 0;
+			}
+		}
+		if (in.overrun())
+			throw new IOException("unexpected end of input file");
+		out.write(buf, 0, pos);
+		return in.position();
+	}
+
+	/**
+	 * Writes bits into a buffer a byte at a time, most significant bit first.
+	 */
+	private static final class BufferWriter {
+
+		private final ByteBuffer dst;
+		// pending bits, right aligned
+		private long buffer;
+		private int bits;
+
+		BufferWriter(ByteBuffer dst) {
+			this.dst = dst;
+		}
+
+		void write(HuffCodec codec, int ch) {
+			int len = codec.codeLength(ch);
+			if (len < 0)
+				throw new IllegalArgumentException("no code for chunk " + ch);
+			long code = codec.code(ch);
+			if (len > BITS_PER_INT) {
+				write(len - BITS_PER_INT, code >>> BITS_PER_INT);
+				len = BITS_PER_INT;
+			}
+			write(len, code);
+		}
+
+		// 0 to 32 bits
+		void write(int howManyBits, long value) {
+			if (howManyBits == 0)
+				return;
+			buffer = buffer << howManyBits | (value & (-1L >>> (64 - howManyBits)));
+			bits += howManyBits;
+			while (bits >= 8) {
+				bits -= 8;
+				dst.put((byte) (buffer >>> bits));
+			}
+		}
+
+		void align() {
+			if (bits > 0)
+				dst.put((byte) (buffer << (8 - bits)));
+			bits = 0;
+			buffer = 0;
+		}
+	}
+
+	/**
+	 * Adapts a buffer to the decoder's output.
+	 */
+	private static final class BufferOutput extends OutputStream {
+
+		private final ByteBuffer dst;
+
+		BufferOutput(ByteBuffer dst) {
+			this.dst = dst;
+		}
+
+		public void write(int b) {
+			dst.put((byte) b);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			dst.put(b, off, len);
+		}
+	}
+}
@@ -0,0 +1,485 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable Huffman codec. A codec is built once, either from a histogram of
+ * chunk counts or from a header read out of a compressed file, and can then be
+ * shared between any number of threads: nothing in it changes after
+ * construction and nothing mutable is handed out. Buffers needed while coding
+ * come from the calling thread's {@link HuffContext}.
+ */
+public final class HuffCodec implements IHuffConstants {
+
+	private final HuffArrayTree tree;
+	// code bits for each chunk, right aligned
+	private final long[] codes;
+	// code length for each chunk, -1 if the chunk is not in the tree
+	private final int[] lengths;
+	// built on first use; racing threads build equal tables
+	private HuffDecodeTable decodeTable;
+
+	/**
+	 * Create a codec for a tree. The tree is flattened, so later changes to it
+	 * do not affect the codec.
+	 *
+	 * @param tree
+	 *            is the Huffman tree to code with
+	 */
+	public HuffCodec(HuffTree tree) {
+		this(HuffArrayTree.fromTree(tree));
+	}
+
+	/**
+	 * Create a codec for a flat tree.
+	 *
+	 * @param tree
+	 *            is the Huffman tree to code with
+	 */
+	public HuffCodec(HuffArrayTree tree) {
+		this.tree = tree;
+		codes = new long[ALPH_SIZE + 1];
+		lengths = new int[ALPH_SIZE + 1];
+		Arrays.fill(lengths, -1);
+		tree.makeTable(codes, lengths);
+	}
+
+	/**
+	 * Build a codec from a map of chunk counts; PSEUDO_EOF is added.
+	 *
+	 * @param counts
+	 *            maps each chunk to its frequency
+	 * @return the codec
+	 */
+	public static HuffCodec fromCounts(Map<Integer, Integer> counts) {
+		return new HuffCodec(buildTree(counts));
+	}
+
+	/**
+	 * Build a codec from an array of chunk counts indexed by chunk; PSEUDO_EOF is
+	 * added. An array longer than ALPH_SIZE gives the weight of PSEUDO_EOF too,
+	 * for formats that use it as a symbol of their own.
+	 *
+	 * @param counts
+	 *            holds the frequency of each chunk, zero for absent chunks
+	 * @return the codec
+	 */
+	public static HuffCodec fromCounts(int[] counts) {
+		Map<Integer, Integer> map = new HashMap<Integer, Integer>();
+		for (int i = 0; i <= PSEUDO_EOF && i < counts.length; i++) {
+			if (counts[i] != 0)
+				map.put(i, counts[i]);
+		}
+		return fromCounts(map);
+	}
+
+	/**
+	 * Build a codec for chunks only, without PSEUDO_EOF, for formats that
+	 * store the number of chunks instead of ending with a marker.
+	 *
+	 * @param counts
+	 *            holds the frequency of each chunk, zero for absent chunks
+	 * @return the codec
+	 * @throws IllegalArgumentException
+	 *             if no chunk is counted
+	 */
+	public static HuffCodec fromChunkCounts(int[] counts) {
+		HuffTree[] h = new HuffTree[ALPH_SIZE];
+		MinHeap Hheap = new MinHeap(h, 0, ALPH_SIZE);
+		for (int ch = 0; ch < ALPH_SIZE && ch < counts.length; ch++) {
+			if (counts[ch] != 0)
+				Hheap.insert(new HuffTree(ch, counts[ch]));
+		}
+		if (Hheap.heapsize() == 0)
+			throw new IllegalArgumentException("no chunks counted");
+		return new HuffCodec(merge(Hheap));
+	}
+
+	/**
+	 * Read a header, including the magic number, and build the codec it
+	 * describes.
+	 *
+	 * @param in
+	 *            is source of bits for header
+	 * @return the codec stored in the header
+	 * @throws IOException
+	 *             if the magic number is wrong or reading fails
+	 */
+	public static HuffCodec readHeader(BitInputStream in) throws IOException {
+		int magic = in.read(BITS_PER_INT);
+		if (magic != MAGIC_NUMBER) {
+			throw new IOException("magic number not right");
+		}
+		return new HuffCodec(HuffArrayTree.read(in));
+	}
+
+	/**
+	 * Build the Huffman tree for a map of chunk counts plus one PSEUDO_EOF.
+	 *
+	 * @param counts
+	 *            maps each chunk to its frequency
+	 * @return the Huffman tree
+	 */
+	public static HuffTree buildTree(Map<Integer, Integer> counts) {
+		return merge(buildHeap(counts));
+	}
+
+	// merge the two lightest trees until one is left
+	private static HuffTree merge(MinHeap Hheap) {
+		if (Hheap.heapsize() > 1) {
+			HuffTree tmp1, tmp2, tmp3 = null;
+			while (Hheap.heapsize() > 1) { // While two items left
+				tmp1 = (HuffTree) Hheap.removemin();
+				tmp2 = (HuffTree) Hheap.removemin();
+				tmp3 = new HuffTree(tmp1.root(), tmp2.root(), tmp1.weight() + tmp2.weight());
+				Hheap.insert(tmp3); // Return new tree to heap
+			}
+			return tmp3;
+		}
+		return (HuffTree) Hheap.removemin();
+	}
+
+	/**
+	 * Build a heap of single-leaf trees, one per counted chunk and one for
+	 * PSEUDO_EOF, with weight 1 unless the map gives it a count.
+	 *
+	 * @param counts
+	 *            maps each chunk to its frequency
+	 * @return the heap
+	 */
+	static MinHeap buildHeap(Map<Integer, Integer> counts) {
+		HuffTree[] h = new HuffTree[ALPH_SIZE + 1];
+		MinHeap Hheap = new MinHeap(h, 0, ALPH_SIZE + 1);
+		for (int key : counts.keySet()) {
+			Hheap.insert(new HuffTree(key, counts.get(key)));
+		}
+		if (!counts.containsKey(PSEUDO_EOF))
+			Hheap.insert(new HuffTree(PSEUDO_EOF, 1));
+		return Hheap;
+	}
+
+	/**
+	 * @return the tree the codes come from
+	 */
+	public HuffArrayTree tree() {
+		return tree;
+	}
+
+	/**
+	 * @return the lookup table for decoding with this codec
+	 * @throws IllegalArgumentException
+	 *             if the tree is a single leaf
+	 */
+	public HuffDecodeTable decodeTable() {
+		HuffDecodeTable table = decodeTable;
+		if (table == null) {
+			table = new HuffDecodeTable(tree);
+			decodeTable = table;
+		}
+		return table;
+	}
+
+	/**
+	 * @param ch
+	 *            is a chunk or PSEUDO_EOF
+	 * @return true if the chunk has a code
+	 */
+	public boolean hasCode(int ch) {
+		return lengths[ch] >= 0;
+	}
+
+	/**
+	 * @param ch
+	 *            is a chunk or PSEUDO_EOF
+	 * @return the number of bits in the code for the chunk
+	 */
+	public int codeLength(int ch) {
+		return lengths[ch];
+	}
+
+	/**
+	 * @param ch
+	 *            is a chunk or PSEUDO_EOF
+	 * @return the code bits for the chunk, right aligned
+	 */
+	public long code(int ch) {
+		return codes[ch];
+	}
+
+	/**
+	 * Returns coding, e.g., "010111" for specified chunk/character.
+	 *
+	 * @param ch
+	 *            is a chunk or PSEUDO_EOF
+	 * @return the code as a string of 0 and 1, or null if the chunk has no code
+	 */
+	public String codeString(int ch) {
+		int len = lengths[ch];
+		if (len < 0)
+			return null;
+		StringBuilder sb = new StringBuilder(len);
+		for (int i = len - 1; i >= 0; i--)
+			sb.append((codes[ch] >>> i & 1) == 0 ? '0' : '1');
+		return sb.toString();
+	}
+
+	/**
+	 * Number of payload bits needed to code the given counts, including the
+	 * PSEUDO_EOF code but not the header.
+	 *
+	 * @param counts
+	 *            holds the frequency of each chunk
+	 * @return the number of payload bits
+	 * @throws IllegalArgumentException
+	 *             if a counted chunk has no code
+	 */
+	public long compressedSize(int[] counts) {
+		long size = lengths[PSEUDO_EOF];
+		for (int i = 0; i < ALPH_SIZE && i < counts.length; i++) {
+			if (counts[i] == 0)
+				continue;
+			if (lengths[i] < 0)
+				throw new IllegalArgumentException("no code for chunk " + i);
+			size += (long) counts[i] * lengths[i];
+		}
+		return size;
+	}
+
+	/**
+	 * The number of bits needed to code the counted symbols with this codec,
+	 * e.g., to decide whether a block can be coded with the table of the
+	 * previous one.
+	 *
+	 * @param counts
+	 *            holds the frequency of each chunk, and of PSEUDO_EOF if the
+	 *            array is longer than ALPH_SIZE
+	 * @return the number of bits, or -1 if a counted symbol has no code
+	 */
+	public long payloadSize(int[] counts) {
+		long size = 0;
+		for (int i = 0; i <= PSEUDO_EOF && i < counts.length; i++) {
+			if (counts[i] == 0)
+				continue;
+			if (lengths[i] < 0)
+				return -1;
+			size += (long) counts[i] * lengths[i];
+		}
+		return size;
+	}
+
+	/**
+	 * Decide whether a block is coded smaller with the table of an earlier
+	 * block, sent as a flag, than with its own table, whose tree has to be
+	 * sent too.
+	 *
+	 * @param previous
+	 *            is the earlier table, or null if there is none
+	 * @param fresh
+	 *            is the table built from the block's counts
+	 * @param counts
+	 *            holds the counts of the block, as for payloadSize
+	 * @return true if previous should be used
+	 */
+	public static boolean reusable(HuffCodec previous, HuffCodec fresh, int[] counts) {
+		if (previous == null)
+			return false;
+		long old = previous.payloadSize(counts);
+		return old >= 0 && old <= fresh.tree.size() + fresh.payloadSize(counts);
+	}
+
+	/**
+	 * The number of bits in the header, including the magic number.
+	 *
+	 * @return the number of bits in the header
+	 */
+	public int headerSize() {
+		return BITS_PER_INT + tree.size();
+	}
+
+	/**
+	 * Write the header, including magic number and all bits needed to
+	 * reconstruct the codec with <code>readHeader</code>.
+	 *
+	 * @param out
+	 *            is where the header is written
+	 * @return the size of the header
+	 */
+	public int writeHeader(BitOutputStream out) {
+		out.write(BITS_PER_INT, MAGIC_NUMBER);
+		tree.write(out);
+		return headerSize();
+	}
+
+	/**
+	 * Code every chunk of a stream followed by PSEUDO_EOF.
+	 *
+	 * @param in
+	 *            is the data to compress
+	 * @param out
+	 *            receives the codes
+	 * @return the number of bits written
+	 * @throws IOException
+	 *             if reading fails
+	 * @throws IllegalArgumentException
+	 *             if the stream holds a chunk with no code
+	 */
+	public long encode(InputStream in, BitOutputStream out) throws IOException {
+		return encode(in, out, null);
+	}
+
+	/**
+	 * Code every chunk of a stream followed by PSEUDO_EOF, recording a sync
+	 * point every <code>index.interval()</code> chunks.
+	 *
+	 * @param in
+	 *            is the data to compress
+	 * @param out
+	 *            receives the codes, positioned right after the header
+	 * @param index
+	 *            receives the sync points, or null to record none
+	 * @return the number of bits written
+	 * @throws IOException
+	 *             if reading fails
+	 * @throws IllegalArgumentException
+	 *             if the stream holds a chunk with no code
+	 */
+	public long encode(InputStream in, BitOutputStream out, SyncIndex index) throws IOException {
+		byte[] buf = HuffContext.get().in;
+		long size = 0;
+		long offset = 0;
+		// bit position is counted from the start of the header
+		long start = headerSize();
+		long nextSync = index == null ? Long.MAX_VALUE : 0;
+		int n;
+		while ((n = in.read(buf, 0, buf.length)) != -1) {
+			for (int i = 0; i < n; i++) {
+				if (offset == nextSync) {
+					index.add(offset, start + size);
+					nextSync += index.interval();
+				}
+				size += writeCode(buf[i] & 0xff, out);
+				offset++;
+			}
+		}
+		size += writeCode(PSEUDO_EOF, out);
+		if (index != null)
+			index.finish(offset, (start + size + 7) / 8);
+		return size;
+	}
+
+	/**
+	 * Code every chunk of a stream, without PSEUDO_EOF, for formats that
+	 * store the number of chunks.
+	 *
+	 * @param in
+	 *            is the data to compress
+	 * @param out
+	 *            receives the codes
+	 * @return the number of bits written
+	 * @throws IOException
+	 *             if reading fails
+	 * @throws IllegalArgumentException
+	 *             if the stream holds a chunk with no code
+	 */
+	public long encodeChunks(InputStream in, BitOutputStream out) throws IOException {
+		byte[] buf = HuffContext.get().in;
+		long size = 0;
+		int n;
+		while ((n = in.read(buf, 0, buf.length)) != -1) {
+			for (int i = 0; i < n; i++)
+				size += writeCode(buf[i] & 0xff, out);
+		}
+		return size;
+	}
+
+	private int writeCode(int ch, BitOutputStream out) {
+		int len = lengths[ch];
+		if (len < 0)
+			throw new IllegalArgumentException("no code for chunk " + ch);
+		long code = codes[ch];
+		if (len > BITS_PER_INT) {
+			out.write(len - BITS_PER_INT, (int) (code >>> BITS_PER_INT));
+			out.write(BITS_PER_INT, (int) code);
+		} else if (len > 0) {
+			out.write(len, (int) code);
+		}
+		return len;
+	}
+
+	/**
+	 * Decode chunks until PSEUDO_EOF is read.
+	 *
+	 * @param in
+	 *            is the source of code bits, positioned after the header
+	 * @param out
+	 *            receives the decoded chunks
+	 * @return the number of chunks written
+	 * @throws IOException
+	 *             if the input ends before PSEUDO_EOF or writing fails
+	 */
+	public long decode(BitInputStream in, OutputStream out) throws IOException {
+		return decode(in, out, 0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Decode chunks until PSEUDO_EOF is read or enough chunks were written.
+	 * The first <code>skip</code> chunks are decoded but not written.
+	 *
+	 * @param in
+	 *            is the source of code bits, positioned at a chunk boundary
+	 * @param out
+	 *            receives the decoded chunks
+	 * @param skip
+	 *            is the number of chunks to drop before writing
+	 * @param limit
+	 *            is the most chunks to write
+	 * @return the number of chunks decoded, skipped ones included
+	 * @throws IOException
+	 *             if the input ends before PSEUDO_EOF or writing fails
+	 */
+	public long decode(BitInputStream in, OutputStream out, long skip, long limit) throws IOException {
+		int root = tree.root();
+		if (root < 0) {
+			// a lone PSEUDO_EOF has an empty code, nothing was coded
+			if (~root == PSEUDO_EOF)
+				return 0;
+			if (in.read(1) == -1)
+				throw new IOException("unexpected end of input file");
+			throw new IOException("tree has no PSEUDO_EOF");
+		}
+		byte[] buf = HuffContext.get().out;
+		int pos = 0;
+		long size = 0;
+		long skipped = 0;
+		int node = root;
+		while (size < limit) {
+			int bits = in.read(1);
+			if (bits == -1) {
+				out.write(buf, 0, pos);
+				throw new IOException("unexpected end of input file");
+			}
+			node = tree.child(node, bits);
+			if (node < 0) {
+				int element = ~node;
+				if (element == PSEUDO_EOF)
+					break;
+				node = root;
+				if (skipped < skip) {
+					skipped++;
+					continue;
+				}
+				buf[pos++] = (byte) element;
+				if (pos == buf.length) {
+					out.write(buf, 0, pos);
+					pos = 0;
+				}
+				size++;
+			}
+		}
+		out.write(buf, 0, pos);
+		return skipped + size;
+	}
+}
@@ -0,0 +1,31 @@
+/**
+ * Per-thread scratch state for {@link HuffCodec}. A codec is immutable and may
+ * be shared by any number of threads, so the buffers it needs while encoding or
+ * decoding are borrowed from the calling thread's context instead of being
+ * allocated on every call.
+ * <P>
+ * A context must not escape the thread that obtained it from {@link #get()}.
+ */
+final class HuffContext {
+
+	/** Size in bytes of each scratch buffer. */
+	static final int BUFFER_SIZE = 1 << 16;
+
+	private static final ThreadLocal<HuffContext> LOCAL = ThreadLocal.withInitial(HuffContext::new);
+
+	/** Raw input staged for encoding. */
+	final byte[] in = new byte[BUFFER_SIZE];
+
+	/** Decoded output staged before it is written out. */
+	final byte[] out = new byte[BUFFER_SIZE];
+
+	private HuffContext() {
+	}
+
+	/**
+	 * @return the context owned by the calling thread
+	 */
+	static HuffContext get() {
+		return LOCAL.get();
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Lookup table that decodes a chunk with one array access instead of one tree
+ * step per bit. The table is indexed by the next <code>LOOKUP_BITS</code> bits
+ * of input. An entry for a code that fits holds the chunk and code length;
+ * for longer codes it holds the internal node reached after
+ * <code>LOOKUP_BITS</code> bits, and decoding continues from there a bit at a
+ * time. The table is immutable and may be shared between threads.
+ * <P>
+ * A second table, for {@link #next(BitArrayReader, byte[], int)}, holds up
+ * to <code>MAX_CHUNKS</code> chunks whose codes together fit in the lookup
+ * bits, so that runs of short codes cost one lookup for several chunks.
+ */
+public final class HuffDecodeTable implements IHuffConstants {
+
+	/** Number of bits resolved by one lookup. */
+	public static final int LOOKUP_BITS = 11;
+
+	/** Most chunks decoded by one lookup of the second table. */
+	public static final int MAX_CHUNKS = 4;
+
+	private final HuffArrayTree tree;
+	// chunk << 8 | code length, or ~node for codes longer than LOOKUP_BITS
+	private final int[] entries;
+	// count << 36 | total length << 32 | chunks, the first in the low byte;
+	// count is 0 if the first code is PSEUDO_EOF or does not fit
+	private final long[] runs;
+
+	/**
+	 * Build the table for a tree with at least one internal node.
+	 *
+	 * @param tree
+	 *            is the Huffman tree
+	 * @throws IllegalArgumentException
+	 *             if the tree is a single leaf
+	 */
+	public HuffDecodeTable(HuffArrayTree tree) {
+		if (tree.root() < 0)
+			throw new IllegalArgumentException("tree has no codes");
+		this.tree = tree;
+		entries = new int[1 << LOOKUP_BITS];
+		for (int i = 0; i < entries.length; i++) {
+			int node = tree.root();
+			int len = 0;
+			while (node >= 0 && len < LOOKUP_BITS) {
+				node = tree.child(node, i >>> (LOOKUP_BITS - 1 - len) & 1);
+				len++;
+			}
+			entries[i] = node < 0 ? (~node) << 8 | len : ~node;
+		}
+		// the codes after the first are read from the same bits, shifted
+		runs = new long[entries.length];
+		for (int i = 0; i < runs.length; i++) {
+			long chunks = 0;
+			int count = 0;
+			int used = 0;
+			while (count < MAX_CHUNKS) {
+				int e = entries[i << used & (entries.length - 1)];
+				if (e < 0 || (e >>> 8) >= PSEUDO_EOF || used + (e & 0xff) > LOOKUP_BITS)
+					break;
+				chunks |= (long) (e >>> 8) << (8 * count);
+				count++;
+				used += e & 0xff;
+			}
+			runs[i] = (long) count << 36 | (long) used << 32 | chunks;
+		}
+	}
+
+	/**
+	 * Decode the next chunk.
+	 *
+	 * @param in
+	 *            is the source of code bits
+	 * @return the chunk, or PSEUDO_EOF
+	 */
+	public int next(BitArrayReader in) {
+		int e = entries[in.peek(LOOKUP_BITS)];
+		if (e >= 0) {
+			in.skip(e & 0xff);
+			return e >>> 8;
+		}
+		in.skip(LOOKUP_BITS);
+		int node = ~e;
+		while ((node = tree.child(node, in.readBit())) >= 0)
+			;
+		return ~node;
+	}
+
+	/**
+	 * Decode the next chunks, as many as fit in one lookup. The tree must
+	 * hold only chunks and PSEUDO_EOF. Codes are consumed up to and including
+	 * the chunks returned, so a caller that needs at most a given number of
+	 * chunks, or that must not read past some position, decodes its last
+	 * chunks with {@link #next(BitArrayReader)}.
+	 *
+	 * @param in
+	 *            is the source of code bits
+	 * @param buf
+	 *            receives the chunks; <code>MAX_CHUNKS</code> bytes from pos
+	 *            on are written over
+	 * @param pos
+	 *            is where the first chunk goes
+	 * @return the number of chunks decoded, at least 1, or -1 if the next
+	 *         code was PSEUDO_EOF
+	 */
+	public int next(BitArrayReader in, byte[] buf, int pos) {
+		long e = runs[in.peek(LOOKUP_BITS)];
+		int count = (int) (e >>> 36);
+		if (count == 0) {
+			int ch = next(in);
+			if (ch == PSEUDO_EOF)
+				return -1;
+			buf[pos] = (byte) ch;
+			return 1;
+		}
+		in.skip((int) (e >>> 32) & 0xf);
+		int chunks = (int) e;
+		buf[pos] = (byte) chunks;
+		buf[pos + 1] = (byte) (chunks >>> 8);
+		buf[pos + 2] = (byte) (chunks >>> 16);
+		buf[pos + 3] = (byte) (chunks >>> 24);
+		return count;
+	}
+}
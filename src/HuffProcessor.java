@@ -0,0 +1,433 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code>Flow.Processor</code> stage that compresses or decompresses a
+ * stream of buffers, for reactive pipelines that cannot block on files. The
+ * compressed stream is a sequence of segments of at most a block of chunks
+ * each, the format <code>Huff</code> writes without sync points, so it can be
+ * stored and read back with <code>Huff.uncompress</code>.
+ * <P>
+ * The stage honors downstream demand: it asks upstream for one buffer at a
+ * time and only once the output of the previous one was requested, so it
+ * holds at most one upstream buffer, one block and one output buffer however
+ * fast upstream produces. Every buffer passed downstream is newly allocated
+ * and owned by the subscriber; buffers received from upstream are read but
+ * not kept once consumed.
+ * <P>
+ * A processor serves a single subscriber. Signals from either side may come
+ * from any thread; they are serialized by a drain loop.
+ */
+public abstract class HuffProcessor implements Flow.Processor<ByteBuffer, ByteBuffer>, IHuffConstants {
+
+	/** Chunks per block used by the factories without a block size. */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 18;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private volatile Flow.Subscription upstream;
+	private volatile Flow.Subscriber<? super ByteBuffer> downstream;
+	private final AtomicLong requested = new AtomicLong();
+	private final AtomicInteger wip = new AtomicInteger();
+	// upstream buffer being consumed, null once consumed
+	private volatile ByteBuffer pending;
+	// a buffer was requested from upstream and has not arrived
+	private volatile boolean asked;
+	private volatile boolean done;
+	private volatile Throwable error;
+	private volatile boolean cancelled;
+	// the subscriber requested a non-positive number of buffers
+	private volatile boolean invalid;
+	// accessed by the drain loop only
+	private ByteBuffer ready;
+	private boolean terminated;
+
+	/**
+	 * @return a processor that compresses blocks of DEFAULT_BLOCK_SIZE chunks
+	 */
+	public static HuffProcessor compressor() {
+		return compressor(DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param blockSize
+	 *            is the number of chunks coded with one table, at least 1
+	 * @return a processor that compresses blocks of blockSize chunks
+	 */
+	public static HuffProcessor compressor(int blockSize) {
+		if (blockSize < 1)
+			throw new IllegalArgumentException("blockSize must be positive");
+		return new Compressor(blockSize);
+	}
+
+	/**
+	 * @return a processor that decompresses into buffers of at most
+	 *         DEFAULT_BLOCK_SIZE chunks
+	 */
+	public static HuffProcessor decompressor() {
+		return decompressor(DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param blockSize
+	 *            is the most chunks in one output buffer, at least 1
+	 * @return a processor that decompresses
+	 */
+	public static HuffProcessor decompressor(int blockSize) {
+		if (blockSize < 1)
+			throw new IllegalArgumentException("blockSize must be positive");
+		return new Decompressor(blockSize);
+	}
+
+	/**
+	 * Produce the next output buffer from the input. The input is consumed as
+	 * far as needed; its position is left after the bytes consumed.
+	 *
+	 * @param in
+	 *            holds the unconsumed input, possibly nothing
+	 * @param end
+	 *            is true if no input follows in
+	 * @return the next output, or null if in is used up and more input is
+	 *         needed, or at the end, if there is no more output
+	 * @throws IOException
+	 *             if the input is damaged
+	 */
+	abstract ByteBuffer next(ByteBuffer in, boolean end) throws IOException;
+
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException();
+		synchronized (this) {
+			if (downstream != null) {
+				subscriber.onSubscribe(new Flow.Subscription() {
+					public void request(long n) {
+					}
+
+					public void cancel() {
+					}
+				});
+				subscriber.onError(new IllegalStateException("processor already has a subscriber"));
+				return;
+			}
+			downstream = subscriber;
+		}
+		subscriber.onSubscribe(new Flow.Subscription() {
+			public void request(long n) {
+				if (n <= 0)
+					invalid = true;
+				else
+					requested.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+				drain();
+			}
+
+			public void cancel() {
+				cancelled = true;
+				drain();
+			}
+		});
+		drain();
+	}
+
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (upstream != null) {
+			subscription.cancel();
+			return;
+		}
+		upstream = subscription;
+		drain();
+	}
+
+	public void onNext(ByteBuffer item) {
+		pending = item;
+		asked = false;
+		drain();
+	}
+
+	public void onError(Throwable throwable) {
+		error = throwable;
+		done = true;
+		drain();
+	}
+
+	public void onComplete() {
+		done = true;
+		drain();
+	}
+
+	private void drain() {
+		if (wip.getAndIncrement() != 0)
+			return;
+		int missed = 1;
+		do {
+			Flow.Subscriber<? super ByteBuffer> out = downstream;
+			if (out != null)
+				drainLoop(out);
+			missed = wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void drainLoop(Flow.Subscriber<? super ByteBuffer> out) {
+		while (!terminated) {
+			if (cancelled || invalid) {
+				terminated = true;
+				pending = null;
+				ready = null;
+				if (upstream != null)
+					upstream.cancel();
+				if (!cancelled)
+					out.onError(new IllegalArgumentException("request must be positive"));
+				return;
+			}
+			// read done before pending: onNext happens before onComplete
+			boolean d = done;
+			if (d && error != null) {
+				terminated = true;
+				pending = null;
+				ready = null;
+				out.onError(error);
+				return;
+			}
+			if (ready == null) {
+				ByteBuffer in = pending;
+				boolean empty = in == null || !in.hasRemaining();
+				boolean end = d && empty;
+				try {
+					ready = empty && !end ? null : next(in == null ? EMPTY : in, end);
+				} catch (IOException e) {
+					terminated = true;
+					pending = null;
+					if (upstream != null)
+						upstream.cancel();
+					out.onError(e);
+					return;
+				}
+				if (ready == null) {
+					if (end) {
+						terminated = true;
+						out.onComplete();
+						return;
+					}
+					// the last buffer is used up, finish without more signals
+					if (d)
+						continue;
+					if (!asked && upstream != null && requested.get() > 0) {
+						pending = null;
+						asked = true;
+						upstream.request(1);
+					}
+					return;
+				}
+			}
+			if (requested.get() == 0)
+				return;
+			requested.decrementAndGet();
+			ByteBuffer buf = ready;
+			ready = null;
+			out.onNext(buf);
+		}
+	}
+
+	/**
+	 * Codes each block as a segment of its own.
+	 */
+	static final class Compressor extends HuffProcessor {
+
+		private final byte[] block;
+		private int fill;
+		private boolean wrote;
+
+		Compressor(int blockSize) {
+			block = new byte[blockSize];
+		}
+
+		ByteBuffer next(ByteBuffer in, boolean end) {
+			while (in.hasRemaining()) {
+				int n = Math.min(in.remaining(), block.length - fill);
+				in.get(block, fill, n);
+				fill += n;
+				if (fill == block.length)
+					return segment();
+			}
+			// empty input still makes one segment, a valid compressed file
+			if (end && (fill > 0 || !wrote))
+				return segment();
+			return null;
+		}
+
+		private ByteBuffer segment() {
+			ByteBuffer packed = ByteBuffer.wrap(HuffBuffers.compress(block, 0, fill));
+			fill = 0;
+			wrote = true;
+			return packed;
+		}
+	}
+
+	/**
+	 * Decodes segments as their bytes arrive. A header is gathered until it
+	 * parses; codes are decoded by table while a whole code of the longest
+	 * length is sure to be at hand, and a bit at a time across the end of an
+	 * input buffer.
+	 */
+	static final class Decompressor extends HuffProcessor {
+
+		// the magic number and a tree of every chunk and PSEUDO_EOF
+		private static final int MAX_HEADER_BYTES = (BITS_PER_INT + 11 * (ALPH_SIZE + 1) - 1 + 7) / 8;
+		// most bytes of a direct buffer copied to an array at a time
+		private static final int WINDOW = HuffContext.BUFFER_SIZE;
+
+		private final byte[] out;
+		private int outPos;
+		private final byte[] header = new byte[MAX_HEADER_BYTES];
+		private int headerLen;
+		// codes of a segment are being decoded
+		private boolean inCodes;
+		private HuffArrayTree tree;
+		private HuffDecodeTable table;
+		private int maxLength;
+		// tree node reached by the bits read of the current code
+		private int node;
+		// bits of the byte at the input position already read
+		private int bitOffset;
+
+		Decompressor(int blockSize) {
+			out = new byte[blockSize];
+		}
+
+		ByteBuffer next(ByteBuffer in, boolean end) throws IOException {
+			while (outPos < out.length) {
+				if (!inCodes) {
+					if (!readHeader(in))
+						break;
+				} else if (!decodeCodes(in)) {
+					break;
+				}
+			}
+			if (outPos == 0) {
+				if (end && (inCodes || headerLen > 0))
+					throw new IOException("unexpected end of input file");
+				return null;
+			}
+			ByteBuffer buf = ByteBuffer.wrap(Arrays.copyOf(out, outPos));
+			outPos = 0;
+			return buf;
+		}
+
+		/**
+		 * Gather header bytes and parse them once they hold a whole header.
+		 *
+		 * @return false if more input is needed
+		 */
+		private boolean readHeader(ByteBuffer in) throws IOException {
+			if (!in.hasRemaining())
+				return false;
+			int copied = Math.min(in.remaining(), header.length - headerLen);
+			in.get(header, headerLen, copied);
+			headerLen += copied;
+			BitInputStream bits = new BitInputStream(new ByteArrayInputStream(header, 0, headerLen));
+			int magic = bits.read(BITS_PER_INT);
+			if (magic == -1)
+				return true;
+			if (magic != MAGIC_NUMBER)
+				throw new IOException("magic number not right");
+			try {
+				tree = HuffArrayTree.read(bits);
+			} catch (IOException e) {
+				if (headerLen < header.length)
+					return true;
+				throw e;
+			}
+			// give back the bytes after the header, its last byte if partial
+			int headerBits = BITS_PER_INT + tree.size();
+			in.position(in.position() - (headerLen - headerBits / 8));
+			headerLen = 0;
+			bitOffset = headerBits % 8;
+			node = tree.root();
+			if (node < 0) {
+				// a lone PSEUDO_EOF has an empty code, nothing was coded
+				if (~node != PSEUDO_EOF)
+					throw new IOException("tree has no PSEUDO_EOF");
+				endSegment(in);
+				return true;
+			}
+			table = new HuffDecodeTable(tree);
+			HuffCodec codec = new HuffCodec(tree);
+			maxLength = 0;
+			for (int ch = 0; ch <= PSEUDO_EOF; ch++)
+				maxLength = Math.max(maxLength, codec.codeLength(ch));
+			inCodes = true;
+			return true;
+		}
+
+		/**
+		 * Decode codes until the output is full, the input is used up or the
+		 * segment ends.
+		 *
+		 * @return false if more input is needed
+		 */
+		private boolean decodeCodes(ByteBuffer in) throws IOException {
+			if (!in.hasRemaining())
+				return false;
+			byte[] data;
+			int off;
+			int len;
+			if (in.hasArray()) {
+				data = in.array();
+				off = in.arrayOffset() + in.position();
+				len = in.remaining();
+			} else {
+				data = HuffContext.get().in;
+				off = 0;
+				len = Math.min(in.remaining(), WINDOW);
+				in.duplicate().get(data, 0, len);
+			}
+			BitArrayReader bits = new BitArrayReader(data, off, len);
+			bits.read(bitOffset);
+			long available = len * 8L;
+			int root = tree.root();
+			boolean eof = false;
+			while (outPos < out.length) {
+				long left = available - bits.position();
+				int ch;
+				if (node == root && left >= maxLength) {
+					ch = table.next(bits);
+				} else if (left == 0) {
+					break;
+				} else {
+					node = tree.child(node, bits.readBit());
+					if (node >= 0)
+						continue;
+					ch = ~node;
+					node = root;
+				}
+				if (ch == PSEUDO_EOF) {
+					eof = true;
+					break;
+				}
+				out[outPos++] = (byte) ch;
+			}
+			long consumed = bits.position();
+			if (eof)
+				consumed = (consumed + 7) / 8 * 8;
+			in.position(in.position() + (int) (consumed / 8));
+			bitOffset = (int) (consumed % 8);
+			if (eof)
+				endSegment(in);
+			return true;
+		}
+
+		private void endSegment(ByteBuffer in) {
+			if (bitOffset != 0) {
+				in.position(in.position() + 1);
+				bitOffset = 0;
+			}
+			inCodes = false;
+			tree = null;
+			table = null;
+		}
+	}
+}
@@ -0,0 +1,354 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds a byte pattern in a file written by <code>Huff</code> and returns the
+ * offsets of the matches in the uncompressed data, without writing the data
+ * anywhere.
+ * <P>
+ * A Huffman code is a prefix code, so the pattern occurs at an offset exactly
+ * when the codes of its chunks appear in the compressed bits starting at the
+ * code boundary for that offset. In files whose segments all carry a sync
+ * index, each segment is searched in its compressed form: the bits of the
+ * encoded pattern are looked for at every bit position, and only where they
+ * appear is a code decoded, from the nearest sync point, to tell whether the
+ * position is a code boundary. A segment whose tree has no code for some
+ * chunk of the pattern cannot hold a match, since the tree lists every chunk
+ * of the segment, and its codes are not read at all; only the chunks on each
+ * side of its boundaries are decoded, for matches that span segments.
+ * <P>
+ * Files with a segment that has no index are decoded from the start, with
+ * the chunks fed to a matcher instead of a file.
+ */
+public final class HuffSearch implements IHuffConstants {
+
+	// compressed bytes read at a time
+	private static final int WINDOW = HuffContext.BUFFER_SIZE;
+
+	private HuffSearch() {
+	}
+
+	/**
+	 * Find every occurrence of a pattern, overlapping ones included.
+	 *
+	 * @param inFile
+	 *            is a file written by <code>Huff</code>
+	 * @param pattern
+	 *            holds the chunks to find
+	 * @return the uncompressed offset of each match, in increasing order
+	 * @throws IOException
+	 *             if the file is not a compressed file or reading fails
+	 * @throws IllegalArgumentException
+	 *             if the pattern is empty
+	 */
+	public static long[] search(String inFile, byte[] pattern) throws IOException {
+		if (pattern.length == 0)
+			throw new IllegalArgumentException("empty pattern");
+		Matcher found = new Matcher(pattern);
+		List<Long> starts = new ArrayList<Long>();
+		List<SyncIndex> indexes;
+		RandomAccessFile file = new RandomAccessFile(inFile, "r");
+		try {
+			indexes = SyncIndex.readAll(file, starts);
+			if (indexes != null) {
+				byte[] carry = new byte[0];
+				long base = 0;
+				for (int i = 0; i < indexes.size(); i++) {
+					SyncIndex index = indexes.get(i);
+					carry = searchSegment(file.getChannel(), starts.get(i), index, pattern, base, carry, found);
+					base += index.length();
+				}
+				return found.toArray();
+			}
+		} finally {
+			file.close();
+		}
+		BitInputStream bitin = new BitInputStream(inFile);
+		try {
+			Huff.decodeSegments(bitin, found, 0, Long.MAX_VALUE);
+		} finally {
+			bitin.close();
+		}
+		return found.toArray();
+	}
+
+	/**
+	 * Search one indexed segment and the boundary before it.
+	 *
+	 * @param channel
+	 *            reads the compressed file
+	 * @param start
+	 *            is the position of the segment's header in the file
+	 * @param index
+	 *            is the segment's index
+	 * @param pattern
+	 *            holds the chunks to find
+	 * @param base
+	 *            is the uncompressed offset of the segment
+	 * @param carry
+	 *            holds the last chunks before the segment, fewer than the
+	 *            pattern; matches found across the boundary start there
+	 * @param found
+	 *            receives the matches
+	 * @return the last chunks up to the end of the segment, fewer than the
+	 *         pattern
+	 * @throws IOException
+	 *             if reading fails or the segment is damaged
+	 */
+	private static byte[] searchSegment(FileChannel channel, long start, SyncIndex index, byte[] pattern,
+			long base, byte[] carry, Matcher found) throws IOException {
+		long length = index.length();
+		if (length == 0)
+			return carry;
+		byte[] header = new byte[(int) Math.min(index.streamBytes(), WINDOW)];
+		read(channel, start, header, header.length);
+		HuffCodec codec = HuffCodec.readHeader(new BitInputStream(new ByteArrayInputStream(header)));
+		Cursor cursor = new Cursor(channel, start, index.streamBytes(), codec);
+		int keep = pattern.length - 1;
+
+		// matches that start in earlier segments and end in this one
+		int head = (int) Math.min(keep, length);
+		if (carry.length > 0) {
+			Matcher across = new Matcher(pattern);
+			across.offset = base - carry.length;
+			across.write(carry);
+			cursor.seek(codec.headerSize(), 0);
+			for (int i = 0; i < head; i++)
+				across.write(cursor.next());
+			for (int i = 0; i < across.count; i++) {
+				if (across.found[i] < base && across.found[i] + pattern.length > base)
+					found.add(across.found[i]);
+			}
+		}
+
+		boolean present = true;
+		for (byte b : pattern)
+			present &= codec.hasCode(b & 0xff);
+		if (present)
+			scan(cursor, index, codec, pattern, base, found);
+
+		// the chunks the next boundary needs
+		long from = Math.max(0, length - keep);
+		int point = index.find(from);
+		cursor.seek(index.bit(point), index.offset(point));
+		while (cursor.offset < from)
+			cursor.next();
+		int kept = (int) (length - from);
+		byte[] tail = new byte[kept];
+		for (int i = 0; i < kept; i++)
+			tail[i] = (byte) cursor.next();
+		if (kept == keep)
+			return tail;
+		// a short segment keeps some of the chunks before it
+		byte[] joined = Arrays.copyOf(carry, carry.length + kept);
+		System.arraycopy(tail, 0, joined, carry.length, kept);
+		return Arrays.copyOfRange(joined, Math.max(0, joined.length - keep), joined.length);
+	}
+
+	/**
+	 * Look for the encoded pattern at every bit position of the codes, and
+	 * check each place it appears for a code boundary.
+	 */
+	private static void scan(Cursor cursor, SyncIndex index, HuffCodec codec, byte[] pattern, long base,
+			Matcher found) throws IOException {
+		BitArrayWriter writer = new BitArrayWriter(pattern.length);
+		for (byte b : pattern)
+			writer.write(codec.codeLength(b & 0xff), codec.code(b & 0xff));
+		long size = writer.bitLength();
+		writer.align();
+		byte[] bits = writer.toByteArray();
+		// the first bits of the pattern are compared at once
+		int keyBits = (int) Math.min(size, 57);
+		BitArrayReader reader = new BitArrayReader(bits, 0, bits.length);
+		long key = (long) reader.read(Math.min(keyBits, BITS_PER_INT)) << (64 - Math.min(keyBits, BITS_PER_INT));
+		if (keyBits > BITS_PER_INT)
+			key |= (long) reader.read(keyBits - BITS_PER_INT) << (64 - keyBits);
+		long mask = -1L << (64 - keyBits);
+
+		long first = codec.headerSize();
+		long last = cursor.bytes * 8 - size;
+		byte[] window = new byte[WINDOW];
+		byte[] probe = new byte[(int) ((size + 7) / 8 + 1)];
+		cursor.seek(first, 0);
+		boolean ended = false;
+		// bits from position p on, left aligned
+		long register = 0;
+		int have = 0;
+		long p = first / 8 * 8;
+		for (long pos = first / 8; pos < cursor.bytes && p <= last && !ended; pos += window.length) {
+			int n = (int) Math.min(window.length, Math.max(0, cursor.bytes - pos));
+			read(cursor.channel, cursor.start + pos, window, n);
+			// zero bytes after the end let the last positions be tested
+			int pad = pos + window.length >= cursor.bytes ? 8 : 0;
+			for (int i = 0; i < n + pad && p <= last && !ended; i++) {
+				register |= (long) (i < n ? window[i] & 0xff : 0) << (56 - have);
+				have += 8;
+				while (have > 56) {
+					if ((register & mask) == key && p >= first && p <= last
+							&& (keyBits == size || matches(cursor, p, bits, size, probe))) {
+						// decode up to p, starting over from a sync point if
+						// that skips codes
+						int point = index.findBit(p);
+						if (index.bit(point) > cursor.position())
+							cursor.seek(index.bit(point), index.offset(point));
+						while (cursor.position() < p) {
+							if (cursor.next() == PSEUDO_EOF) {
+								ended = true;
+								break;
+							}
+						}
+						if (!ended && cursor.position() == p)
+							found.add(base + cursor.offset);
+					}
+					register <<= 1;
+					have--;
+					p++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if all bits of the encoded pattern are at bit p
+	 */
+	private static boolean matches(Cursor cursor, long p, byte[] bits, long size, byte[] probe)
+			throws IOException {
+		int n = (int) Math.min(probe.length, cursor.bytes - p / 8);
+		read(cursor.channel, cursor.start + p / 8, probe, n);
+		BitArrayReader here = new BitArrayReader(probe, 0, n);
+		here.read((int) (p % 8));
+		BitArrayReader want = new BitArrayReader(bits, 0, bits.length);
+		for (long left = size; left > 0; left -= BITS_PER_INT) {
+			int k = (int) Math.min(left, BITS_PER_INT);
+			if (here.read(k) != want.read(k))
+				return false;
+		}
+		return true;
+	}
+
+	private static void read(FileChannel channel, long position, byte[] buf, int len) throws IOException {
+		ByteBuffer dst = ByteBuffer.wrap(buf, 0, len);
+		while (dst.hasRemaining()) {
+			if (channel.read(dst, position + dst.position()) == -1)
+				throw new IOException("unexpected end of input file");
+		}
+	}
+
+	/**
+	 * Decodes a segment with a lookup table from any code boundary, reading a
+	 * window of the file at a time and counting the chunks decoded.
+	 */
+	private static final class Cursor {
+
+		final FileChannel channel;
+		final long start;
+		final long bytes;
+		private final HuffDecodeTable table;
+		private final int maxLength;
+		private final byte[] window = new byte[WINDOW];
+		private final BitArrayReader bits = new BitArrayReader(window, 0, 0);
+		private long windowBit;
+		private int n;
+		// offset of the next chunk
+		long offset;
+
+		Cursor(FileChannel channel, long start, long bytes, HuffCodec codec) {
+			this.channel = channel;
+			this.start = start;
+			this.bytes = bytes;
+			table = codec.decodeTable();
+			int max = 0;
+			for (int ch = 0; ch < ALPH_SIZE; ch++)
+				max = Math.max(max, codec.codeLength(ch));
+			maxLength = max;
+		}
+
+		void seek(long bit, long offset) throws IOException {
+			long pos = bit / 8;
+			n = (int) Math.min(window.length, bytes - pos);
+			read(channel, start + pos, window, n);
+			windowBit = pos * 8;
+			bits.reset(window, 0, n);
+			bits.read((int) (bit % 8));
+			this.offset = offset;
+		}
+
+		long position() {
+			return windowBit + bits.position();
+		}
+
+		int next() throws IOException {
+			if (bits.position() > n * 8L - maxLength && windowBit + n * 8L < bytes * 8)
+				seek(position(), offset);
+			int ch = table.next(bits);
+			if (bits.overrun())
+				throw new IOException("unexpected end of input file");
+			if (ch != PSEUDO_EOF)
+				offset++;
+			return ch;
+		}
+	}
+
+	/**
+	 * Finds the pattern in chunks written to it, Knuth-Morris-Pratt style,
+	 * and collects the offsets of the matches.
+	 */
+	private static final class Matcher extends OutputStream {
+
+		private final byte[] pattern;
+		// length of the longest proper border of each prefix
+		private final int[] border;
+		private int state;
+		// offset of the next chunk
+		long offset;
+		long[] found = new long[16];
+		int count;
+
+		Matcher(byte[] pattern) {
+			this.pattern = pattern;
+			border = new int[pattern.length + 1];
+			border[0] = -1;
+			for (int i = 1, k = -1; i <= pattern.length; i++) {
+				while (k >= 0 && pattern[k] != pattern[i - 1])
+					k = border[k];
+				border[i] = ++k;
+			}
+		}
+
+		public void write(int b) {
+			while (state >= 0 && (state == pattern.length || pattern[state] != (byte) b))
+				state = border[state];
+			state++;
+			offset++;
+			if (state == pattern.length)
+				add(offset - pattern.length);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			for (int i = off; i < off + len; i++)
+				write(b[i]);
+		}
+
+		void add(long match) {
+			if (count == found.length)
+				found = Arrays.copyOf(found, count * 2);
+			found[count++] = match;
+		}
+
+		/**
+		 * @return the matches in increasing order
+		 */
+		long[] toArray() {
+			long[] sorted = Arrays.copyOf(found, count);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+}
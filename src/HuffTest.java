@@ -2,12 +2,31 @@ import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.math.BigInteger;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32C;
 import org.junit.Test;
 
 public class HuffTest implements IHuffConstants {
@@ -198,4 +217,905 @@ public class HuffTest implements IHuffConstants {
 		      throw e;
 		}
 	}
+
+	@Test
+	public void testMakeTableWhenCalledTwice() throws IOException {
+		Huff makeTree = new Huff();
+		makeTree.makeHuffTree(new ByteArrayInputStream("eeeeeeeeeetttoossssss".getBytes("UTF-8")));
+		makeTree.makeTable();
+		makeTree.makeHuffTree(new ByteArrayInputStream("ab".getBytes("UTF-8")));
+		Map<Integer, String> table = makeTree.makeTable();
+		assertEquals(table.size(), 3);
+		assertEquals(table.get((int) 't'), null);
+	}
+
+	@Test
+	public void testCodecSharedBetweenThreads() throws Exception {
+		final byte[] data = "eeeeeeeeeetttoossssss, and some more text".getBytes("UTF-8");
+		CharCounter cc = new CharCounter();
+		cc.countAll(new ByteArrayInputStream(data));
+		final HuffCodec codec = HuffCodec.fromCounts(cc.getTable());
+		final boolean[] ok = new boolean[8];
+		Thread[] threads = new Thread[ok.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread(() -> {
+				try {
+					for (int i = 0; i < 100; i++) {
+						ByteArrayOutputStream packed = new ByteArrayOutputStream();
+						BitOutputStream bitout = new BitOutputStream(packed);
+						codec.writeHeader(bitout);
+						codec.encode(new ByteArrayInputStream(data), bitout);
+						bitout.close();
+						BitInputStream bitin = new BitInputStream(new ByteArrayInputStream(packed.toByteArray()));
+						ByteArrayOutputStream unpacked = new ByteArrayOutputStream();
+						HuffCodec.readHeader(bitin).decode(bitin, unpacked);
+						if (!Arrays.equals(data, unpacked.toByteArray()))
+							return;
+					}
+					ok[id] = true;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		for (boolean b : ok)
+			assertTrue(b);
+	}
+
+	@Test
+	public void testArrayTreeMatchesNodeTree() throws IOException {
+		Huff makeTree = new Huff();
+		HuffTree tree = makeTree.makeHuffTree(new ByteArrayInputStream("eeeeeeeeeetttoossssss".getBytes("UTF-8")));
+		Map<Integer, String> table = makeTree.makeTable();
+		HuffArrayTree flat = HuffArrayTree.fromTree(tree);
+		assertEquals(flat.size(), tree.size());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BitOutputStream bitout = new BitOutputStream(out);
+		assertEquals(flat.write(bitout), tree.size());
+		bitout.close();
+		HuffArrayTree read = HuffArrayTree.read(new BitInputStream(new ByteArrayInputStream(out.toByteArray())));
+		HuffCodec codec = new HuffCodec(read);
+		for (int ch : table.keySet())
+			assertEquals(table.get(ch), codec.codeString(ch));
+	}
+
+	@Test
+	public void testUncompressRangeWithSyncPoints() throws IOException {
+		Huff huff = new Huff();
+		huff.write("input.txt", "output_sync.txt", true, 4);
+		assertEquals(new String(huff.uncompress("output_sync.txt", 9, 6), "UTF-8"), "etttoo");
+		assertEquals(new String(huff.uncompress("output_sync.txt", 18, 10), "UTF-8"), "sss");
+		assertEquals(huff.uncompress("output_sync.txt", 0, 0).length, 0);
+		// the index is invisible to a full uncompress
+		assertEquals(huff.uncompress("output_sync.txt", "uncompressed_sync.txt"), 168);
+	}
+
+	@Test
+	public void testUncompressRangeWithoutSyncPoints() throws IOException {
+		Huff huff = new Huff();
+		huff.write("input.txt", "output_nosync.txt", true);
+		assertEquals(new String(huff.uncompress("output_nosync.txt", 9, 6), "UTF-8"), "etttoo");
+	}
+
+	@Test
+	public void testAppend() throws IOException {
+		Huff huff = new Huff();
+		huff.write("input.txt", "output_append.txt", true);
+		huff.append("input_1.txt", "output_append.txt", 0);
+		huff.append("input.txt", "output_append.txt", 0);
+		assertEquals(huff.uncompress("output_append.txt", "uncompressed_append.txt"), (21 + 1 + 21) * 8);
+		assertEquals(new String(huff.uncompress("output_append.txt", 19, 5), "UTF-8"), "ssaee");
+	}
+
+	@Test
+	public void testAppendWithSyncPoints() throws IOException {
+		Huff huff = new Huff();
+		huff.write("input.txt", "output_append_sync.txt", true, 4);
+		huff.append("input_1.txt", "output_append_sync.txt", 4);
+		huff.append("input.txt", "output_append_sync.txt", 4);
+		assertEquals(huff.uncompress("output_append_sync.txt", "uncompressed_append_sync.txt"), (21 + 1 + 21) * 8);
+		assertEquals(new String(huff.uncompress("output_append_sync.txt", 19, 5), "UTF-8"), "ssaee");
+		assertEquals(new String(huff.uncompress("output_append_sync.txt", 40, 5), "UTF-8"), "sss");
+	}
+
+	@Test
+	public void testInterleavedRoundTrip() throws IOException {
+		byte[] data = new byte[3 * InterleavedHuff.BLOCK_SIZE + 7];
+		Random random = new Random(42);
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) ('a' + Math.min(25, (int) (-Math.log(random.nextDouble()) * 3)));
+		CharCounter cc = new CharCounter();
+		cc.countAll(new ByteArrayInputStream(data));
+		HuffCodec codec = HuffCodec.fromCounts(cc.getTable());
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		BitOutputStream bitout = new BitOutputStream(packed);
+		InterleavedHuff.encode(codec, new ByteArrayInputStream(data), bitout);
+		bitout.close();
+		ByteArrayOutputStream unpacked = new ByteArrayOutputStream();
+		long size = InterleavedHuff.decode(new BitInputStream(new ByteArrayInputStream(packed.toByteArray())), unpacked);
+		assertEquals(size, data.length);
+		assertTrue(Arrays.equals(data, unpacked.toByteArray()));
+	}
+
+	@Test
+	public void testInterleavedWrite() {
+		IHuffModel model = new InterleavedHuff();
+		assertTrue(model.write("input.txt", "output_interleaved.txt", true) > 0);
+		assertEquals(model.uncompress("output_interleaved.txt", "uncompressed_interleaved.txt"), 168);
+		assertEquals(model.write("input_1.txt", "output_1_interleaved.txt", false), 0);
+	}
+
+	@Test
+	public void testLzRoundTrip() throws IOException {
+		// repeats within a block, across blocks and past the window
+		byte[] data = words(7, 2 * LzHuff.BLOCK_SIZE + 11, "huff ", "man ", "tree ", "leaf ", "node\n");
+		for (int level : new int[] { LzHuff.FASTEST, LzHuff.STRONGEST }) {
+			ByteArrayOutputStream packed = new ByteArrayOutputStream();
+			BitOutputStream bitout = new BitOutputStream(packed);
+			new LzHuff(10, level).encode(new ByteArrayInputStream(data), bitout);
+			bitout.close();
+			assertTrue(packed.size() < data.length / 4);
+			ByteArrayOutputStream unpacked = new ByteArrayOutputStream();
+			long size = LzHuff.decode(new BitInputStream(new ByteArrayInputStream(packed.toByteArray())), unpacked);
+			assertEquals(size, data.length);
+			assertTrue(Arrays.equals(data, unpacked.toByteArray()));
+		}
+	}
+
+	@Test
+	public void testBuffersRoundTrip() throws IOException {
+		byte[] noise = new byte[70000];
+		new Random(17).nextBytes(noise);
+		for (byte[] data : new byte[][] { "teststr".getBytes("UTF-8"), noise, new byte[0], new byte[5] }) {
+			for (boolean direct : new boolean[] { false, true }) {
+				int max = HuffBuffers.maxCompressedLength(data.length);
+				ByteBuffer src = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+				src.put(data).flip();
+				ByteBuffer packed = direct ? ByteBuffer.allocateDirect(max) : ByteBuffer.allocate(max);
+				int n = HuffBuffers.compress(src, packed);
+				assertEquals(src.remaining(), 0);
+				assertEquals(packed.position(), n);
+				packed.flip();
+				ByteBuffer unpacked = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+				assertEquals(HuffBuffers.decompress(packed, unpacked), data.length);
+				assertEquals(packed.remaining(), 0);
+				byte[] out = new byte[data.length];
+				unpacked.flip().get(out);
+				assertTrue(Arrays.equals(data, out));
+			}
+			assertTrue(Arrays.equals(data, HuffBuffers.decompress(HuffBuffers.compress(data))));
+		}
+	}
+
+	@Test
+	public void testBuffersReadFiles() throws IOException {
+		new Huff().write("input.txt", "output_buffers.txt", true);
+		byte[] packed = Files.readAllBytes(Paths.get("output_buffers.txt"));
+		byte[] data = Files.readAllBytes(Paths.get("input.txt"));
+		assertTrue(Arrays.equals(data, HuffBuffers.decompress(packed)));
+		try {
+			HuffBuffers.compress(ByteBuffer.wrap(data), ByteBuffer.allocate(4));
+			fail("room for the header only");
+		} catch (BufferOverflowException e) {
+		}
+	}
+
+	@Test
+	public void testBuffersReadSegments() throws IOException {
+		// text, then random bytes, then text again, in three segments
+		byte[] data = shifting(19);
+		FileOutputStream file = new FileOutputStream("input_buffers_mixed.txt");
+		file.write(data);
+		file.close();
+		Huff huff = new Huff();
+		huff.write("input_buffers_mixed.txt", "output_buffers_mixed.txt", true);
+		huff.write("input_buffers_mixed.txt", "output_buffers_sync.txt", true, 1000);
+		for (String name : new String[] { "output_buffers_mixed.txt", "output_buffers_sync.txt" }) {
+			byte[] packed = Files.readAllBytes(Paths.get(name));
+			assertTrue(Arrays.equals(data, HuffBuffers.decompress(packed)));
+			ByteBuffer src = ByteBuffer.wrap(packed);
+			ByteBuffer unpacked = ByteBuffer.allocate(data.length);
+			assertEquals(HuffBuffers.decompress(src, unpacked), data.length);
+			assertEquals(src.remaining(), 0);
+			assertTrue(Arrays.equals(data, unpacked.array()));
+		}
+		// files joined by append
+		new File("output_buffers_append.txt").delete();
+		huff.append("input_1.txt", "output_buffers_append.txt", 4);
+		huff.append("input.txt", "output_buffers_append.txt", 0);
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		joined.write(Files.readAllBytes(Paths.get("input_1.txt")));
+		joined.write(Files.readAllBytes(Paths.get("input.txt")));
+		assertTrue(Arrays.equals(joined.toByteArray(), HuffBuffers.decompress(
+				Files.readAllBytes(Paths.get("output_buffers_append.txt")))));
+	}
+
+	@Test
+	public void testProcessorRoundTrip() throws IOException {
+		byte[] data = new byte[50000];
+		Random random = new Random(19);
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) ('a' + random.nextInt(1 + i / 5000));
+		byte[] packed = pipe(HuffProcessor.compressor(4096), data, 1000, false);
+		Files.write(Paths.get("output_flow.txt"), packed);
+		assertEquals(new Huff().uncompress("output_flow.txt", "uncompressed_flow.txt"), data.length * 8);
+		for (int chunk : new int[] { 1, 7, 4096 }) {
+			for (boolean direct : new boolean[] { false, true }) {
+				byte[] unpacked = pipe(HuffProcessor.decompressor(3000), packed, chunk, direct);
+				assertTrue(Arrays.equals(data, unpacked));
+			}
+		}
+		byte[] empty = pipe(HuffProcessor.compressor(), new byte[0], 1, false);
+		assertEquals(pipe(HuffProcessor.decompressor(), empty, 1, false).length, 0);
+		try {
+			pipe(HuffProcessor.decompressor(), Arrays.copyOf(packed, packed.length / 2), 100, false);
+			fail("truncated input");
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Run data through a processor in chunks, with a subscriber that asks for
+	 * one buffer at a time, checking that upstream is never asked for more.
+	 */
+	private static byte[] pipe(HuffProcessor processor, final byte[] data, final int chunk, final boolean direct)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final Throwable[] failure = new Throwable[1];
+		final boolean[] complete = new boolean[1];
+		processor.subscribe(new Flow.Subscriber<ByteBuffer>() {
+			private Flow.Subscription subscription;
+
+			public void onSubscribe(Flow.Subscription s) {
+				subscription = s;
+				s.request(1);
+			}
+
+			public void onNext(ByteBuffer item) {
+				byte[] b = new byte[item.remaining()];
+				item.get(b);
+				out.write(b, 0, b.length);
+				subscription.request(1);
+			}
+
+			public void onError(Throwable t) {
+				failure[0] = t;
+			}
+
+			public void onComplete() {
+				complete[0] = true;
+			}
+		});
+		processor.onSubscribe(new Flow.Subscription() {
+			private int pos;
+			private long demand;
+
+			public void request(long n) {
+				demand += n;
+				assertTrue(demand <= 1);
+				while (demand > 0 && pos < data.length) {
+					int n1 = Math.min(chunk, data.length - pos);
+					ByteBuffer item = direct ? ByteBuffer.allocateDirect(n1) : ByteBuffer.allocate(n1);
+					item.put(data, pos, n1).flip();
+					pos += n1;
+					demand--;
+					processor.onNext(item);
+				}
+				if (pos == data.length && demand > 0)
+					processor.onComplete();
+			}
+
+			public void cancel() {
+				pos = data.length;
+			}
+		});
+		if (failure[0] instanceof IOException)
+			throw (IOException) failure[0];
+		assertNull(failure[0]);
+		assertTrue(complete[0]);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testSizedRoundTrip() throws IOException {
+		byte[] text = new byte[200000];
+		Random random = new Random(23);
+		for (int i = 0; i < text.length; i++)
+			text[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : 'a' + random.nextInt(3));
+		byte[] same = new byte[100000];
+		Arrays.fill(same, (byte) 'x');
+		for (byte[] data : new byte[][] { text, same, new byte[0], { 7 } }) {
+			CharCounter cc = new CharCounter();
+			cc.addAll(data, 0, data.length);
+			int[] counts = cc.toArray();
+			HuffCodec codec = data.length == 0 ? null : HuffCodec.fromChunkCounts(counts);
+			ByteArrayOutputStream packed = new ByteArrayOutputStream();
+			BitOutputStream bitout = new BitOutputStream(packed);
+			long bits = SizedHuff.encode(codec, data.length, new ByteArrayInputStream(data), bitout);
+			bitout.close();
+			assertEquals(bits, packed.size() * 8L);
+			assertEquals(bits, SizedHuff.compressedSize(codec, counts));
+			ByteArrayOutputStream unpacked = new ByteArrayOutputStream();
+			long size = SizedHuff.decode(new BitInputStream(new ByteArrayInputStream(packed.toByteArray())), unpacked);
+			assertEquals(size, data.length);
+			assertTrue(Arrays.equals(data, unpacked.toByteArray()));
+		}
+		assertEquals(SizedHuff.compressedSize(HuffCodec.fromChunkCounts(new int[] { 0, 5 }), new int[] { 0, 5 }),
+				3 * BITS_PER_INT + 16);
+	}
+
+	@Test
+	public void testSizedWrite() {
+		IHuffModel model = new SizedHuff();
+		assertTrue(model.write("input.txt", "output_sized.txt", true) > 0);
+		assertEquals(model.uncompress("output_sized.txt", "uncompressed_sized.txt"), 168);
+		assertEquals(model.write("input_1.txt", "output_1_sized.txt", false), 0);
+	}
+
+	@Test
+	public void testBenchmarkCorpusIsReproducible() throws IOException {
+		for (HuffBenchmark.Corpus kind : HuffBenchmark.Corpus.values()) {
+			ByteArrayOutputStream a = new ByteArrayOutputStream();
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			HuffBenchmark.generate(kind, 100000, 1, a);
+			HuffBenchmark.generate(kind, 100000, 1, b);
+			assertEquals(a.size(), 100000);
+			assertTrue(Arrays.equals(a.toByteArray(), b.toByteArray()));
+		}
+	}
+
+	@Test
+	public void testBenchmarkFindsRegressions() {
+		HuffBenchmark.Result base = HuffBenchmark.parse(
+				"{\"corpus\":\"zipf\",\"size\":1024,\"compressMBps\":100.00,\"decompressMBps\":200.00,"
+						+ "\"ratio\":0.50000,\"peakRssKiB\":1000,\"gcMillis\":0}");
+		HuffBenchmark.Result same = HuffBenchmark.parse(base.toJson());
+		HuffBenchmark.Result slow = HuffBenchmark.parse(base.toJson().replace("200.00", "150.00"));
+		List<HuffBenchmark.Result> baseline = Collections.singletonList(base);
+		assertTrue(HuffBenchmark.regressions(Collections.singletonList(same), baseline, 0.1).isEmpty());
+		assertEquals(HuffBenchmark.regressions(Collections.singletonList(slow), baseline, 0.1).size(), 1);
+		assertTrue(HuffBenchmark.regressions(Collections.singletonList(slow), baseline, 0.3).isEmpty());
+		HuffBenchmark.Result fat = HuffBenchmark.parse(base.toJson().replace("\"peakRssKiB\":1000", "\"peakRssKiB\":2000"));
+		assertEquals(HuffBenchmark.regressions(Collections.singletonList(fat), baseline, 0.1).size(), 1);
+		HuffBenchmark.Result collecting = HuffBenchmark.parse(base.toJson().replace("\"gcMillis\":0", "\"gcMillis\":500"));
+		assertEquals(HuffBenchmark.regressions(Collections.singletonList(collecting), baseline, 0.1).size(), 1);
+		// max-size is always run, even off the factors of 8
+		List<Long> sizes = HuffBenchmark.sizes(1 << 10, 8L << 30);
+		assertEquals(sizes.get(sizes.size() - 1).longValue(), 8L << 30);
+		assertEquals(sizes.get(sizes.size() - 2).longValue(), 2L << 30);
+		assertEquals(HuffBenchmark.sizes(1 << 10, 1 << 26).size(), 7);
+	}
+
+	@Test
+	public void testDedupArchive() throws IOException {
+		byte[] a = words(29, 300000, "huff ", "man ", "tree ", "leaf ", "node\n", "chunk ", "piece ");
+		// b is a with bytes inserted in the middle
+		byte[] b = new byte[a.length + 100];
+		System.arraycopy(a, 0, b, 0, 150000);
+		System.arraycopy(a, 150000, b, 150100, a.length - 150000);
+		Files.write(Paths.get("dedup_a.txt"), a);
+		Files.write(Paths.get("dedup_b.txt"), b);
+		Files.write(Paths.get("dedup_empty.txt"), new byte[0]);
+		long alone = DedupArchive.write(Arrays.asList("dedup_a.txt"), "output_dedup_a.dda");
+		long both = DedupArchive.write(Arrays.asList("dedup_a.txt", "dedup_b.txt", "dedup_a.txt",
+				"dedup_empty.txt"), "output_dedup.dda");
+		// only the pieces around the insertion are new
+		assertTrue(both < alone * 5 / 4);
+		DedupArchive archive = DedupArchive.open("output_dedup.dda");
+		assertEquals(archive.files(), Arrays.asList("dedup_a.txt", "dedup_b.txt", "dedup_empty.txt"));
+		assertEquals(archive.length("dedup_b.txt"), b.length);
+		for (byte[] data : new byte[][] { a, b, new byte[0] }) {
+			String name = data == a ? "dedup_a.txt" : data == b ? "dedup_b.txt" : "dedup_empty.txt";
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assertEquals(archive.extract(name, out), data.length);
+			assertTrue(Arrays.equals(data, out.toByteArray()));
+		}
+	}
+
+	@Test
+	public void testLzWrite() {
+		IHuffModel model = new LzHuff();
+		assertTrue(model.write("input.txt", "output_lz.txt", true) > 0);
+		assertEquals(model.uncompress("output_lz.txt", "uncompressed_lz.txt"), 168);
+		assertEquals(model.write("input_1.txt", "output_1_lz.txt", false), 0);
+	}
+
+	@Test
+	public void testSuffixArray() {
+		Random random = new Random(3);
+		for (int t = 0; t < 500; t++) {
+			final byte[] data = new byte[1 + random.nextInt(40)];
+			for (int i = 0; i < data.length; i++)
+				data[i] = (byte) random.nextInt(1 + t % 4);
+			Integer[] expected = new Integer[data.length];
+			for (int i = 0; i < data.length; i++)
+				expected[i] = i;
+			Arrays.sort(expected, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					for (int i = 0;; i++) {
+						if (a + i == data.length)
+							return -1;
+						if (b + i == data.length)
+							return 1;
+						if (data[a + i] != data[b + i])
+							return (data[a + i] & 0xff) - (data[b + i] & 0xff);
+					}
+				}
+			});
+			int[] sa = SuffixArray.build(data, data.length);
+			for (int i = 0; i < data.length; i++)
+				assertEquals(sa[i], (int) expected[i]);
+		}
+	}
+
+	@Test
+	public void testBwtRoundTrip() throws IOException {
+		byte[] text = words(11, 3 * 1000 + 5, "huff ", "man ", "tree ", "leaf ", "node\n");
+		byte[] noise = new byte[2000];
+		new Random(11).nextBytes(noise);
+		for (byte[] data : new byte[][] { text, noise, new byte[1000], { (byte) 255 } }) {
+			ByteArrayOutputStream packed = new ByteArrayOutputStream();
+			BitOutputStream bitout = new BitOutputStream(packed);
+			new BwtHuff(1000).encode(new ByteArrayInputStream(data), bitout);
+			bitout.close();
+			ByteArrayOutputStream unpacked = new ByteArrayOutputStream();
+			long size = BwtHuff.decode(new BitInputStream(new ByteArrayInputStream(packed.toByteArray())), unpacked);
+			assertEquals(size, data.length);
+			assertTrue(Arrays.equals(data, unpacked.toByteArray()));
+		}
+	}
+
+	@Test
+	public void testBwtReusesTree() throws IOException {
+		byte[] block = words(13, 1000, "huff ", "man ", "tree ", "leaf ", "node\n");
+		byte[] twice = new byte[2 * block.length];
+		System.arraycopy(block, 0, twice, 0, block.length);
+		System.arraycopy(block, 0, twice, block.length, block.length);
+		int[] sizes = new int[2];
+		for (int k = 0; k < 2; k++) {
+			byte[] data = k == 0 ? block : twice;
+			ByteArrayOutputStream packed = new ByteArrayOutputStream();
+			BitOutputStream bitout = new BitOutputStream(packed);
+			new BwtHuff(block.length).encode(new ByteArrayInputStream(data), bitout);
+			bitout.close();
+			sizes[k] = packed.size();
+			ByteArrayOutputStream unpacked = new ByteArrayOutputStream();
+			BwtHuff.decode(new BitInputStream(new ByteArrayInputStream(packed.toByteArray())), unpacked);
+			assertTrue(Arrays.equals(data, unpacked.toByteArray()));
+		}
+		// the second block has no tree of its 14 chunks, 153 bits
+		assertTrue(sizes[1] - sizes[0] <= sizes[0] - 4 - 153 / 8);
+	}
+
+	@Test
+	public void testBwtWrite() {
+		IHuffModel model = new BwtHuff();
+		assertTrue(model.write("input.txt", "output_bwt.txt", true) > 0);
+		assertEquals(model.uncompress("output_bwt.txt", "uncompressed_bwt.txt"), 168);
+		assertEquals(model.write("input_1.txt", "output_1_bwt.txt", false), 0);
+	}
+
+	@Test
+	public void testContextRoundTrip() throws IOException {
+		byte[] data = words(5, 2 * ContextHuff.BLOCK_SIZE + 3, "huff ", "man ", "tree ", "leaf ", "node\n", "QXZ");
+		int[] pairs = new int[ALPH_SIZE * ALPH_SIZE];
+		ContextModel.countPairs(pairs, 0, data, 0, data.length);
+		ContextModel order1 = ContextModel.fromCounts(pairs, ContextModel.MAX_CLUSTERS);
+		ContextModel order0 = ContextModel.fromCounts(pairs, 1);
+		assertTrue(order1.clusters() > 1);
+		assertEquals(order0.clusters(), 1);
+		assertTrue(order1.headerSize() + order1.compressedSize(pairs) < order0.compressedSize(pairs));
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		BitOutputStream bitout = new BitOutputStream(packed);
+		ContextHuff.encode(order1, new ByteArrayInputStream(data), bitout);
+		bitout.close();
+		ByteArrayOutputStream unpacked = new ByteArrayOutputStream();
+		long size = ContextHuff.decode(new BitInputStream(new ByteArrayInputStream(packed.toByteArray())), unpacked);
+		assertEquals(size, data.length);
+		assertTrue(Arrays.equals(data, unpacked.toByteArray()));
+	}
+
+	@Test
+	public void testContextWrite() {
+		IHuffModel model = new ContextHuff();
+		assertTrue(model.write("input.txt", "output_context.txt", true) > 0);
+		assertEquals(model.uncompress("output_context.txt", "uncompressed_context.txt"), 168);
+		assertEquals(model.write("input_1.txt", "output_1_context.txt", false), 0);
+	}
+
+	@Test
+	public void testRansNormalize() {
+		int[] counts = new int[ALPH_SIZE];
+		counts['a'] = 1000000;
+		for (int ch = 0; ch < 200; ch++)
+			counts[ch] += 1;
+		int[] freqs = RansModel.normalize(counts);
+		int sum = 0;
+		for (int ch = 0; ch < ALPH_SIZE; ch++) {
+			assertEquals(freqs[ch] > 0, counts[ch] > 0);
+			sum += freqs[ch];
+		}
+		assertEquals(sum, 1 << RansModel.SCALE_BITS);
+	}
+
+	@Test
+	public void testRansRoundTrip() throws IOException {
+		// skewed enough that Huffman needs a whole bit per chunk
+		byte[] data = new byte[3 * RansModel.BLOCK_SIZE + 1];
+		Random random = new Random(9);
+		for (int i = 0; i < data.length; i++) {
+			int r = random.nextInt(100);
+			data[i] = (byte) (r < 95 ? 0 : r < 98 ? 1 : r);
+		}
+		CharCounter cc = new CharCounter();
+		cc.countAll(new ByteArrayInputStream(data));
+		int[] freqs = RansModel.normalize(cc.toArray());
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		BitOutputStream bitout = new BitOutputStream(packed);
+		RansModel.encode(freqs, new ByteArrayInputStream(data), bitout);
+		bitout.close();
+		assertTrue(packed.size() * 8 < data.length / 2);
+		ByteArrayOutputStream unpacked = new ByteArrayOutputStream();
+		long size = RansModel.decode(new BitInputStream(new ByteArrayInputStream(packed.toByteArray())), unpacked);
+		assertEquals(size, data.length);
+		assertTrue(Arrays.equals(data, unpacked.toByteArray()));
+	}
+
+	@Test
+	public void testRansWrite() {
+		IHuffModel model = new RansModel();
+		assertTrue(model.write("input.txt", "output_rans.txt", true) > 0);
+		assertEquals(model.uncompress("output_rans.txt", "uncompressed_rans.txt"), 168);
+		assertEquals(model.write("input_1.txt", "output_1_rans.txt", false), 0);
+	}
+
+	@Test
+	public void testSplitWhenStatisticsShift() throws IOException {
+		// text, then random bytes, then text again
+		byte[] data = shifting(13);
+		FileOutputStream file = new FileOutputStream("input_mixed.txt");
+		file.write(data);
+		file.close();
+		BlockSplitter split = BlockSplitter.split("input_mixed.txt");
+		assertEquals(split.segments(), 3);
+		assertEquals(split.start(1), 2L * BlockSplitter.UNIT_SIZE);
+		assertEquals(split.end(1), 4L * BlockSplitter.UNIT_SIZE);
+		Huff huff = new Huff();
+		int size = huff.write("input_mixed.txt", "output_mixed.txt", false, 1000);
+		CharCounter cc = new CharCounter();
+		cc.countFile("input_mixed.txt");
+		assertTrue(size > 0 && size < BlockSplitter.cost(cc.toArray()));
+		assertEquals(huff.uncompress("output_mixed.txt", "uncompressed_mixed.txt"), data.length * 8);
+		byte[] part = huff.uncompress("output_mixed.txt", 2 * BlockSplitter.UNIT_SIZE - 3, 6);
+		assertTrue(Arrays.equals(part,
+				Arrays.copyOfRange(data, 2 * BlockSplitter.UNIT_SIZE - 3, 2 * BlockSplitter.UNIT_SIZE + 3)));
+		// an open-ended read returns what is left
+		assertEquals(huff.uncompress("output_mixed.txt", data.length - 10, Integer.MAX_VALUE).length, 10);
+		huff.write("input_mixed.txt", "output_mixed_nosync.txt", true);
+		assertEquals(huff.uncompress("output_mixed_nosync.txt", data.length - 10, Integer.MAX_VALUE).length, 10);
+	}
+
+	@Test
+	public void testSearchCompressed() throws IOException {
+		// text, then random bytes, then text again, in three segments
+		byte[] data = shifting(17);
+		// a match across each segment boundary
+		System.arraycopy("huffman".getBytes("UTF-8"), 0, data, 2 * BlockSplitter.UNIT_SIZE - 3, 7);
+		System.arraycopy("huffman".getBytes("UTF-8"), 0, data, 4 * BlockSplitter.UNIT_SIZE - 4, 7);
+		FileOutputStream file = new FileOutputStream("input_search.txt");
+		file.write(data);
+		file.close();
+		Huff huff = new Huff();
+		huff.write("input_search.txt", "output_search.txt", true, 1000);
+		huff.write("input_search.txt", "output_search_noindex.txt", true);
+		String[] patterns = { "huffman", "abra", "a", "zzz", "tree\nabr" };
+		for (String pattern : patterns) {
+			byte[] p = pattern.getBytes("UTF-8");
+			List<Long> expected = new ArrayList<Long>();
+			for (int i = 0; i + p.length <= data.length; i++) {
+				int k = 0;
+				while (k < p.length && data[i + k] == p[k])
+					k++;
+				if (k == p.length)
+					expected.add((long) i);
+			}
+			long[] indexed = HuffSearch.search("output_search.txt", p);
+			long[] decoded = HuffSearch.search("output_search_noindex.txt", p);
+			assertEquals(indexed.length, expected.size());
+			for (int i = 0; i < indexed.length; i++)
+				assertEquals(indexed[i], expected.get(i).longValue());
+			assertTrue(Arrays.equals(indexed, decoded));
+		}
+	}
+
+	@Test
+	public void testSpeculativeDecode() throws IOException {
+		// skewed text, whose codes fall into step, then random bytes, whose
+		// codes of 8 bits never do
+		byte[] data = new byte[3 << 20];
+		Random random = new Random(19);
+		for (int i = 0; i < data.length; i++)
+			data[i] = i < 2 << 20 ? (byte) ('a' + Math.min(25, (int) -Math.log(random.nextDouble()) * 3))
+					: (byte) random.nextInt(256);
+		FileOutputStream file = new FileOutputStream("input_speculative.txt");
+		file.write(data);
+		file.close();
+		Huff huff = new Huff();
+		huff.write("input_speculative.txt", "output_speculative.txt", true);
+		huff.write("input_speculative.txt", "output_speculative_sync.txt", true, 1000);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (String name : new String[] { "output_speculative.txt", "output_speculative_sync.txt" }) {
+				assertEquals(SpeculativeDecoder.decode(name, "uncompressed_speculative.txt", pool), data.length);
+				assertTrue(Arrays.equals(Files.readAllBytes(
+						Paths.get("uncompressed_speculative.txt")), data));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testDecodeTableRuns() {
+		// codes of 1 to 3 bits for most chunks, long ones for a few
+		int[] counts = new int[ALPH_SIZE];
+		for (int ch = 0; ch < ALPH_SIZE; ch++)
+			counts[ch] = ch < 4 ? 1 << (20 - ch) : 1;
+		HuffCodec codec = HuffCodec.fromCounts(counts);
+		Random random = new Random(23);
+		byte[] data = new byte[10000];
+		BitArrayWriter writer = new BitArrayWriter(data.length);
+		for (int i = 0; i < data.length; i++) {
+			int ch = random.nextInt(10) < 9 ? random.nextInt(4) : random.nextInt(ALPH_SIZE);
+			data[i] = (byte) ch;
+			writer.write(codec.codeLength(ch), codec.code(ch));
+		}
+		writer.write(codec.codeLength(PSEUDO_EOF), codec.code(PSEUDO_EOF));
+		long bits = writer.bitLength();
+		writer.align();
+		BitArrayReader in = new BitArrayReader(writer.data(), 0, writer.size());
+		byte[] decoded = new byte[data.length + HuffDecodeTable.MAX_CHUNKS];
+		int pos = 0;
+		int n;
+		int lookups = 0;
+		while ((n = codec.decodeTable().next(in, decoded, pos)) > 0) {
+			pos += n;
+			lookups++;
+		}
+		assertEquals(pos, data.length);
+		assertEquals(in.position(), bits);
+		assertTrue(Arrays.equals(Arrays.copyOf(decoded, pos), data));
+		assertTrue(lookups < data.length / 2);
+	}
+
+	@Test
+	public void testBitArrayWriterGrows() {
+		// up to 31 bits pending and a code of 9 to 32 bits flush 7 bytes
+		Random random = new Random(41);
+		for (int trial = 0; trial < 200; trial++) {
+			BitArrayWriter writer = new BitArrayWriter(0);
+			int[] widths = new int[300];
+			int[] values = new int[widths.length];
+			for (int i = 0; i < widths.length; i++) {
+				widths[i] = 1 + random.nextInt(32);
+				values[i] = random.nextInt() & (int) (-1L >>> (64 - widths[i]));
+				writer.write(widths[i], values[i]);
+			}
+			writer.align();
+			BitArrayReader in = new BitArrayReader(writer.data(), 0, writer.size());
+			for (int i = 0; i < widths.length; i++)
+				assertEquals(in.read(widths[i]), values[i]);
+			assertFalse(in.overrun());
+		}
+	}
+
+	@Test
+	public void testChecksumComesFromCounting() throws IOException {
+		byte[] data = new byte[(int) CharCounter.RANGE_SIZE * 3];
+		new Random(29).nextBytes(data);
+		FileOutputStream file = new FileOutputStream("input_checksum.txt");
+		file.write(data, 0, 1000);
+		file.close();
+		CharCounter cc = new CharCounter();
+		cc.countFile("input_checksum.txt");
+		CRC32C crc = new CRC32C();
+		crc.update(data, 0, 1000);
+		assertEquals(cc.checksum(), (int) crc.getValue());
+		// a large file counted in ranges, changed in one byte
+		file = new FileOutputStream("input_checksum.txt");
+		file.write(data);
+		file.close();
+		cc.countFile("input_checksum.txt");
+		int whole = cc.checksum();
+		cc.countFile("input_checksum.txt", new ForkJoinPool(3));
+		assertEquals(cc.checksum(), whole);
+		data[data.length - 7]++;
+		file = new FileOutputStream("input_checksum.txt");
+		file.write(data);
+		file.close();
+		cc.countFile("input_checksum.txt");
+		assertTrue(cc.checksum() != whole);
+	}
+
+	@Test
+	public void testBatchSkipsUnchangedFiles() throws IOException {
+		Path in = Paths.get("batch_in");
+		Path out = Paths.get("batch_out");
+		Files.createDirectories(in);
+		for (Path dir : new Path[] { in, out }) {
+			if (Files.isDirectory(dir)) {
+				for (File f : dir.toFile().listFiles())
+					f.delete();
+			}
+		}
+		String[] names = { "a.txt", "b.txt", "c.txt" };
+		for (String name : names)
+			Files.write(in.resolve(name), ("contents of " + name + "\n").getBytes("UTF-8"));
+		assertEquals(HuffBatch.compress("batch_in", "batch_out"), 3);
+		assertEquals(HuffBatch.compress("batch_in", "batch_out"), 0);
+		// one changed, one new, one gone
+		Files.write(in.resolve("b.txt"), "changed contents\n".getBytes("UTF-8"));
+		Files.write(in.resolve("d.txt"), "new file\n".getBytes("UTF-8"));
+		Files.delete(in.resolve("c.txt"));
+		assertEquals(HuffBatch.compress("batch_in", "batch_out"), 2);
+		assertFalse(Files.exists(out.resolve("c.txt" + HuffBatch.SUFFIX)));
+		Huff huff = new Huff();
+		for (String name : new String[] { "a.txt", "b.txt", "d.txt" }) {
+			huff.uncompress("batch_out/" + name + HuffBatch.SUFFIX, "uncompressed_batch.txt");
+			assertTrue(Arrays.equals(
+					Files.readAllBytes(Paths.get("uncompressed_batch.txt")),
+					Files.readAllBytes(in.resolve(name))));
+		}
+		// a damaged manifest makes the run compress every file
+		ByteArrayOutputStream damaged = new ByteArrayOutputStream();
+		DataOutputStream manifest = new DataOutputStream(damaged);
+		manifest.writeInt(IHuffConstants.MANIFEST_MAGIC);
+		manifest.writeInt(1);
+		manifest.write(new byte[] { 0, 2, (byte) 0xc0, ' ' });
+		manifest.close();
+		Files.write(out.resolve(HuffBatch.MANIFEST), damaged.toByteArray());
+		assertEquals(HuffBatch.compress("batch_in", "batch_out"), 3);
+		assertEquals(HuffBatch.compress("batch_in", "batch_out"), 0);
+	}
+
+	// steady-state bytes allocated per input byte, about twice what each
+	// path takes on the 4 MiB corpus below; a String or a boxed Integer per
+	// chunk or bit takes well over 10. write is higher because
+	// BlockSplitter.merge clones a unit's 8-lane histogram, 8 KiB, for each
+	// merge it weighs, a few hundred for the 64 units of this file
+	private static final double COUNT_BUDGET = 0.004;
+	private static final double FILE_BUDGET = 0.008;
+	private static final double ENCODE_BUDGET = 1;
+	private static final double DECODE_BUDGET = 0.01;
+
+	@Test
+	public void testHotPathsStayWithinAllocationBudget() throws Exception {
+		// under PARALLEL_THRESHOLD, so every pass runs on this thread
+		// skewed by repeats, so the file stays one segment
+		String[] skewed = { "huffman ", "huffman ", "huffman ", "huffman ", "huffman ", "huffman ", "huffman ",
+				"huffman ", "tree ", "tree ", "tree ", "tree ", "tree ", "code ", "code ", "code ", "the ", "the ",
+				"of ", "chunk ", "bit\n", "a " };
+		final byte[] data = words(31, 4 << 20, skewed);
+		FileOutputStream file = new FileOutputStream("input_allocation.txt");
+		file.write(data);
+		file.close();
+		final Huff huff = new Huff();
+		huff.makeHuffTree(new ByteArrayInputStream(data));
+		double count = allocatedPerByte(data.length, () -> new CharCounter().countAll(new ByteArrayInputStream(data)));
+		if (count < 0)
+			return;
+		assertTrue("countAll allocates " + count + " bytes per byte", count <= COUNT_BUDGET);
+		double size = allocatedPerByte(data.length, () -> huff.compressSize("input_allocation.txt"));
+		assertTrue("compressSize allocates " + size + " bytes per byte", size <= FILE_BUDGET);
+		double single = allocatedPerByte(data.length,
+				() -> huff.writeToFile("input_allocation.txt", "output_allocation.txt"));
+		assertTrue("writeToFile allocates " + single + " bytes per byte", single <= FILE_BUDGET);
+		double write = allocatedPerByte(data.length,
+				() -> huff.write("input_allocation.txt", "output_allocation.txt", true));
+		assertTrue("write allocates " + write + " bytes per byte", write <= ENCODE_BUDGET);
+		double read = allocatedPerByte(data.length,
+				() -> huff.uncompress("output_allocation.txt", "uncompressed_allocation.txt"));
+		assertTrue("uncompress allocates " + read + " bytes per byte", read <= DECODE_BUDGET);
+	}
+
+	/**
+	 * Bytes the current thread allocates per input byte running an action,
+	 * the least of a few runs after warming it up.
+	 *
+	 * @return the bytes per byte, or -1 if the JVM does not measure them
+	 */
+	private static double allocatedPerByte(long inputBytes, Callable<?> action)
+			throws Exception {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if (!threads.isThreadAllocatedMemorySupported())
+			return -1;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long id = Thread.currentThread().getId();
+		for (int i = 0; i < 5; i++)
+			action.call();
+		long least = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			long before = threads.getThreadAllocatedBytes(id);
+			action.call();
+			least = Math.min(least, threads.getThreadAllocatedBytes(id) - before);
+		}
+		return (double) least / inputBytes;
+	}
+
+	@Test
+	public void testColumnRoundTrip() throws IOException {
+		// timestamps, a few levels, free text
+		StringBuilder csv = new StringBuilder();
+		Random random = new Random(37);
+		String[] levels = { "INFO", "WARN", "ERROR", "DEBUG" };
+		String[] words = { "disk", "full", "request", "served", "in", "ms", "retry", "user", "login" };
+		for (int row = 0; row < 40000; row++) {
+			csv.append(1700000000L + row * 7 + random.nextInt(7)).append(',');
+			csv.append(levels[random.nextInt(levels.length)]).append(',');
+			for (int w = 0; w < 1 + random.nextInt(5); w++)
+				csv.append(w == 0 ? "" : " ").append(words[random.nextInt(words.length)]);
+			// a ragged row now and then, and no newline after the last one
+			if (row % 1000 == 999)
+				csv.append(",extra,fields");
+			if (row < 39999)
+				csv.append('\n');
+		}
+		byte[] data = csv.toString().getBytes("UTF-8");
+		FileOutputStream file = new FileOutputStream("input_columns.txt");
+		file.write(data);
+		file.close();
+		ColumnHuff columns = new ColumnHuff();
+		int size = columns.write("input_columns.txt", "output_columns.txt", false);
+		assertTrue(size > 0 && size < new Huff().write("input_columns.txt", "output_plain.txt", true));
+		assertEquals(columns.uncompress("output_columns.txt", "uncompressed_columns.txt"), data.length * 8);
+		assertTrue(Arrays.equals(
+				Files.readAllBytes(Paths.get("uncompressed_columns.txt")), data));
+		// the second column alone
+		StringBuilder levelsOnly = new StringBuilder();
+		for (String line : csv.toString().split("\n"))
+			levelsOnly.append(line.split(",")[1]).append('\n');
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BitInputStream in = new BitInputStream("output_columns.txt");
+		try {
+			ColumnHuff.decodeColumn(in, 1, out);
+		} finally {
+			in.close();
+		}
+		assertEquals(out.toString("UTF-8"), levelsOnly.toString());
+	}
+
+	/**
+	 * @return n bytes of words picked at random, the last one cut short
+	 */
+	static byte[] words(long seed, int n, String... words) throws IOException {
+		Random random = new Random(seed);
+		byte[] data = new byte[n];
+		for (int i = 0; i < n;) {
+			byte[] w = words[random.nextInt(words.length)].getBytes("UTF-8");
+			for (int j = 0; j < w.length && i < n; j++)
+				data[i++] = w[j];
+		}
+		return data;
+	}
+
+	/**
+	 * @return six units of BlockSplitter: text, then random bytes, then text
+	 *         again
+	 */
+	static byte[] shifting(long seed) throws IOException {
+		byte[] text = "abracadabra, said the huffman tree\n".getBytes("UTF-8");
+		byte[] data = new byte[6 * BlockSplitter.UNIT_SIZE];
+		Random random = new Random(seed);
+		for (int i = 0; i < data.length; i++)
+			data[i] = i < 2 * BlockSplitter.UNIT_SIZE || i >= 4 * BlockSplitter.UNIT_SIZE
+					? text[i % text.length] : (byte) random.nextInt(256);
+		return data;
+	}
 }
@@ -58,15 +58,9 @@ public class HuffTree implements Comparable {
 	 * @return the size of the huffman tree when written into a file
 	 */
 	public int size() {
-		return size(root);
-	}
-
-	private int size(IHuffBaseNode n) {
-		if (n == null)
+		if (root == null)
 			return 0;
-		if (n instanceof HuffLeafNode)
-			return 10;
-		return 1 + size(((HuffInternalNode) n).left()) + size(((HuffInternalNode) n).right());
+		return HuffArrayTree.fromTree(this).size();
 	}
 
 	@Override
@@ -37,4 +37,65 @@ public interface IHuffConstants {
      * Isolate the magic number in one place.
      */
     public static final int MAGIC_NUMBER = 1234567873;
+
+    /**
+     * Marks both ends of the sync point index that may follow a
+     * compressed stream.
+     */
+    public static final int SYNC_MAGIC = 1234567874;
+
+    /**
+     * Magic number of the format that splits each block into four
+     * interleaved code streams.
+     */
+    public static final int INTERLEAVED_MAGIC = 1234567875;
+
+    /**
+     * Magic number of the format with an LZ77 stage before the
+     * Huffman coder.
+     */
+    public static final int LZ_MAGIC = 1234567876;
+
+    /**
+     * Magic number of the format that applies the Burrows-Wheeler
+     * transform, move-to-front and zero-run coding before the Huffman
+     * coder.
+     */
+    public static final int BWT_MAGIC = 1234567877;
+
+    /**
+     * Magic number of the order-1 format, whose code table depends on
+     * the previous chunk.
+     */
+    public static final int CONTEXT_MAGIC = 1234567878;
+
+    /**
+     * Magic number of the format coded with asymmetric numeral systems
+     * instead of Huffman codes.
+     */
+    public static final int RANS_MAGIC = 1234567879;
+
+    /**
+     * Magic number of the format that stores the number of chunks instead
+     * of ending with PSEUDO_EOF.
+     */
+    public static final int SIZED_MAGIC = 1234567880;
+
+    /**
+     * Magic number of a batch archive that stores each distinct chunk of
+     * its files once.
+     */
+    public static final int DEDUP_MAGIC = 1234567881;
+
+    /**
+     * Magic number of the manifest a batch run keeps of the files it
+     * compressed.
+     */
+    public static final int MANIFEST_MAGIC = 1234567882;
+
+    /**
+     * Magic number of the format that codes each column of delimited
+     * records as a stream of its own.
+     */
+    public static final int COLUMN_MAGIC = 1234567883;
 }
@@ -0,0 +1,220 @@
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Huffman model whose blocks are split into four interleaved code streams:
+ * chunk i of a block is coded into stream i mod 4. The four streams share one
+ * table and have no dependency on each other, so the decoder can keep a
+ * lookup in flight for each of them instead of waiting for every code before
+ * it can find the start of the next one.
+ * <P>
+ * File layout, after a header like Huff's but with INTERLEAVED_MAGIC:
+ *
+ * <pre>
+ * pad to a byte boundary
+ * for every block:
+ *     int count             chunks in the block, at most BLOCK_SIZE
+ *     int len0 .. len3      bytes in each stream
+ *     stream 0 .. stream 3
+ * int 0                     end of the blocks
+ * </pre>
+ */
+public class InterleavedHuff implements IHuffModel {
+
+	/** Number of streams a block is split into. */
+	public static final int STREAMS = 4;
+
+	/** Largest number of chunks in a block. */
+	public static final int BLOCK_SIZE = HuffContext.BUFFER_SIZE;
+
+	/**
+	 * Write a compressed version of a file. If force is false, compression
+	 * only occurs if it saves space.
+	 *
+	 * @param inFile
+	 *            is the file to be compressed
+	 * @param outFile
+	 *            is the file to be written with compressed data
+	 * @param force
+	 *            indicates if compression forced
+	 * @return the size of the compressed file in bits, 0 if not written
+	 */
+	public int write(String inFile, String outFile, boolean force) {
+		try {
+			CharCounter cc = new CharCounter();
+			long originalSize = cc.countFile(inFile) * 8;
+			HuffCodec codec = HuffCodec.fromCounts(cc.getTable());
+			// stream lengths round up to bytes, up to a byte per stream
+			long blocks = (originalSize / 8 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			long estimate = codec.headerSize() + codec.compressedSize(Huff.counts(cc))
+					+ blocks * (BITS_PER_INT * (1 + STREAMS) + 8 * STREAMS) + BITS_PER_INT;
+			if (!force && estimate >= originalSize)
+				return 0;
+			InputStream in = new BufferedInputStream(new FileInputStream(inFile));
+			BitOutputStream out = new BitOutputStream(outFile);
+			try {
+				return (int) encode(codec, in, out);
+			} finally {
+				in.close();
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	/**
+	 * Code a stream in interleaved blocks.
+	 *
+	 * @param codec
+	 *            holds the code table
+	 * @param in
+	 *            is the data to compress
+	 * @param out
+	 *            receives the header and blocks
+	 * @return the number of bits written
+	 * @throws IOException
+	 *             if reading or writing fails
+	 */
+	public static long encode(HuffCodec codec, InputStream in, BitOutputStream out) throws IOException {
+		out.write(BITS_PER_INT, INTERLEAVED_MAGIC);
+		int header = BITS_PER_INT + codec.tree().write(out);
+		// blocks start on a byte boundary
+		out.flush();
+		long size = (header + 7) / 8 * 8;
+		byte[] block = HuffContext.get().in;
+		BitArrayWriter[] streams = new BitArrayWriter[STREAMS];
+		for (int s = 0; s < STREAMS; s++)
+			streams[s] = new BitArrayWriter(BLOCK_SIZE / STREAMS);
+		int n;
+		while ((n = readFully(in, block)) > 0) {
+			for (int s = 0; s < STREAMS; s++)
+				streams[s].reset();
+			for (int i = 0; i < n; i++) {
+				int ch = block[i] & 0xff;
+				streams[i & (STREAMS - 1)].write(codec.codeLength(ch), codec.code(ch));
+			}
+			out.write(BITS_PER_INT, n);
+			for (int s = 0; s < STREAMS; s++) {
+				streams[s].align();
+				out.write(BITS_PER_INT, streams[s].size());
+			}
+			size += BITS_PER_INT * (1 + STREAMS);
+			for (int s = 0; s < STREAMS; s++) {
+				out.write(streams[s].data(), 0, streams[s].size());
+				size += streams[s].size() * 8L;
+			}
+		}
+		out.write(BITS_PER_INT, 0);
+		return size + BITS_PER_INT;
+	}
+
+	/**
+	 * Uncompress a file written by {@link #write(String, String, boolean)}.
+	 *
+	 * @param inFile
+	 *            is the compressed file to be uncompressed
+	 * @param outFile
+	 *            is where the uncompressed bits will be written
+	 * @return the size of the uncompressed file in bits
+	 */
+	public int uncompress(String inFile, String outFile) {
+		BitInputStream in = new BitInputStream(inFile);
+		BitOutputStream out = new BitOutputStream(outFile);
+		try {
+			return (int) decode(in, out) * 8;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Decode an interleaved file.
+	 *
+	 * @param in
+	 *            is positioned at the magic number
+	 * @param out
+	 *            receives the decoded chunks
+	 * @return the number of chunks written
+	 * @throws IOException
+	 *             if the input is not in this format or ends early
+	 */
+	public static long decode(BitInputStream in, OutputStream out) throws IOException {
+		if (in.read(BITS_PER_INT) != INTERLEAVED_MAGIC)
+			throw new IOException("magic number not right");
+		HuffCodec codec = new HuffCodec(HuffArrayTree.read(in));
+		in.align();
+		HuffDecodeTable table = codec.tree().root() < 0 ? null : codec.decodeTable();
+		byte[] block = HuffContext.get().out;
+		byte[] packed = new byte[BLOCK_SIZE];
+		BitArrayReader[] streams = new BitArrayReader[STREAMS];
+		int[] lengths = new int[STREAMS];
+		long size = 0;
+		int n;
+		while ((n = in.read(BITS_PER_INT)) != 0) {
+			if (n < 0 || n > BLOCK_SIZE || table == null)
+				throw new IOException("bad block header");
+			int total = 0;
+			for (int s = 0; s < STREAMS; s++) {
+				lengths[s] = in.read(BITS_PER_INT);
+				if (lengths[s] < 0)
+					throw new IOException("unexpected end of input file");
+				total += lengths[s];
+			}
+			if (packed.length < total)
+				packed = new byte[total];
+			if (readFully(in, packed, total) < total)
+				throw new IOException("unexpected end of input file");
+			for (int s = 0, off = 0; s < STREAMS; off += lengths[s++]) {
+				if (streams[s] == null)
+					streams[s] = new BitArrayReader(packed, off, lengths[s]);
+				else
+					streams[s].reset(packed, off, lengths[s]);
+			}
+			decodeBlock(table, streams, block, n);
+			for (int s = 0; s < STREAMS; s++) {
+				if (streams[s].overrun())
+					throw new IOException("unexpected end of input file");
+			}
+			out.write(block, 0, n);
+			size += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Decode one block, one chunk from each stream per round.
+	 */
+	private static void decodeBlock(HuffDecodeTable table, BitArrayReader[] streams, byte[] block, int n) {
+		BitArrayReader s0 = streams[0], s1 = streams[1], s2 = streams[2], s3 = streams[3];
+		int rounds = n & ~(STREAMS - 1);
+		for (int i = 0; i < rounds; i += STREAMS) {
+			block[i] = (byte) table.next(s0);
+			block[i + 1] = (byte) table.next(s1);
+			block[i + 2] = (byte) table.next(s2);
+			block[i + 3] = (byte) table.next(s3);
+		}
+		for (int i = rounds; i < n; i++)
+			block[i] = (byte) table.next(streams[i & (STREAMS - 1)]);
+	}
+
+	private static int readFully(InputStream in, byte[] buf) throws IOException {
+		return readFully(in, buf, buf.length);
+	}
+
+	private static int readFully(InputStream in, byte[] buf, int len) throws IOException {
+		int n = 0;
+		int r;
+		while (n < len && (r = in.read(buf, n, len - n)) != -1)
+			n += r;
+		return n;
+	}
+}
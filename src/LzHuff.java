@@ -0,0 +1,528 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Huffman model with an LZ77 stage in front of the coder. Repeated strings
+ * are replaced by (length, distance) matches into a sliding window of earlier
+ * data, found with a hash-chain match finder. Each block codes its tokens with
+ * three Huffman tables built by the usual tree code:
+ * <ul>
+ * <li>literals: chunks 0-255, and PSEUDO_EOF meaning "a match follows"</li>
+ * <li>lengths: match length - MIN_MATCH, 0-255</li>
+ * <li>distances: the position of the highest set bit of the distance, which
+ * is followed by that many extra bits holding the rest of it</li>
+ * </ul>
+ * The level sets how hard the match finder searches: level 1 looks at one
+ * candidate per position, each level doubles that, and levels from
+ * LAZY_LEVEL up also try a match one position later before taking one.
+ * <P>
+ * File layout:
+ *
+ * <pre>
+ * int LZ_MAGIC
+ * int windowBits
+ * for every block:
+ *     int length        uncompressed bytes in the block
+ *     for the literal, length and distance tables:
+ *         1 bit         1 to use the table of the previous block
+ *         tree          only if the bit is 0
+ *     pad to a byte boundary
+ *     int payloadBytes
+ *     tokens, padded to a byte boundary
+ * int 0
+ * </pre>
+ */
+public class LzHuff implements IHuffModel {
+
+	/** Shortest match coded as a match. */
+	public static final int MIN_MATCH = 3;
+
+	/** Longest match, so that length - MIN_MATCH fits one chunk. */
+	public static final int MAX_MATCH = MIN_MATCH + ALPH_SIZE - 1;
+
+	/** Symbol of the literal table announcing a match. */
+	public static final int MATCH = PSEUDO_EOF;
+
+	/** Level with the least match search effort. */
+	public static final int FASTEST = 1;
+
+	/** Level with the most match search effort. */
+	public static final int STRONGEST = 9;
+
+	/** Level used by the default constructor. */
+	public static final int DEFAULT_LEVEL = 6;
+
+	/** Lowest level that uses lazy matching. */
+	public static final int LAZY_LEVEL = 5;
+
+	/** Window size, as a power of two, used by the default constructor. */
+	public static final int DEFAULT_WINDOW_BITS = 16;
+
+	/** Number of uncompressed bytes per block. */
+	static final int BLOCK_SIZE = 1 << 18;
+
+	private static final int HASH_BITS = 15;
+	private static final int DISTANCE_CODES = 32;
+	private static final int TOO_FAR = 4096;
+
+	private final int windowBits;
+	private final int level;
+
+	public LzHuff() {
+		this(DEFAULT_WINDOW_BITS, DEFAULT_LEVEL);
+	}
+
+	/**
+	 * @param windowBits
+	 *            is log2 of the window size, 10 to 20
+	 * @param level
+	 *            is FASTEST to STRONGEST
+	 */
+	public LzHuff(int windowBits, int level) {
+		if (windowBits < 10 || windowBits > 20)
+			throw new IllegalArgumentException("windowBits must be 10 to 20");
+		if (level < FASTEST || level > STRONGEST)
+			throw new IllegalArgumentException("level must be 1 to 9");
+		this.windowBits = windowBits;
+		this.level = level;
+	}
+
+	/**
+	 * Write a compressed version of a file. If force is false and the result
+	 * is not smaller than the input, the output is removed.
+	 *
+	 * @param inFile
+	 *            is the file to be compressed
+	 * @param outFile
+	 *            is the file to be written with compressed data
+	 * @param force
+	 *            indicates if compression forced
+	 * @return the size of the compressed file in bits, 0 if not written
+	 */
+	public int write(String inFile, String outFile, boolean force) {
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(inFile));
+			BitOutputStream out = new BitOutputStream(outFile);
+			long size;
+			try {
+				size = encode(in, out);
+			} finally {
+				in.close();
+				out.close();
+			}
+			if (!force && size >= new File(inFile).length() * 8) {
+				new File(outFile).delete();
+				return 0;
+			}
+			return (int) size;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	/**
+	 * Compress a stream.
+	 *
+	 * @param in
+	 *            is the data to compress
+	 * @param out
+	 *            receives the compressed data
+	 * @return the number of bits written
+	 * @throws IOException
+	 *             if reading or writing fails
+	 */
+	public long encode(InputStream in, BitOutputStream out) throws IOException {
+		out.write(BITS_PER_INT, LZ_MAGIC);
+		out.write(BITS_PER_INT, windowBits);
+		long size = 2 * BITS_PER_INT;
+		MatchFinder finder = new MatchFinder(windowBits, level);
+		int[] tokens = new int[BLOCK_SIZE];
+		BitArrayWriter payload = new BitArrayWriter(BLOCK_SIZE);
+		HuffCodec[] tables = new HuffCodec[3];
+		int n;
+		while ((n = finder.fill(in)) > 0) {
+			size += writeBlock(finder, tokens, tables, payload, out);
+			finder.slide();
+		}
+		out.write(BITS_PER_INT, 0);
+		return size + BITS_PER_INT;
+	}
+
+	/**
+	 * Tokenize and write the block in the finder. If coding the block's chunks
+	 * as plain literals is cheaper than its matches, which happens on data
+	 * with few repeats, the block is written as literals only. Each of the
+	 * literal, length and distance tables of the previous block, held in
+	 * tables, is used again if that is cheaper than sending a new one.
+	 */
+	private static long writeBlock(MatchFinder finder, int[] tokens, HuffCodec[] tables, BitArrayWriter payload,
+			BitOutputStream out) throws IOException {
+		int count = finder.tokenize(tokens);
+		int[] litCounts = new int[ALPH_SIZE + 1];
+		int[] lenCounts = new int[ALPH_SIZE];
+		int[] distCounts = new int[DISTANCE_CODES];
+		for (int i = 0; i < count; i++) {
+			int t = tokens[i];
+			if (t < ALPH_SIZE) {
+				litCounts[t]++;
+			} else {
+				litCounts[MATCH]++;
+				lenCounts[matchLength(t) - MIN_MATCH]++;
+				distCounts[distanceCode(matchDistance(t))]++;
+			}
+		}
+		HuffCodec lit = HuffCodec.fromCounts(litCounts);
+		HuffCodec len = HuffCodec.fromCounts(lenCounts);
+		HuffCodec dist = HuffCodec.fromCounts(distCounts);
+		if (litCounts[MATCH] > 0) {
+			long matchBits = lit.headerSize() + len.headerSize() + dist.headerSize()
+					+ lit.compressedSize(litCounts) + (long) litCounts[MATCH] * lit.codeLength(MATCH)
+					+ len.compressedSize(lenCounts) + dist.compressedSize(distCounts);
+			for (int c = 0; c < DISTANCE_CODES; c++)
+				matchBits += (long) distCounts[c] * c;
+			int[] chunks = finder.histogram();
+			HuffCodec plain = HuffCodec.fromCounts(chunks);
+			if (plain.headerSize() + plain.compressedSize(chunks) < matchBits) {
+				count = finder.literals(tokens);
+				litCounts = chunks;
+				lenCounts = new int[0];
+				distCounts = new int[0];
+				lit = plain;
+				len = dist = HuffCodec.fromCounts(lenCounts);
+			}
+		}
+		boolean[] reuse = { HuffCodec.reusable(tables[0], lit, litCounts),
+				HuffCodec.reusable(tables[1], len, lenCounts), HuffCodec.reusable(tables[2], dist, distCounts) };
+		if (reuse[0])
+			lit = tables[0];
+		if (reuse[1])
+			len = tables[1];
+		if (reuse[2])
+			dist = tables[2];
+		payload.reset();
+		for (int i = 0; i < count; i++) {
+			int t = tokens[i];
+			if (t < ALPH_SIZE) {
+				payload.write(lit.codeLength(t), lit.code(t));
+			} else {
+				int l = matchLength(t) - MIN_MATCH;
+				int d = matchDistance(t);
+				int c = distanceCode(d);
+				payload.write(lit.codeLength(MATCH), lit.code(MATCH));
+				payload.write(len.codeLength(l), len.code(l));
+				payload.write(dist.codeLength(c), dist.code(c));
+				payload.write(c, d);
+			}
+		}
+		payload.align();
+		out.write(BITS_PER_INT, finder.length());
+		tables[0] = lit;
+		tables[1] = len;
+		tables[2] = dist;
+		long bits = BITS_PER_INT;
+		for (int t = 0; t < tables.length; t++) {
+			out.write(1, reuse[t] ? 1 : 0);
+			bits += 1 + (reuse[t] ? 0 : tables[t].tree().write(out));
+		}
+		out.flush();
+		out.write(BITS_PER_INT, payload.size());
+		out.write(payload.data(), 0, payload.size());
+		return (bits + 7) / 8 * 8 + BITS_PER_INT + payload.size() * 8L;
+	}
+
+	/**
+	 * Uncompress a file written by {@link #write(String, String, boolean)}.
+	 *
+	 * @param inFile
+	 *            is the compressed file to be uncompressed
+	 * @param outFile
+	 *            is where the uncompressed bits will be written
+	 * @return the size of the uncompressed file in bits
+	 */
+	public int uncompress(String inFile, String outFile) {
+		BitInputStream in = new BitInputStream(inFile);
+		BitOutputStream out = new BitOutputStream(outFile);
+		try {
+			return (int) decode(in, out) * 8;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Uncompress a stream; the window size is read from the stream.
+	 *
+	 * @param in
+	 *            is positioned at the magic number
+	 * @param out
+	 *            receives the uncompressed data
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if the input is not in this format or is damaged
+	 */
+	public static long decode(BitInputStream in, OutputStream out) throws IOException {
+		if (in.read(BITS_PER_INT) != LZ_MAGIC)
+			throw new IOException("magic number not right");
+		int windowBits = in.read(BITS_PER_INT);
+		if (windowBits < 10 || windowBits > 20)
+			throw new IOException("bad window size");
+		int window = 1 << windowBits;
+		byte[] history = new byte[window + BLOCK_SIZE];
+		byte[] payload = new byte[BLOCK_SIZE];
+		BitArrayReader bits = new BitArrayReader(payload, 0, 0);
+		int pos = 0;
+		long size = 0;
+		// literal, length and distance trees and their lookup tables, kept
+		// for blocks that use them again
+		HuffArrayTree[] trees = new HuffArrayTree[3];
+		HuffDecodeTable[] tables = new HuffDecodeTable[3];
+		int length;
+		while ((length = in.read(BITS_PER_INT)) != 0) {
+			if (length < 0 || length > BLOCK_SIZE)
+				throw new IOException("bad block header");
+			for (int t = 0; t < trees.length; t++) {
+				int reuse = in.read(1);
+				if (reuse == -1)
+					throw new IOException("unexpected end of input file");
+				if (reuse == 0) {
+					trees[t] = HuffArrayTree.read(in);
+					tables[t] = table(trees[t]);
+				} else if (trees[t] == null) {
+					throw new IOException("no table to reuse");
+				}
+			}
+			HuffArrayTree litTree = trees[0];
+			HuffDecodeTable lit = tables[0];
+			HuffDecodeTable len = tables[1];
+			HuffDecodeTable dist = tables[2];
+			in.align();
+			int payloadBytes = in.read(BITS_PER_INT);
+			if (payloadBytes < 0)
+				throw new IOException("unexpected end of input file");
+			if (payload.length < payloadBytes)
+				payload = new byte[payloadBytes];
+			if (readFully(in, payload, 0, payloadBytes) < payloadBytes)
+				throw new IOException("unexpected end of input file");
+			bits.reset(payload, 0, payloadBytes);
+			int start = pos;
+			int end = pos + length;
+			while (pos < end) {
+				// a block of nothing but matches has a one-leaf literal tree
+				int sym = lit == null ? ~litTree.root() : lit.next(bits);
+				if (sym < ALPH_SIZE) {
+					history[pos++] = (byte) sym;
+					continue;
+				}
+				if (len == null || dist == null)
+					throw new IOException("match without match tables");
+				int l = len.next(bits) + MIN_MATCH;
+				int c = dist.next(bits);
+				if (l > MAX_MATCH || c >= DISTANCE_CODES)
+					throw new IOException("bad distance code");
+				int d = (1 << c) | bits.read(c);
+				if (d > pos || l > end - pos)
+					throw new IOException("match out of range");
+				// copy forwards, a match may overlap its own output
+				for (int i = 0; i < l; i++, pos++)
+					history[pos] = history[pos - d];
+			}
+			if (bits.overrun())
+				throw new IOException("unexpected end of input file");
+			out.write(history, start, length);
+			size += length;
+			if (pos > window) {
+				System.arraycopy(history, pos - window, history, 0, window);
+				pos = window;
+			}
+		}
+		return size;
+	}
+
+	private static HuffDecodeTable table(HuffArrayTree tree) {
+		return tree.root() < 0 ? null : new HuffDecodeTable(tree);
+	}
+
+	// a token is a chunk, or MATCH_FLAG | (length - MIN_MATCH) << 21 | distance
+	private static final int MATCH_FLAG = 1 << 30;
+
+	private static int matchToken(int length, int distance) {
+		return MATCH_FLAG | (length - MIN_MATCH) << 21 | distance;
+	}
+
+	private static int matchLength(int token) {
+		return (token >>> 21 & 0xff) + MIN_MATCH;
+	}
+
+	private static int matchDistance(int token) {
+		return token & 0x1fffff;
+	}
+
+	private static int distanceCode(int distance) {
+		return 31 - Integer.numberOfLeadingZeros(distance);
+	}
+
+	private static int readFully(InputStream in, byte[] buf, int off, int len) throws IOException {
+		int n = 0;
+		int r;
+		while (n < len && (r = in.read(buf, off + n, len - n)) != -1)
+			n += r;
+		return n;
+	}
+
+	/**
+	 * Hash-chain match finder over a buffer holding the window followed by the
+	 * current block.
+	 */
+	private static final class MatchFinder {
+
+		private final int window;
+		private final int maxChain;
+		private final boolean lazy;
+		private final byte[] buf;
+		// most recent position of each hash, -1 if none
+		private final int[] head;
+		// previous position with the same hash, indexed by position
+		private final int[] prev;
+		// block is buf[start, end)
+		private int start;
+		private int end;
+		// positions before this one are in the hash chains
+		private int inserted;
+
+		MatchFinder(int windowBits, int level) {
+			window = 1 << windowBits;
+			maxChain = 1 << (level - 1);
+			lazy = level >= LAZY_LEVEL;
+			buf = new byte[window + BLOCK_SIZE];
+			head = new int[1 << HASH_BITS];
+			prev = new int[buf.length];
+			Arrays.fill(head, -1);
+		}
+
+		/** Read the next block after the window; returns its length. */
+		int fill(InputStream in) throws IOException {
+			start = end;
+			end = start + readFully(in, buf, start, BLOCK_SIZE);
+			return end - start;
+		}
+
+		/** Keep only the last window bytes, moving them to the front. */
+		void slide() {
+			int shift = end - window;
+			if (shift <= 0)
+				return;
+			System.arraycopy(buf, shift, buf, 0, window);
+			for (int i = 0; i < head.length; i++)
+				head[i] = head[i] >= shift ? head[i] - shift : -1;
+			for (int i = 0; i < window; i++) {
+				int p = prev[i + shift];
+				prev[i] = p >= shift ? p - shift : -1;
+			}
+			end -= shift;
+			start = end;
+			inserted -= shift;
+		}
+
+		/** @return the number of chunks in the current block */
+		int length() {
+			return end - start;
+		}
+
+		/** @return the chunk counts of the current block */
+		int[] histogram() {
+			CharCounter cc = new CharCounter();
+			cc.addAll(buf, start, end - start);
+			return cc.toArray();
+		}
+
+		/** Turn the current block into literal tokens only. */
+		int literals(int[] tokens) {
+			for (int p = start; p < end; p++)
+				tokens[p - start] = buf[p] & 0xff;
+			return end - start;
+		}
+
+		/** Turn the current block into tokens; returns the number of tokens. */
+		int tokenize(int[] tokens) {
+			int count = 0;
+			int p = start;
+			long match = find(p);
+			while (p < end) {
+				int len = (int) (match >>> 32);
+				if (len < MIN_MATCH) {
+					tokens[count++] = buf[p] & 0xff;
+					p++;
+					match = find(p);
+					continue;
+				}
+				if (lazy && len < MAX_MATCH && p + 1 < end) {
+					long next = find(p + 1);
+					if ((int) (next >>> 32) > len) {
+						tokens[count++] = buf[p] & 0xff;
+						p++;
+						match = next;
+						continue;
+					}
+				}
+				tokens[count++] = matchToken(len, (int) match);
+				p += len;
+				match = find(p);
+			}
+			return count;
+		}
+
+		/** Longest match at p, as length << 32 | distance. */
+		private long find(int p) {
+			if (p >= end)
+				return 0;
+			insertUpTo(p);
+			int limit = Math.min(MAX_MATCH, end - p);
+			if (limit < MIN_MATCH)
+				return 0;
+			int best = 0, bestDistance = 0;
+			int cand = prev[p];
+			for (int chain = maxChain; chain > 0 && cand >= 0 && p - cand < window; chain--) {
+				if (buf[cand + best] == buf[p + best]) {
+					int len = 0;
+					while (len < limit && buf[cand + len] == buf[p + len])
+						len++;
+					if (len > best) {
+						best = len;
+						bestDistance = p - cand;
+						if (len == limit)
+							break;
+					}
+				}
+				cand = prev[cand];
+			}
+			// a short match far back costs more than its literals
+			if (best < MIN_MATCH || best == MIN_MATCH && bestDistance > TOO_FAR)
+				return 0;
+			return (long) best << 32 | bestDistance;
+		}
+
+		private void insertUpTo(int p) {
+			while (inserted <= p && inserted + MIN_MATCH <= end) {
+				int h = hash(inserted);
+				prev[inserted] = head[h];
+				head[h] = inserted;
+				inserted++;
+			}
+		}
+
+		private int hash(int p) {
+			int v = (buf[p] & 0xff) << 16 | (buf[p + 1] & 0xff) << 8 | (buf[p + 2] & 0xff);
+			return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+		}
+	}
+}
@@ -0,0 +1,350 @@
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Entropy coder based on asymmetric numeral systems (rANS) instead of
+ * Huffman codes. A Huffman code spends a whole number of bits on every chunk,
+ * which can waste most of a bit per chunk on skewed data; rANS spends close to
+ * -log2 of each chunk's probability.
+ * <P>
+ * The chunk counts are normalized to frequencies summing to 2^SCALE_BITS.
+ * The coder state is an int kept in [RANS_L, 2^31) by moving bytes in and
+ * out. Two states take turns, chunk i using state i mod 2, so the decoder has
+ * two independent dependency chains. Decoding a chunk is one lookup in a
+ * table of 2^SCALE_BITS entries, a multiply and an add.
+ * <P>
+ * File layout:
+ *
+ * <pre>
+ * int RANS_MAGIC
+ * for every chunk 0-255:
+ *     1 bit             1 if the chunk occurs
+ *     SCALE_BITS bits   its frequency - 1, only if it occurs
+ * pad to a byte boundary
+ * for every block:
+ *     int count         chunks in the block, at most BLOCK_SIZE
+ *     int bytes         bytes of coder output
+ *     coder output      the final state 0 and state 1, then renormalization bytes
+ * int 0
+ * </pre>
+ */
+public class RansModel implements IHuffModel {
+
+	/** Frequencies are scaled to sum to 2^SCALE_BITS. */
+	public static final int SCALE_BITS = 12;
+
+	/** Largest number of chunks in a block. */
+	public static final int BLOCK_SIZE = HuffContext.BUFFER_SIZE;
+
+	/** Lower bound of the coder state. */
+	static final int RANS_L = 1 << 23;
+
+	private static final int SCALE = 1 << SCALE_BITS;
+
+	/**
+	 * Write a compressed version of a file. If force is false, compression
+	 * only occurs if it saves space.
+	 *
+	 * @param inFile
+	 *            is the file to be compressed
+	 * @param outFile
+	 *            is the file to be written with compressed data
+	 * @param force
+	 *            indicates if compression forced
+	 * @return the size of the compressed file in bits, 0 if not written
+	 */
+	public int write(String inFile, String outFile, boolean force) {
+		try {
+			CharCounter cc = new CharCounter();
+			long originalSize = cc.countFile(inFile) * 8;
+			int[] counts = cc.toArray();
+			int[] freqs = normalize(counts);
+			long blocks = (originalSize / 8 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			long estimate = headerSize(freqs) + (long) Math.ceil(compressedSize(counts, freqs))
+					+ blocks * (2 * BITS_PER_INT + 2 * BITS_PER_INT) + BITS_PER_INT;
+			if (!force && estimate >= originalSize)
+				return 0;
+			InputStream in = new BufferedInputStream(new FileInputStream(inFile));
+			BitOutputStream out = new BitOutputStream(outFile);
+			try {
+				return (int) encode(freqs, in, out);
+			} finally {
+				in.close();
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	/**
+	 * Scale chunk counts to frequencies summing to 2^SCALE_BITS. Every chunk
+	 * that occurs gets a frequency of at least 1; the rounding is then fixed
+	 * one step at a time, each time where it costs the fewest bits.
+	 *
+	 * @param counts
+	 *            holds the count of each chunk
+	 * @return the frequency of each chunk, all 0 if no chunk occurs
+	 */
+	public static int[] normalize(int[] counts) {
+		int[] freqs = new int[ALPH_SIZE];
+		long total = 0;
+		for (int ch = 0; ch < ALPH_SIZE; ch++)
+			total += counts[ch];
+		if (total == 0)
+			return freqs;
+		int sum = 0;
+		for (int ch = 0; ch < ALPH_SIZE; ch++) {
+			if (counts[ch] != 0) {
+				freqs[ch] = (int) Math.max(1, Math.round((double) counts[ch] * SCALE / total));
+				sum += freqs[ch];
+			}
+		}
+		while (sum != SCALE) {
+			int step = sum > SCALE ? -1 : 1;
+			int best = -1;
+			double least = Double.MAX_VALUE;
+			for (int ch = 0; ch < ALPH_SIZE; ch++) {
+				int f = freqs[ch] + step;
+				if (counts[ch] == 0 || f == 0)
+					continue;
+				// bits added by the change
+				double cost = counts[ch] * Math.log((double) freqs[ch] / f);
+				if (cost < least) {
+					least = cost;
+					best = ch;
+				}
+			}
+			freqs[best] += step;
+			sum += step;
+		}
+		return freqs;
+	}
+
+	/**
+	 * @param counts
+	 *            holds the count of each chunk
+	 * @param freqs
+	 *            holds the normalized frequency of each chunk
+	 * @return the number of bits coding the counted chunks takes, not counting
+	 *         the final states
+	 */
+	public static double compressedSize(int[] counts, int[] freqs) {
+		double bits = 0;
+		for (int ch = 0; ch < ALPH_SIZE; ch++) {
+			if (counts[ch] != 0)
+				bits += counts[ch] * (SCALE_BITS - Math.log(freqs[ch]) / Math.log(2));
+		}
+		return bits;
+	}
+
+	/**
+	 * @param freqs
+	 *            holds the normalized frequency of each chunk
+	 * @return the number of bits in the header, including the magic number
+	 */
+	public static int headerSize(int[] freqs) {
+		int size = BITS_PER_INT + ALPH_SIZE;
+		for (int f : freqs) {
+			if (f != 0)
+				size += SCALE_BITS;
+		}
+		return size;
+	}
+
+	/**
+	 * Code a stream.
+	 *
+	 * @param freqs
+	 *            holds the normalized frequency of each chunk, as returned by
+	 *            normalize; every chunk of the stream must have one
+	 * @param in
+	 *            is the data to compress
+	 * @param out
+	 *            receives the header and blocks
+	 * @return the number of bits written
+	 * @throws IOException
+	 *             if reading or writing fails
+	 */
+	public static long encode(int[] freqs, InputStream in, BitOutputStream out) throws IOException {
+		out.write(BITS_PER_INT, RANS_MAGIC);
+		for (int ch = 0; ch < ALPH_SIZE; ch++) {
+			out.write(1, freqs[ch] == 0 ? 0 : 1);
+			if (freqs[ch] != 0)
+				out.write(SCALE_BITS, freqs[ch] - 1);
+		}
+		out.flush();
+		long size = (headerSize(freqs) + 7) / 8 * 8;
+		int[] starts = new int[ALPH_SIZE];
+		for (int ch = 1; ch < ALPH_SIZE; ch++)
+			starts[ch] = starts[ch - 1] + freqs[ch - 1];
+		byte[] block = HuffContext.get().in;
+		// filled from the end; at most 2 bytes per chunk plus the states
+		byte[] coded = new byte[2 * BLOCK_SIZE + 8];
+		int n;
+		while ((n = readFully(in, block, BLOCK_SIZE)) > 0) {
+			int pos = coded.length;
+			int x0 = RANS_L;
+			int x1 = RANS_L;
+			// the decoder runs forwards, so code backwards
+			for (int i = n - 1; i >= 0; i--) {
+				int ch = block[i] & 0xff;
+				int freq = freqs[ch];
+				if (freq == 0)
+					throw new IllegalArgumentException("no frequency for chunk " + ch);
+				long xMax = (long) ((RANS_L >>> SCALE_BITS) << 8) * freq;
+				int x = (i & 1) == 0 ? x0 : x1;
+				while (x >= xMax) {
+					coded[--pos] = (byte) x;
+					x >>>= 8;
+				}
+				x = (x / freq << SCALE_BITS) + x % freq + starts[ch];
+				if ((i & 1) == 0)
+					x0 = x;
+				else
+					x1 = x;
+			}
+			pos = putInt(coded, pos, x1);
+			pos = putInt(coded, pos, x0);
+			int bytes = coded.length - pos;
+			out.write(BITS_PER_INT, n);
+			out.write(BITS_PER_INT, bytes);
+			out.write(coded, pos, bytes);
+			size += 2 * BITS_PER_INT + bytes * 8L;
+		}
+		out.write(BITS_PER_INT, 0);
+		return size + BITS_PER_INT;
+	}
+
+	// store x before pos, most significant byte first
+	private static int putInt(byte[] buf, int pos, int x) {
+		for (int i = 0; i < 4; i++, x >>>= 8)
+			buf[--pos] = (byte) x;
+		return pos;
+	}
+
+	/**
+	 * Uncompress a file written by {@link #write(String, String, boolean)}.
+	 *
+	 * @param inFile
+	 *            is the compressed file to be uncompressed
+	 * @param outFile
+	 *            is where the uncompressed bits will be written
+	 * @return the size of the uncompressed file in bits
+	 */
+	public int uncompress(String inFile, String outFile) {
+		BitInputStream in = new BitInputStream(inFile);
+		BitOutputStream out = new BitOutputStream(outFile);
+		try {
+			return (int) decode(in, out) * 8;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Decode a stream.
+	 *
+	 * @param in
+	 *            is positioned at the magic number
+	 * @param out
+	 *            receives the decoded chunks
+	 * @return the number of chunks written
+	 * @throws IOException
+	 *             if the input is not in this format or is damaged
+	 */
+	public static long decode(BitInputStream in, OutputStream out) throws IOException {
+		if (in.read(BITS_PER_INT) != RANS_MAGIC)
+			throw new IOException("magic number not right");
+		// chunk | (frequency - 1) << 8 | (slot - start of chunk) << 20
+		int[] table = new int[SCALE];
+		int slot = 0;
+		for (int ch = 0; ch < ALPH_SIZE; ch++) {
+			int present = in.read(1);
+			if (present == -1)
+				throw new IOException("unexpected end of input file");
+			if (present == 0)
+				continue;
+			int freq = in.read(SCALE_BITS) + 1;
+			if (freq == 0 || slot + freq > SCALE)
+				throw new IOException("bad frequencies");
+			for (int i = 0; i < freq; i++)
+				table[slot + i] = ch | (freq - 1) << 8 | i << 20;
+			slot += freq;
+		}
+		if (slot != 0 && slot != SCALE)
+			throw new IOException("bad frequencies");
+		in.align();
+		byte[] block = HuffContext.get().out;
+		byte[] coded = new byte[0];
+		long size = 0;
+		int n;
+		while ((n = in.read(BITS_PER_INT)) != 0) {
+			int bytes = in.read(BITS_PER_INT);
+			if (n < 0 || n > BLOCK_SIZE || bytes < 8 || slot == 0)
+				throw new IOException("bad block header");
+			if (coded.length < bytes)
+				coded = new byte[bytes];
+			if (readFully(in, coded, bytes) < bytes)
+				throw new IOException("unexpected end of input file");
+			int x0 = getInt(coded, 0);
+			int x1 = getInt(coded, 4);
+			int pos = 8;
+			int i = 0;
+			// two chunks per round while no state can read past the end
+			for (; i + 1 < n && pos + 4 <= bytes; i += 2) {
+				int e0 = table[x0 & (SCALE - 1)];
+				int e1 = table[x1 & (SCALE - 1)];
+				block[i] = (byte) e0;
+				block[i + 1] = (byte) e1;
+				x0 = ((e0 >>> 8 & (SCALE - 1)) + 1) * (x0 >>> SCALE_BITS) + (e0 >>> 20);
+				x1 = ((e1 >>> 8 & (SCALE - 1)) + 1) * (x1 >>> SCALE_BITS) + (e1 >>> 20);
+				while (x0 < RANS_L)
+					x0 = x0 << 8 | coded[pos++] & 0xff;
+				while (x1 < RANS_L)
+					x1 = x1 << 8 | coded[pos++] & 0xff;
+			}
+			for (; i < n; i++) {
+				int x = (i & 1) == 0 ? x0 : x1;
+				int e = table[x & (SCALE - 1)];
+				block[i] = (byte) e;
+				x = ((e >>> 8 & (SCALE - 1)) + 1) * (x >>> SCALE_BITS) + (e >>> 20);
+				while (x < RANS_L) {
+					if (pos == bytes)
+						throw new IOException("unexpected end of input file");
+					x = x << 8 | coded[pos++] & 0xff;
+				}
+				if ((i & 1) == 0)
+					x0 = x;
+				else
+					x1 = x;
+			}
+			if (pos != bytes || x0 != RANS_L || x1 != RANS_L)
+				throw new IOException("corrupt block");
+			out.write(block, 0, n);
+			size += n;
+		}
+		return size;
+	}
+
+	private static int getInt(byte[] buf, int pos) {
+		return (buf[pos] & 0xff) << 24 | (buf[pos + 1] & 0xff) << 16 | (buf[pos + 2] & 0xff) << 8
+				| buf[pos + 3] & 0xff;
+	}
+
+	private static int readFully(InputStream in, byte[] buf, int len) throws IOException {
+		int n = 0;
+		int r;
+		while (n < len && (r = in.read(buf, n, len - n)) != -1)
+			n += r;
+		return n;
+	}
+}
@@ -0,0 +1,288 @@
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+/**
+ * Huffman model that stores the number of chunks in the header instead of
+ * ending the codes with PSEUDO_EOF. The tree holds chunks only, so its leaves
+ * take 8 bits and no code is spent on a marker; the decoder knows the output
+ * size up front, sets the output file to it before writing, and stops on a
+ * count instead of checking every symbol. A file of one repeated chunk needs
+ * no codes at all.
+ * <P>
+ * File layout:
+ *
+ * <pre>
+ * int SIZED_MAGIC
+ * int, int           number of chunks, high and low half
+ * if there are chunks:
+ *     tree           leaves of BITS_PER_WORD bits
+ *     pad to a byte boundary
+ *     codes, padded to a byte boundary
+ * </pre>
+ */
+public class SizedHuff implements IHuffModel {
+
+	// compressed bytes read at a time
+	private static final int WINDOW = HuffContext.BUFFER_SIZE;
+
+	/**
+	 * Write a compressed version of a file. If force is false, compression
+	 * only occurs if it saves space.
+	 *
+	 * @param inFile
+	 *            is the file to be compressed
+	 * @param outFile
+	 *            is the file to be written with compressed data
+	 * @param force
+	 *            indicates if compression forced
+	 * @return the size of the compressed file in bits, 0 if not written
+	 */
+	public int write(String inFile, String outFile, boolean force) {
+		try {
+			CharCounter cc = new CharCounter();
+			long length = cc.countFile(inFile);
+			int[] counts = cc.toArray();
+			HuffCodec codec = length == 0 ? null : HuffCodec.fromChunkCounts(counts);
+			if (!force && compressedSize(codec, counts) >= length * 8)
+				return 0;
+			InputStream in = new BufferedInputStream(new FileInputStream(inFile));
+			BitOutputStream out = new BitOutputStream(outFile);
+			try {
+				return (int) encode(codec, length, in, out);
+			} finally {
+				in.close();
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	/**
+	 * @param codec
+	 *            is built by HuffCodec.fromChunkCounts, or null if nothing is
+	 *            counted
+	 * @param counts
+	 *            holds the count of each chunk
+	 * @return the number of bits {@link #encode} writes
+	 */
+	public static long compressedSize(HuffCodec codec, int[] counts) {
+		long size = 3 * BITS_PER_INT;
+		if (codec == null)
+			return size;
+		size += (codec.tree().size(BITS_PER_WORD) + 7) / 8 * 8;
+		return size + (codec.payloadSize(counts) + 7) / 8 * 8;
+	}
+
+	/**
+	 * Compress a stream.
+	 *
+	 * @param codec
+	 *            is built by HuffCodec.fromChunkCounts, with a code for every
+	 *            chunk of the stream, or null if the stream is empty
+	 * @param length
+	 *            is the number of chunks in the stream
+	 * @param in
+	 *            is the data to compress
+	 * @param out
+	 *            receives the compressed data
+	 * @return the number of bits written
+	 * @throws IOException
+	 *             if reading fails or the stream does not hold length chunks
+	 */
+	public static long encode(HuffCodec codec, long length, InputStream in, BitOutputStream out)
+			throws IOException {
+		out.write(BITS_PER_INT, SIZED_MAGIC);
+		out.write(BITS_PER_INT, (int) (length >>> BITS_PER_INT));
+		out.write(BITS_PER_INT, (int) length);
+		long size = 3 * BITS_PER_INT;
+		if (length == 0)
+			return size;
+		size += (codec.tree().write(out, BITS_PER_WORD) + 7) / 8 * 8;
+		out.flush();
+		CountingInputStream counted = new CountingInputStream(in);
+		long bits = codec.encodeChunks(counted, out);
+		out.flush();
+		if (counted.count != length)
+			throw new IOException("stream holds " + counted.count + " chunks, not " + length);
+		return size + (bits + 7) / 8 * 8;
+	}
+
+	/**
+	 * Uncompress a file written by {@link #write(String, String, boolean)}.
+	 * The output file is set to its final length before it is written.
+	 *
+	 * @param inFile
+	 *            is the compressed file to be uncompressed
+	 * @param outFile
+	 *            is where the uncompressed bits will be written
+	 * @return the size of the uncompressed file in bits
+	 */
+	public int uncompress(String inFile, String outFile) {
+		BitInputStream in = new BitInputStream(inFile);
+		try {
+			long length = readLength(in);
+			RandomAccessFile file = new RandomAccessFile(outFile, "rw");
+			try {
+				file.setLength(length);
+				return (int) decode(in, length, Channels.newOutputStream(file.getChannel())) * 8;
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Uncompress a stream.
+	 *
+	 * @param in
+	 *            is positioned at the magic number
+	 * @param out
+	 *            receives the uncompressed data
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if the input is not in this format or is damaged
+	 */
+	public static long decode(BitInputStream in, OutputStream out) throws IOException {
+		return decode(in, readLength(in), out);
+	}
+
+	/**
+	 * Read the magic number and the number of chunks.
+	 *
+	 * @param in
+	 *            is positioned at the magic number
+	 * @return the number of chunks
+	 * @throws IOException
+	 *             if the input is not in this format
+	 */
+	public static long readLength(BitInputStream in) throws IOException {
+		if (in.read(BITS_PER_INT) != SIZED_MAGIC)
+			throw new IOException("magic number not right");
+		int high = in.read(BITS_PER_INT);
+		int low = in.read(BITS_PER_INT);
+		if (high < 0)
+			throw new IOException("bad length");
+		return (long) high << BITS_PER_INT | (low & 0xffffffffL);
+	}
+
+	/**
+	 * Decode the chunks after the length.
+	 *
+	 * @param in
+	 *            is positioned after the length
+	 * @param length
+	 *            is the number of chunks
+	 * @param out
+	 *            receives the chunks, in writes of up to a buffer each
+	 * @return length
+	 * @throws IOException
+	 *             if the input is damaged
+	 */
+	public static long decode(BitInputStream in, long length, OutputStream out) throws IOException {
+		if (length == 0)
+			return 0;
+		HuffArrayTree tree = HuffArrayTree.read(in, BITS_PER_WORD);
+		in.align();
+		byte[] buf = HuffContext.get().out;
+		long left = length;
+		if (tree.root() < 0) {
+			// one repeated chunk has no codes
+			Arrays.fill(buf, (byte) ~tree.root());
+			while (left > 0) {
+				int n = (int) Math.min(left, buf.length);
+				out.write(buf, 0, n);
+				left -= n;
+			}
+			return length;
+		}
+		HuffDecodeTable table = new HuffDecodeTable(tree);
+		HuffCodec codec = new HuffCodec(tree);
+		// a lookup reads LOOKUP_BITS bits even when the codes are shorter
+		int maxLength = HuffDecodeTable.LOOKUP_BITS;
+		for (int ch = 0; ch < ALPH_SIZE; ch++)
+			maxLength = Math.max(maxLength, codec.codeLength(ch));
+		byte[] window = new byte[WINDOW];
+		int n = readFully(in, window, 0, window.length);
+		boolean ended = n < window.length;
+		BitArrayReader bits = new BitArrayReader(window, 0, n);
+		while (left > 0) {
+			// positions up to safe have a whole code after them
+			long safe = n * 8L - maxLength;
+			if (!ended && bits.position() > safe) {
+				// keep the partly read byte and what follows, read more
+				int keep = (int) (bits.position() / 8);
+				int offset = (int) (bits.position() % 8);
+				System.arraycopy(window, keep, window, 0, n - keep);
+				n -= keep;
+				int r = readFully(in, window, n, window.length - n);
+				ended = r < window.length - n;
+				n += r;
+				bits.reset(window, 0, n);
+				bits.read(offset);
+				continue;
+			}
+			int count = (int) Math.min(left, buf.length);
+			int i = 0;
+			while (i < count && (ended || bits.position() <= safe)) {
+				// several chunks a lookup, but none past the last one
+				if (i + HuffDecodeTable.MAX_CHUNKS <= count)
+					i += table.next(bits, buf, i);
+				else
+					buf[i++] = (byte) table.next(bits);
+			}
+			if (bits.overrun())
+				throw new IOException("unexpected end of input file");
+			out.write(buf, 0, i);
+			left -= i;
+		}
+		return length;
+	}
+
+	private static int readFully(InputStream in, byte[] buf, int off, int len) throws IOException {
+		int n = 0;
+		int r;
+		while (n < len && (r = in.read(buf, off + n, len - n)) != -1)
+			n += r;
+		return n;
+	}
+
+	/**
+	 * Counts the bytes read through it.
+	 */
+	private static final class CountingInputStream extends InputStream {
+
+		private final InputStream in;
+		long count;
+
+		CountingInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1)
+				count++;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,355 @@
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes a file written by <code>Huff</code> on several threads without
+ * needing a sync index. The codes of a segment are cut into pieces at
+ * arbitrary bit positions and every piece but the first is decoded from a
+ * guess that its first bit starts a code. A wrong guess decodes garbage for a
+ * while, but Huffman codes tend to fall back into step with the real code
+ * boundaries after a few codes. Once the piece before is known to be right,
+ * decoding goes on from its end, on the calling thread, until it reaches a
+ * position the piece also decoded a code from; from there on the piece is
+ * right and only the chunks before that position are dropped. A piece that
+ * never falls into step within its first <code>MARKS</code> codes, as with a
+ * code of all 8 bit codes, is decoded again from the right position, so the
+ * output is always the same as <code>Huff.uncompress</code>.
+ * <P>
+ * The end of a segment is only found by decoding its PSEUDO_EOF, so the pieces
+ * of the first round of a segment are small and grow each round, keeping the
+ * work spent past the end small for files of many short segments.
+ */
+public final class SpeculativeDecoder implements IHuffConstants {
+
+	/** Compressed bytes of each piece in the first round of a segment. */
+	static final int MIN_PIECE = 1 << 16;
+
+	/** Most compressed bytes of one piece. */
+	static final int MAX_PIECE = 1 << 22;
+
+	/** Most pieces decoded at once. */
+	static final int MAX_PIECES = 64;
+
+	/** Number of code positions a piece records to fall into step with. */
+	static final int MARKS = 1 << 12;
+
+	// room after a round for a code that crosses its end
+	private static final int SLACK = 64;
+
+	// longest header: magic number and a tree of every chunk and PSEUDO_EOF
+	private static final int HEADER_BYTES = (BITS_PER_INT + 11 * (ALPH_SIZE + 1) + 7) / 8;
+
+	private SpeculativeDecoder() {
+	}
+
+	/**
+	 * Uncompress a file on the common pool.
+	 *
+	 * @param inFile
+	 *            is a file written by <code>Huff</code>
+	 * @param outFile
+	 *            receives the uncompressed data
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if the file is not a compressed file or reading or writing
+	 *             fails
+	 */
+	public static long decode(String inFile, String outFile) throws IOException {
+		return decode(inFile, outFile, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Uncompress a file, decoding one piece per thread of a pool.
+	 *
+	 * @param inFile
+	 *            is a file written by <code>Huff</code>
+	 * @param outFile
+	 *            receives the uncompressed data
+	 * @param pool
+	 *            runs the pieces
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if the file is not a compressed file or reading or writing
+	 *             fails
+	 */
+	public static long decode(String inFile, String outFile, ForkJoinPool pool) throws IOException {
+		Source src = new Source(FileChannel.open(Paths.get(inFile), StandardOpenOption.READ));
+		OutputStream out = new FileOutputStream(outFile);
+		try {
+			long size = 0;
+			long bit = 0;
+			boolean first = true;
+			while (true) {
+				int off = src.fill(bit / 8, HEADER_BYTES);
+				if (!first && off == src.n)
+					return size;
+				BitArrayReader in = new BitArrayReader(src.data, off, src.n - off);
+				int magic = in.read(BITS_PER_INT);
+				if (!first && magic == SYNC_MAGIC) {
+					in.read(BITS_PER_INT);
+					bit += SyncIndex.byteSize(in.read(BITS_PER_INT)) * 8L;
+					continue;
+				}
+				if (magic != MAGIC_NUMBER || in.overrun())
+					throw new IOException("magic number not right");
+				first = false;
+				HuffArrayTree tree = HuffArrayTree.read(new BitInputStream(
+						new ByteArrayInputStream(src.data, off + 4, src.n - off - 4)));
+				bit += BITS_PER_INT + tree.size();
+				if (tree.root() >= 0) {
+					Segment segment = new Segment(tree, pool.getParallelism());
+					bit = segment.decode(src, bit, out, pool);
+					size += segment.size;
+				} else if (~tree.root() != PSEUDO_EOF) {
+					throw new IOException("tree has no PSEUDO_EOF");
+				}
+				// the next segment, or index, starts on a byte boundary
+				bit = (bit + 7) / 8 * 8;
+			}
+		} finally {
+			src.channel.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * The window of the compressed file being decoded.
+	 */
+	private static final class Source {
+
+		final FileChannel channel;
+		final long length;
+		byte[] data = new byte[HuffContext.BUFFER_SIZE];
+		// file position of data[0]
+		long base;
+		int n;
+
+		Source(FileChannel channel) throws IOException {
+			this.channel = channel;
+			length = channel.size();
+		}
+
+		/**
+		 * Load the file from a position on, len bytes or up to its end.
+		 *
+		 * @return the index of that position in data
+		 */
+		int fill(long pos, int len) throws IOException {
+			if (pos >= base && pos + len <= base + n || pos >= base && base + n == length)
+				return (int) (pos - base);
+			if (data.length < len)
+				data = new byte[len];
+			int want = (int) Math.min(len, length - pos);
+			ByteBuffer dst = ByteBuffer.wrap(data, 0, want);
+			while (dst.hasRemaining()) {
+				if (channel.read(dst, pos + dst.position()) == -1)
+					break;
+			}
+			base = pos;
+			n = dst.position();
+			return 0;
+		}
+	}
+
+	/**
+	 * Decodes the codes of one segment in rounds of pieces.
+	 */
+	private static final class Segment {
+
+		final HuffDecodeTable table;
+		final int pieces;
+		long size;
+
+		Segment(HuffArrayTree tree, int pieces) {
+			this.table = new HuffDecodeTable(tree);
+			this.pieces = Math.max(1, Math.min(MAX_PIECES, pieces));
+		}
+
+		/**
+		 * @param bit
+		 *            is the file position of the first code, in bits
+		 * @return the file position just past PSEUDO_EOF, in bits
+		 */
+		long decode(Source src, long bit, OutputStream out, ForkJoinPool pool) throws IOException {
+			int pieceBytes = MIN_PIECE;
+			byte[] stitched = new byte[MARKS];
+			BitArrayReader in = new BitArrayReader(stitched, 0, 0);
+			while (true) {
+				int round = pieces * pieceBytes;
+				int off = src.fill(bit / 8, round + SLACK);
+				int len = src.n - off;
+				boolean last = src.base + src.n == src.length;
+				// bit positions from the start of data[off]
+				long start = bit % 8;
+				long end = last ? len * 8L : Math.min(len, round) * 8L;
+				Piece[] run = new Piece[pieces];
+				for (int k = 0; k < pieces; k++) {
+					long from = k == 0 ? start : Math.min(end, k * (long) pieceBytes * 8);
+					long to = k + 1 == pieces ? end : Math.min(end, (k + 1) * (long) pieceBytes * 8);
+					run[k] = new Piece(table, src.data, off, len, from, to);
+					if (k > 0)
+						pool.execute(run[k]);
+				}
+				run[0].compute();
+				long pos = start;
+				boolean ended = false;
+				try {
+					for (int k = 0; k < pieces && !ended; k++) {
+						Piece piece = run[k];
+						if (k > 0)
+							piece.join();
+						// decode from the end of the last right piece until a
+						// position this piece decoded from
+						int j = 0;
+						int count = 0;
+						long seeked = pos;
+						seek(in, src.data, off, len, seeked);
+						while (true) {
+							while (j < piece.marked && piece.from + piece.marks[j] < pos)
+								j++;
+							if (j < piece.marked && piece.from + piece.marks[j] == pos)
+								break;
+							if (j == piece.marked && piece.marked == MARKS || pos >= piece.to) {
+								// never fell into step, decode the rest of it here
+								Piece again = new Piece(table, src.data, off, len, pos, piece.to);
+								again.compute();
+								piece = again;
+								j = 0;
+								break;
+							}
+							int ch = table.next(in);
+							if (in.overrun())
+								throw new IOException("unexpected end of input file");
+							pos = position(in, seeked);
+							if (ch == PSEUDO_EOF) {
+								ended = true;
+								break;
+							}
+							if (count == stitched.length) {
+								out.write(stitched, 0, count);
+								size += count;
+								count = 0;
+							}
+							stitched[count++] = (byte) ch;
+						}
+						out.write(stitched, 0, count);
+						size += count;
+						if (ended)
+							break;
+						if (piece.overrun)
+							throw new IOException("unexpected end of input file");
+						out.write(piece.chunks, j, piece.count - j);
+						size += piece.count - j;
+						pos = piece.end;
+						ended = piece.eof;
+					}
+				} finally {
+					// pieces past PSEUDO_EOF, or past an error, are not needed;
+					// cancelling one that is done changes nothing
+					for (int k = 1; k < pieces; k++)
+						run[k].cancel(false);
+				}
+				bit = bit / 8 * 8 + pos;
+				if (ended)
+					return bit;
+				if (last)
+					throw new IOException("unexpected end of input file");
+				pieceBytes = Math.min(MAX_PIECE, pieceBytes * 2);
+			}
+		}
+	}
+
+	/**
+	 * Decodes a range of bits from a guessed code boundary.
+	 */
+	private static final class Piece extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final HuffDecodeTable table;
+		private final byte[] data;
+		private final int off;
+		private final int len;
+		final long from;
+		final long to;
+		// positions of the first codes, from the start of the piece
+		final int[] marks = new int[MARKS];
+		int marked;
+		byte[] chunks = new byte[0];
+		int count;
+		long end;
+		boolean eof;
+		boolean overrun;
+
+		Piece(HuffDecodeTable table, byte[] data, int off, int len, long from, long to) {
+			this.table = table;
+			this.data = data;
+			this.off = off;
+			this.len = len;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			BitArrayReader in = new BitArrayReader(data, 0, 0);
+			seek(in, data, off, len, from);
+			byte[] buf = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(16, (to - from) / 4))];
+			int n = 0;
+			long pos = from;
+			for (int step = 1; pos < to; step++) {
+				// a piece past the end of the segment is cancelled
+				if ((step & 0xfff) == 0 && isCancelled())
+					break;
+				if (n + HuffDecodeTable.MAX_CHUNKS > buf.length)
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				int k;
+				if (marked < MARKS) {
+					marks[marked++] = (int) (pos - from);
+					int ch = table.next(in);
+					buf[n] = (byte) ch;
+					k = ch == PSEUDO_EOF ? -1 : 1;
+				} else {
+					// past the marks, several codes may be decoded at once
+					k = table.next(in, buf, n);
+				}
+				pos = position(in, from);
+				if (k < 0) {
+					eof = true;
+					break;
+				}
+				n += k;
+			}
+			chunks = buf;
+			count = n;
+			end = pos;
+			overrun = in.overrun();
+		}
+	}
+
+	/**
+	 * Position a reader at a bit of a region.
+	 */
+	private static void seek(BitArrayReader in, byte[] data, int off, int len, long bit) {
+		int skip = (int) (bit / 8);
+		in.reset(data, off + skip, len - skip);
+		in.read((int) (bit % 8));
+	}
+
+	/**
+	 * @return the position of a reader placed by seek at bit, from the start
+	 *         of the region
+	 */
+	private static long position(BitArrayReader in, long bit) {
+		return bit / 8 * 8 + in.position();
+	}
+}
@@ -0,0 +1,144 @@
+import java.util.Arrays;
+
+/**
+ * Suffix array construction by induced sorting (SA-IS), in time and memory
+ * linear in the length of the input. Suffixes are ordered as usual: a suffix
+ * that is a prefix of another sorts first.
+ */
+final class SuffixArray {
+
+	private SuffixArray() {
+	}
+
+	/**
+	 * Sort the suffixes of the first <code>n</code> chunks of an array.
+	 *
+	 * @param data
+	 *            holds the chunks
+	 * @param n
+	 *            is the number of chunks
+	 * @return the start of each suffix in sorted order
+	 */
+	static int[] build(byte[] data, int n) {
+		int[] s = new int[n];
+		for (int i = 0; i < n; i++)
+			s[i] = data[i] & 0xff;
+		return build(s, 255);
+	}
+
+	/**
+	 * Sort the suffixes of a string of symbols.
+	 *
+	 * @param s
+	 *            is the string, every symbol 0 to upper
+	 * @param upper
+	 *            is the largest symbol
+	 * @return the start of each suffix in sorted order
+	 */
+	static int[] build(int[] s, int upper) {
+		int n = s.length;
+		if (n == 0)
+			return new int[0];
+		if (n == 1)
+			return new int[] { 0 };
+		if (n == 2)
+			return s[0] < s[1] ? new int[] { 0, 1 } : new int[] { 1, 0 };
+		int[] sa = new int[n];
+		// ls[i] is true if suffix i is smaller than suffix i + 1 (S-type)
+		boolean[] ls = new boolean[n];
+		for (int i = n - 2; i >= 0; i--)
+			ls[i] = s[i] == s[i + 1] ? ls[i + 1] : s[i] < s[i + 1];
+		// bucket starts for S-type and L-type suffixes of each symbol
+		int[] sumL = new int[upper + 1];
+		int[] sumS = new int[upper + 1];
+		for (int i = 0; i < n; i++) {
+			if (!ls[i])
+				sumS[s[i]]++;
+			else
+				sumL[s[i] + 1]++;
+		}
+		for (int i = 0; i <= upper; i++) {
+			sumS[i] += sumL[i];
+			if (i < upper)
+				sumL[i + 1] += sumS[i];
+		}
+		// number the leftmost S-type positions (LMS)
+		int[] lmsMap = new int[n + 1];
+		Arrays.fill(lmsMap, -1);
+		int m = 0;
+		for (int i = 1; i < n; i++) {
+			if (!ls[i - 1] && ls[i])
+				lmsMap[i] = m++;
+		}
+		int[] lms = new int[m];
+		for (int i = 1, j = 0; i < n; i++) {
+			if (!ls[i - 1] && ls[i])
+				lms[j++] = i;
+		}
+		induce(s, upper, sa, ls, sumS, sumL, lms);
+		if (m > 0) {
+			// name the LMS substrings in sorted order and sort them recursively
+			int[] sortedLms = new int[m];
+			int j = 0;
+			for (int v : sa) {
+				if (lmsMap[v] != -1)
+					sortedLms[j++] = v;
+			}
+			int[] rec = new int[m];
+			int recUpper = 0;
+			rec[lmsMap[sortedLms[0]]] = 0;
+			for (int i = 1; i < m; i++) {
+				int l = sortedLms[i - 1];
+				int r = sortedLms[i];
+				int endL = lmsMap[l] + 1 < m ? lms[lmsMap[l] + 1] : n;
+				int endR = lmsMap[r] + 1 < m ? lms[lmsMap[r] + 1] : n;
+				boolean same = true;
+				if (endL - l != endR - r) {
+					same = false;
+				} else {
+					while (l < endL && s[l] == s[r]) {
+						l++;
+						r++;
+					}
+					if (l == n || s[l] != s[r])
+						same = false;
+				}
+				if (!same)
+					recUpper++;
+				rec[lmsMap[sortedLms[i]]] = recUpper;
+			}
+			int[] recSa = build(rec, recUpper);
+			for (int i = 0; i < m; i++)
+				sortedLms[i] = lms[recSa[i]];
+			induce(s, upper, sa, ls, sumS, sumL, sortedLms);
+		}
+		return sa;
+	}
+
+	/**
+	 * Place the LMS suffixes in their buckets in the given order, then induce
+	 * the L-type suffixes left to right and the S-type ones right to left.
+	 */
+	private static void induce(int[] s, int upper, int[] sa, boolean[] ls, int[] sumS, int[] sumL, int[] lms) {
+		int n = s.length;
+		Arrays.fill(sa, -1);
+		int[] buf = sumS.clone();
+		for (int d : lms) {
+			if (d != n)
+				sa[buf[s[d]]++] = d;
+		}
+		System.arraycopy(sumL, 0, buf, 0, upper + 1);
+		sa[buf[s[n - 1]]++] = n - 1;
+		for (int i = 0; i < n; i++) {
+			int v = sa[i];
+			if (v >= 1 && !ls[v - 1])
+				sa[buf[s[v - 1]]++] = v - 1;
+		}
+		System.arraycopy(sumL, 0, buf, 0, upper + 1);
+		for (int i = n - 1; i >= 0; i--) {
+			int v = sa[i];
+			if (v >= 1 && ls[v - 1])
+				sa[--buf[s[v - 1] + 1]] = v - 1;
+		}
+	}
+}
@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sync points of one compressed stream. Each point pairs an offset in the
+ * uncompressed data with the bit position, counted from the first bit of the
+ * header, of the code for the chunk at that offset. Decoding can start at any
+ * point, so a byte range is read by decoding only from the nearest point
+ * before it.
+ * <P>
+ * The index is written byte aligned right after the stream, where decoders
+ * that stop at PSEUDO_EOF never look:
+ *
+ * <pre>
+ * int  SYNC_MAGIC
+ * int  interval
+ * int  count
+ * count times: long offset, long bit
+ * long length        uncompressed length of the stream
+ * long streamBytes   bytes from the start of the header to the index
+ * int  count
+ * int  SYNC_MAGIC
+ * </pre>
+ *
+ * The count and magic number at both ends let the index be read forwards, or
+ * found from the end of a file.
+ */
+public final class SyncIndex implements IHuffConstants {
+
+	/** Bytes in an index with no points. */
+	private static final int EMPTY_SIZE = 4 + 4 + 4 + 8 + 8 + 4 + 4;
+
+	/** Bytes per sync point. */
+	private static final int POINT_SIZE = 8 + 8;
+
+	private final int interval;
+	private long[] offsets;
+	private long[] bits;
+	private int count;
+	private long length;
+	private long streamBytes;
+
+	/**
+	 * Create an empty index to be filled by an encoder.
+	 *
+	 * @param interval
+	 *            is the number of chunks between sync points
+	 * @throws IllegalArgumentException
+	 *             if interval is not positive
+	 */
+	public SyncIndex(int interval) {
+		if (interval <= 0)
+			throw new IllegalArgumentException("interval must be positive");
+		this.interval = interval;
+		offsets = new long[16];
+		bits = new long[16];
+	}
+
+	/**
+	 * Record a sync point.
+	 *
+	 * @param offset
+	 *            is the offset in the uncompressed data
+	 * @param bit
+	 *            is the bit position of the code for that offset
+	 */
+	void add(long offset, long bit) {
+		if (count == offsets.length) {
+			offsets = Arrays.copyOf(offsets, count * 2);
+			bits = Arrays.copyOf(bits, count * 2);
+		}
+		offsets[count] = offset;
+		bits[count] = bit;
+		count++;
+	}
+
+	/**
+	 * Record the totals of the finished stream.
+	 *
+	 * @param length
+	 *            is the uncompressed length
+	 * @param streamBytes
+	 *            is the number of bytes of header and codes
+	 */
+	void finish(long length, long streamBytes) {
+		this.length = length;
+		this.streamBytes = streamBytes;
+	}
+
+	/**
+	 * @return the number of chunks between sync points
+	 */
+	public int interval() {
+		return interval;
+	}
+
+	/**
+	 * @return the number of sync points
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @param i
+	 *            is the index of a sync point
+	 * @return the uncompressed offset of the point
+	 */
+	public long offset(int i) {
+		return offsets[i];
+	}
+
+	/**
+	 * @param i
+	 *            is the index of a sync point
+	 * @return the bit position of the point, from the start of the header
+	 */
+	public long bit(int i) {
+		return bits[i];
+	}
+
+	/**
+	 * @return the uncompressed length of the stream
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * @return the number of bytes of header and codes before the index
+	 */
+	public long streamBytes() {
+		return streamBytes;
+	}
+
+	/**
+	 * Find the sync point to start decoding from to reach an offset.
+	 *
+	 * @param offset
+	 *            is an offset in the uncompressed data
+	 * @return the index of the last point at or before offset, -1 if none
+	 */
+	public int find(long offset) {
+		int lo = 0, hi = count - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (offsets[mid] <= offset) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Find the sync point to start decoding from to reach a bit position.
+	 *
+	 * @param bit
+	 *            is a bit position, from the start of the header
+	 * @return the index of the last point at or before bit, -1 if none
+	 */
+	public int findBit(long bit) {
+		int lo = 0, hi = count - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (bits[mid] <= bit) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the number of bytes {@link #write(BitOutputStream)} writes
+	 */
+	public int byteSize() {
+		return byteSize(count);
+	}
+
+	/**
+	 * @param count
+	 *            is a number of sync points
+	 * @return the number of bytes an index with that many points takes
+	 */
+	static int byteSize(int count) {
+		return EMPTY_SIZE + count * POINT_SIZE;
+	}
+
+	/**
+	 * Write the index. The stream must be byte aligned, e.g., just flushed.
+	 *
+	 * @param out
+	 *            is where the index is written
+	 * @return the number of bytes written
+	 */
+	public int write(BitOutputStream out) {
+		out.write(BITS_PER_INT, SYNC_MAGIC);
+		out.write(BITS_PER_INT, interval);
+		out.write(BITS_PER_INT, count);
+		for (int i = 0; i < count; i++) {
+			writeLong(out, offsets[i]);
+			writeLong(out, bits[i]);
+		}
+		writeLong(out, length);
+		writeLong(out, streamBytes);
+		out.write(BITS_PER_INT, count);
+		out.write(BITS_PER_INT, SYNC_MAGIC);
+		return byteSize();
+	}
+
+	private static void writeLong(BitOutputStream out, long value) {
+		out.write(BITS_PER_INT, (int) (value >>> BITS_PER_INT));
+		out.write(BITS_PER_INT, (int) value);
+	}
+
+	/**
+	 * Skip over an index whose leading SYNC_MAGIC was just read.
+	 *
+	 * @param in
+	 *            is the stream, positioned after the magic number
+	 * @throws IOException
+	 *             if the stream ends inside the index
+	 */
+	public static void skip(BitInputStream in) throws IOException {
+		in.read(BITS_PER_INT);
+		int count = in.read(BITS_PER_INT);
+		// the rest of the index, read a byte at a time so -1 only means the end
+		for (long i = EMPTY_SIZE - 4 - 4 - 4 + (long) count * POINT_SIZE; i > 0; i--) {
+			if (in.read(BITS_PER_WORD) == -1)
+				throw new IOException("unexpected end of input file");
+		}
+	}
+
+	/**
+	 * Read the index that ends at a given position of a file.
+	 *
+	 * @param file
+	 *            is the compressed file
+	 * @param end
+	 *            is the position just past the index
+	 * @return the index, or null if no index ends at that position
+	 * @throws IOException
+	 *             if reading fails or the index is damaged
+	 */
+	public static SyncIndex read(RandomAccessFile file, long end) throws IOException {
+		if (end < EMPTY_SIZE)
+			return null;
+		file.seek(end - 4);
+		if (file.readInt() != SYNC_MAGIC)
+			return null;
+		file.seek(end - 4 - 4 - 8 - 8);
+		long length = file.readLong();
+		long streamBytes = file.readLong();
+		int count = file.readInt();
+		long start = end - EMPTY_SIZE - (long) count * POINT_SIZE;
+		if (count < 0 || start < 0)
+			throw new IOException("sync index damaged");
+		file.seek(start);
+		if (file.readInt() != SYNC_MAGIC)
+			throw new IOException("sync index damaged");
+		SyncIndex index = new SyncIndex(file.readInt());
+		if (file.readInt() != count)
+			throw new IOException("sync index damaged");
+		for (int i = 0; i < count; i++) {
+			long offset = file.readLong();
+			index.add(offset, file.readLong());
+		}
+		index.finish(length, streamBytes);
+		return index;
+	}
+
+	/**
+	 * Read the indexes of every segment of a file, walking back from its end.
+	 *
+	 * @param file
+	 *            is the compressed file
+	 * @param starts
+	 *            receives the position of the header of each segment
+	 * @return the indexes in file order, or null if some segment has none
+	 * @throws IOException
+	 *             if reading fails or an index is damaged
+	 */
+	public static List<SyncIndex> readAll(RandomAccessFile file, List<Long> starts) throws IOException {
+		List<SyncIndex> indexes = new ArrayList<SyncIndex>();
+		long end = file.length();
+		while (end > 0) {
+			SyncIndex index = read(file, end);
+			if (index == null)
+				return null;
+			end -= index.byteSize() + index.streamBytes();
+			starts.add(0, end);
+			indexes.add(0, index);
+		}
+		return indexes;
+	}
+}